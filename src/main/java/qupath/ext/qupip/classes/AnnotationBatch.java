@@ -0,0 +1,76 @@
+package qupath.ext.qupip.classes;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The annotations created by one run, held until the run is done and then committed to the hierarchy together.
+ * <p>
+ * Adding each annotation straight away fires a change event (and a repaint of the viewer) per region, and
+ * selecting annotations by classification also picks up those of earlier runs. The batch is added without events,
+ * followed by a single change event, and only its own annotations are selected, so a run of N regions costs
+ * O(N) however many annotations the image already holds.
+ */
+public class AnnotationBatch {
+
+    private final PathObjectHierarchy hierarchy;
+    private final List<PathObject> annotations = new ArrayList<>();
+    private final Map<PathObject, PathObject> parents = new HashMap<>();
+
+    /**
+     * @param hierarchy The hierarchy the annotations will be committed to.
+     */
+    public AnnotationBatch(PathObjectHierarchy hierarchy) {
+        this.hierarchy = hierarchy;
+    }
+
+    /**
+     * Hold an annotation until {@link #commit(Object)}.
+     *
+     * @param parent The object to add the annotation below, or null to let the hierarchy place it.
+     * @param annotation The annotation.
+     */
+    public void add(PathObject parent, PathObject annotation) {
+        annotations.add(annotation);
+        if (parent != null) {
+            parents.put(annotation, parent);
+        }
+    }
+
+    /**
+     * @return The annotations held, in the order they were added.
+     */
+    public List<PathObject> getAnnotations() {
+        return Collections.unmodifiableList(annotations);
+    }
+
+    /**
+     * Add the annotations to the hierarchy without firing events, then fire a single change event and select
+     * them in one go. The batch is empty afterwards, so committing twice adds nothing.
+     *
+     * @param source The source of the change event.
+     */
+    public void commit(Object source) {
+        if (annotations.isEmpty()) {
+            return;
+        }
+        for (PathObject annotation : annotations) {
+            PathObject parent = parents.get(annotation);
+            if (parent != null) {
+                hierarchy.addObjectBelowParent(parent, annotation, false);
+            } else {
+                hierarchy.addObject(annotation, false);
+            }
+        }
+        hierarchy.fireHierarchyChangedEvent(source);
+        hierarchy.getSelectionModel().setSelectedObjects(new ArrayList<>(annotations), null);
+        annotations.clear();
+        parents.clear();
+    }
+}
@@ -0,0 +1,209 @@
+package qupath.ext.qupip.classes;
+
+import java.awt.Rectangle;
+
+/**
+ * A binary mask packed one bit per pixel, in 64-bit words.
+ * <p>
+ * Each row starts on a new word, so rows and rectangles (e.g. the core of a tile) can be addressed directly, and
+ * the bits past the end of each row are always 0. Thresholding, cropping and copying regions work a word, i.e. 64
+ * pixels, at a time. The mask takes 1/32 of the memory of the float image it was thresholded from.
+ */
+public class BitMask {
+
+    private final int width;
+    private final int height;
+    private final int wordsPerRow;
+    private final long[] words;
+
+    /**
+     * Create an empty mask.
+     *
+     * @param width The mask width.
+     * @param height The mask height.
+     */
+    public BitMask(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.wordsPerRow = (width + 63) >>> 6;
+        this.words = new long[wordsPerRow * height];
+    }
+
+    /**
+     * Threshold an image: the pixels greater than or equal to {@code lower} and less than {@code upper} are set.
+     *
+     * @param pixels The pixels, row by row.
+     * @param width The image width.
+     * @param height The image height.
+     * @param lower The lower bound, inclusive.
+     * @param upper The upper bound, exclusive; {@link Double#POSITIVE_INFINITY} for no upper bound.
+     * @return The mask.
+     */
+    public static BitMask threshold(float[] pixels, int width, int height, double lower, double upper) {
+        BitMask mask = new BitMask(width, height);
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            int row = y * mask.wordsPerRow;
+            for (int w = 0; w < mask.wordsPerRow; w++) {
+                int x0 = w << 6;
+                int n = Math.min(64, width - x0);
+                long word = 0;
+                for (int b = 0; b < n; b++) {
+                    float value = pixels[offset + x0 + b];
+                    if (value >= lower && value < upper) {
+                        word |= 1L << b;
+                    }
+                }
+                mask.words[row + w] = word;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @return The mask width.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return The mask height.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The number of words per row.
+     */
+    public int getWordsPerRow() {
+        return wordsPerRow;
+    }
+
+    /**
+     * Get the word holding 64 pixels of a row, from {@code x = 64 * wordIndex}; pixel {@code x} is bit
+     * {@code x % 64}.
+     *
+     * @param wordIndex The index of the word in the row.
+     * @param y The row.
+     * @return The word.
+     */
+    public long getWord(int wordIndex, int y) {
+        return words[y * wordsPerRow + wordIndex];
+    }
+
+    /**
+     * @return Whether the pixel is set.
+     */
+    public boolean get(int x, int y) {
+        return (words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    /**
+     * Set a pixel.
+     */
+    public void set(int x, int y) {
+        words[y * wordsPerRow + (x >>> 6)] |= 1L << x;
+    }
+
+    /**
+     * Clear every pixel outside a rectangle, e.g. the halo of a tile.
+     *
+     * @param rect The rectangle to keep.
+     * @return This mask.
+     */
+    public BitMask retain(Rectangle rect) {
+        int x1 = Math.max(0, rect.x);
+        int y1 = Math.max(0, rect.y);
+        int x2 = Math.min(width, rect.x + rect.width);
+        int y2 = Math.min(height, rect.y + rect.height);
+        for (int y = 0; y < height; y++) {
+            int row = y * wordsPerRow;
+            for (int w = 0; w < wordsPerRow; w++) {
+                words[row + w] = y < y1 || y >= y2 ? 0 : words[row + w] & rangeMask(w, x1, x2);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Copy a rectangle of the mask, e.g. one tile of a larger mask.
+     *
+     * @param rect The rectangle, which must lie within the mask.
+     * @return A new mask of the size of the rectangle.
+     */
+    public BitMask getRegion(Rectangle rect) {
+        BitMask region = new BitMask(rect.width, rect.height);
+        for (int y = 0; y < rect.height; y++) {
+            for (int w = 0; w < region.wordsPerRow; w++) {
+                region.words[y * region.wordsPerRow + w] = getBits(rect.x + (w << 6), rect.y + y,
+                        Math.min(64, rect.width - (w << 6)));
+            }
+        }
+        return region;
+    }
+
+    /**
+     * Add the pixels of a smaller mask at a given position, e.g. a tile into a larger mask.
+     *
+     * @param region The mask to add, which must lie within this mask once positioned.
+     * @param x The x position of the region in this mask.
+     * @param y The y position of the region in this mask.
+     */
+    public void orRegion(BitMask region, int x, int y) {
+        for (int ry = 0; ry < region.height; ry++) {
+            int row = (y + ry) * wordsPerRow;
+            for (int w = 0; w < region.wordsPerRow; w++) {
+                long bits = region.words[ry * region.wordsPerRow + w];
+                if (bits == 0) {
+                    continue;
+                }
+                int target = x + (w << 6);
+                int shift = target & 63;
+                words[row + (target >>> 6)] |= bits << shift;
+                if (shift != 0 && (target >>> 6) + 1 < wordsPerRow) {
+                    words[row + (target >>> 6) + 1] |= bits >>> (64 - shift);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Whether no pixel is set.
+     */
+    public boolean isEmpty() {
+        for (long word : words) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get up to 64 bits of a row starting at any x, as the low bits of a word.
+     */
+    private long getBits(int x, int y, int n) {
+        int row = y * wordsPerRow;
+        int shift = x & 63;
+        long bits = words[row + (x >>> 6)] >>> shift;
+        if (shift != 0 && (x >>> 6) + 1 < wordsPerRow) {
+            bits |= words[row + (x >>> 6) + 1] << (64 - shift);
+        }
+        return n == 64 ? bits : bits & ((1L << n) - 1);
+    }
+
+    /**
+     * The bits of word {@code w} of a row that fall within {@code [x1, x2)}.
+     */
+    private static long rangeMask(int w, int x1, int x2) {
+        int start = Math.max(0, x1 - (w << 6));
+        int end = Math.min(64, x2 - (w << 6));
+        if (end <= start) {
+            return 0;
+        }
+        long upper = end == 64 ? -1L : (1L << end) - 1;
+        return upper & (-1L << start);
+    }
+}
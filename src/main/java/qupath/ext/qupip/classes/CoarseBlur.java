@@ -0,0 +1,200 @@
+package qupath.ext.qupip.classes;
+
+import ij.process.FloatProcessor;
+
+/**
+ * Gaussian blur computed at a coarser resolution and upsampled back.
+ * <p>
+ * A channel blurred with a large sigma has almost no high frequencies left, so it can be computed on a channel
+ * downsampled by an integer factor (by averaging blocks of pixels), blurred with a proportionally smaller sigma,
+ * and bilinearly upsampled into the original image. The block averaging and the bilinear interpolation each add
+ * a little smoothing of their own; the coarse sigma is reduced to compensate, so the overall blur keeps the
+ * requested sigma.
+ */
+public final class CoarseBlur {
+
+    /**
+     * Variance, in coarse pixels, added by block averaging (1/12) and bilinear interpolation (1/6).
+     */
+    private static final double RESAMPLING_VARIANCE = 0.25;
+
+    /**
+     * A blur applied to the coarse channel.
+     */
+    public interface Blur {
+        void blur(FloatProcessor fp, double sigma);
+    }
+
+    private CoarseBlur() {
+    }
+
+    /**
+     * Choose the downsample factor for a given sigma and error bound: the coarsest factor whose blur stays within
+     * {@code maxError} of the exact one (see {@link #getError(double, int)}).
+     *
+     * @param sigma The Gaussian sigma, in pixels of the full resolution channel.
+     * @param maxError The largest difference accepted from the exact blur, as a fraction of the range of the pixel
+     *                 values.
+     * @return The downsample factor, 1 if the blur should be computed at full resolution.
+     */
+    public static int chooseFactor(double sigma, double maxError) {
+        int factor = 1;
+        while (getError(sigma, factor + 1) <= maxError) {
+            factor++;
+        }
+        return factor;
+    }
+
+    /**
+     * Bound the difference between the blur at a downsample factor and the exact blur, as a fraction of the range of
+     * the pixel values.
+     * <p>
+     * Downsampling, blurring and upsampling are linear and separable, so along each axis every output pixel is a
+     * weighted sum of the input pixels, with weights depending only on its position within its block. The largest
+     * L1 distance between these weights and the exact Gaussian kernel bounds the difference of the 2D blurs: the
+     * weights are positive and sum to 1, so the 2D distance is at most twice the 1D distance, and a zero-sum
+     * difference of weights changes values within a range of 1 by at most half its L1 norm.
+     * The bound holds for a coarse blur that is an exact sampled Gaussian, at least 5 sigma from the image borders:
+     * nearer, the coarse blur replicates the mean of the edge block rather than the edge pixel, which differs by
+     * however much the edge pixels vary.
+     *
+     * @param sigma The Gaussian sigma, in pixels of the full resolution channel.
+     * @param factor The downsample factor.
+     * @return The bound, 0 for a factor of 1, or infinity if the factor is too coarse for the sigma.
+     */
+    static double getError(double sigma, int factor) {
+        if (factor <= 1) {
+            return 0;
+        }
+        double coarseVariance = sigma * sigma / ((double) factor * factor) - RESAMPLING_VARIANCE;
+        if (coarseVariance <= 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double[] coarseKernel = createKernel(Math.sqrt(coarseVariance));
+        double[] kernel = createKernel(sigma);
+        int coarseRadius = coarseKernel.length / 2;
+        int radius = kernel.length / 2;
+        double worst = 0;
+        for (int phase = 0; phase < factor; phase++) {
+            // The output pixel is at 'phase' in coarse block 0; input offsets are relative to it
+            double u = (phase + 0.5) / factor - 0.5;
+            int j0 = (int) Math.floor(u);
+            double t = u - j0;
+            int kStart = j0 - coarseRadius;
+            int kEnd = j0 + 1 + coarseRadius;
+            int mStart = Math.min(kStart * factor - phase, -radius);
+            int mEnd = Math.max(kEnd * factor + factor - 1 - phase, radius);
+            double[] weights = new double[mEnd - mStart + 1];
+            for (int k = kStart; k <= kEnd; k++) {
+                double w = ((1 - t) * getWeight(coarseKernel, j0 - k) + t * getWeight(coarseKernel, j0 + 1 - k))
+                        / factor;
+                for (int r = 0; r < factor; r++) {
+                    weights[k * factor + r - phase - mStart] += w;
+                }
+            }
+            double distance = 0;
+            for (int m = mStart; m <= mEnd; m++) {
+                distance += Math.abs(weights[m - mStart] - getWeight(kernel, m));
+            }
+            worst = Math.max(worst, distance);
+        }
+        return worst;
+    }
+
+    /**
+     * @return A sampled, normalised Gaussian kernel, truncated at 5 sigma.
+     */
+    private static double[] createKernel(double sigma) {
+        int radius = (int) Math.ceil(5 * sigma);
+        double[] kernel = new double[2 * radius + 1];
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            kernel[i + radius] = Math.exp(-0.5 * i * i / (sigma * sigma));
+            sum += kernel[i + radius];
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] /= sum;
+        }
+        return kernel;
+    }
+
+    private static double getWeight(double[] kernel, int offset) {
+        int radius = kernel.length / 2;
+        return Math.abs(offset) > radius ? 0 : kernel[offset + radius];
+    }
+
+    /**
+     * Blur a channel in place, at a resolution reduced by {@code factor}.
+     *
+     * @param fp The channel to blur.
+     * @param sigma The Gaussian sigma, in pixels of the full resolution channel.
+     * @param factor The downsample factor, usually from {@link #chooseFactor(double, double)}.
+     * @param blur The blur to apply to the coarse channel.
+     */
+    public static void blur(FloatProcessor fp, double sigma, int factor, Blur blur) {
+        int width = fp.getWidth();
+        int height = fp.getHeight();
+        float[] pixels = (float[]) fp.getPixels();
+        if (factor <= 1) {
+            blur.blur(fp, sigma);
+            return;
+        }
+        int coarseWidth = (width + factor - 1) / factor;
+        int coarseHeight = (height + factor - 1) / factor;
+        float[] coarse = downsample(pixels, width, height, factor, coarseWidth, coarseHeight);
+
+        double coarseSigma = Math.sqrt(Math.max(0, sigma * sigma / ((double) factor * factor) - RESAMPLING_VARIANCE));
+        blur.blur(new FloatProcessor(coarseWidth, coarseHeight, coarse), coarseSigma);
+
+        upsample(coarse, coarseWidth, coarseHeight, pixels, width, height, factor);
+    }
+
+    private static float[] downsample(float[] pixels, int width, int height, int factor,
+                                      int coarseWidth, int coarseHeight) {
+        float[] coarse = new float[coarseWidth * coarseHeight];
+        int[] counts = new int[coarseWidth * coarseHeight];
+        for (int y = 0; y < height; y++) {
+            int row = (y / factor) * coarseWidth;
+            for (int x = 0; x < width; x++) {
+                int c = row + x / factor;
+                coarse[c] += pixels[y * width + x];
+                counts[c]++;
+            }
+        }
+        for (int i = 0; i < coarse.length; i++) {
+            coarse[i] /= counts[i];
+        }
+        return coarse;
+    }
+
+    private static void upsample(float[] coarse, int coarseWidth, int coarseHeight,
+                                 float[] pixels, int width, int height, int factor) {
+        // Precompute the horizontal interpolation, which is the same for every row
+        int[] x0 = new int[width];
+        float[] wx = new float[width];
+        for (int x = 0; x < width; x++) {
+            double u = clip((x + 0.5) / factor - 0.5, coarseWidth - 1);
+            x0[x] = Math.min((int) u, Math.max(0, coarseWidth - 2));
+            wx[x] = (float) (u - x0[x]);
+        }
+        for (int y = 0; y < height; y++) {
+            double v = clip((y + 0.5) / factor - 0.5, coarseHeight - 1);
+            int y0 = Math.min((int) v, Math.max(0, coarseHeight - 2));
+            int y1 = Math.min(y0 + 1, coarseHeight - 1);
+            float wy = (float) (v - y0);
+            int row0 = y0 * coarseWidth;
+            int row1 = y1 * coarseWidth;
+            for (int x = 0; x < width; x++) {
+                int c0 = x0[x];
+                int c1 = Math.min(c0 + 1, coarseWidth - 1);
+                float top = coarse[row0 + c0] + wx[x] * (coarse[row0 + c1] - coarse[row0 + c0]);
+                float bottom = coarse[row1 + c0] + wx[x] * (coarse[row1 + c1] - coarse[row1 + c0]);
+                pixels[y * width + x] = top + wy * (bottom - top);
+            }
+        }
+    }
+
+    private static double clip(double value, double max) {
+        return Math.max(0, Math.min(max, value));
+    }
+}
@@ -0,0 +1,437 @@
+package qupath.ext.qupip.classes;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Vectorises a mask tile by tile, so that a whole-slide mask becomes a single geometry without ever being held
+ * in memory at full resolution.
+ * <p>
+ * Each tile traces the mask of its core with {@link MaskTracer}. Rings lying inside the core are kept as they are.
+ * Rings touching the border with a neighbouring tile are cut there, leaving open chains whose ends lie on the
+ * border, and the tile keeps only its border rows and columns of pixels. Once every tile has been added, the
+ * pixel edges along each seam are resolved from the pixels on both sides (an edge remains where only one side is
+ * set), and the chains and seam edges are joined end to end into closed rings. Where several pieces start at the
+ * same corner (pixels touching diagonally), the walk turns right, which keeps diagonal pixels apart as
+ * {@link MaskTracer} does. The result only depends on the mask, not on the order in which tiles are added.
+ */
+public class ContourStitcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContourStitcher.class);
+
+    // Directions, as in MaskTracer: east, south, west, north
+    private static final int EAST = 0;
+    private static final int SOUTH = 1;
+    private static final int WEST = 2;
+    private static final int NORTH = 3;
+
+    private final int nColumns;
+    private final int nRows;
+    private final TileContours[] tiles;
+    private int unclosedOutlines = 0;
+
+    /**
+     * @param nColumns The number of columns of tiles.
+     * @param nRows The number of rows of tiles.
+     */
+    public ContourStitcher(int nColumns, int nRows) {
+        this.nColumns = nColumns;
+        this.nRows = nRows;
+        this.tiles = new TileContours[nColumns * nRows];
+    }
+
+    /**
+     * Trace the core of a tile. This can run on any thread.
+     *
+     * @param index The index of the tile, in raster order.
+     * @param mask The mask of the tile, including its halo.
+     * @param core The core of the tile, in the pixel coordinates of the mask.
+     * @param grid The core of the tile, in the pixel coordinates of the whole slide; if its size differs from
+     *             the core by rounding, the core is cropped or padded so that neighbouring tiles meet exactly.
+     * @return The contours of the tile.
+     */
+    public TileContours trace(int index, BitMask mask, Rectangle core, Rectangle grid) {
+        int column = index % nColumns;
+        int row = index / nColumns;
+        boolean[] open = {row > 0, row < nRows - 1, column > 0, column < nColumns - 1};
+        int width = grid.width;
+        int height = grid.height;
+
+        int w = Math.min(width, Math.min(core.width, mask.getWidth() - core.x));
+        int h = Math.min(height, Math.min(core.height, mask.getHeight() - core.y));
+        BitMask coreMask;
+        if (w == width && h == height) {
+            coreMask = mask.getRegion(new Rectangle(core.x, core.y, width, height));
+        } else {
+            // The image is smaller than the core on the grid, so pad it
+            coreMask = new BitMask(width, height);
+            if (w > 0 && h > 0) {
+                coreMask.orRegion(mask.getRegion(new Rectangle(core.x, core.y, w, h)), 0, 0);
+            }
+        }
+
+        TileContours contours = new TileContours(grid.x, grid.y, width, height);
+        contours.top = coreMask.getRegion(new Rectangle(0, 0, width, 1));
+        contours.bottom = coreMask.getRegion(new Rectangle(0, height - 1, width, 1));
+        contours.left = coreMask.getRegion(new Rectangle(0, 0, 1, height));
+        contours.right = coreMask.getRegion(new Rectangle(width - 1, 0, 1, height));
+        for (MaskTracer.Ring ring : MaskTracer.traceRings(coreMask)) {
+            cutRing(ring, contours, open);
+        }
+        return contours;
+    }
+
+    /**
+     * Cut a ring where it runs along the border with a neighbouring tile, keeping the pieces in between as chains.
+     */
+    private static void cutRing(MaskTracer.Ring ring, TileContours contours, boolean[] open) {
+        int n = ring.xs.length;
+        int firstBorder = -1;
+        for (int i = 0; i < n && firstBorder < 0; i++) {
+            if (isOnOpenBorder(ring, i, contours.width, contours.height, open)) {
+                firstBorder = i;
+            }
+        }
+        int[] xs = new int[n];
+        int[] ys = new int[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = ring.xs[i] + contours.x;
+            ys[i] = ring.ys[i] + contours.y;
+        }
+        if (firstBorder < 0) {
+            contours.rings.add(new MaskTracer.Ring(xs, ys));
+            return;
+        }
+        // Edge i runs from corner i to corner i + 1
+        MaskTracer.IntList chainXs = new MaskTracer.IntList();
+        MaskTracer.IntList chainYs = new MaskTracer.IntList();
+        for (int k = 1; k <= n; k++) {
+            int i = (firstBorder + k) % n;
+            int j = (i + 1) % n;
+            if (isOnOpenBorder(ring, i, contours.width, contours.height, open)) {
+                if (chainXs.size() > 0) {
+                    contours.chains.add(new Piece(chainXs.toArray(), chainYs.toArray()));
+                    chainXs = new MaskTracer.IntList();
+                    chainYs = new MaskTracer.IntList();
+                }
+                continue;
+            }
+            if (chainXs.size() == 0) {
+                chainXs.add(xs[i]);
+                chainYs.add(ys[i]);
+            }
+            chainXs.add(xs[j]);
+            chainYs.add(ys[j]);
+        }
+    }
+
+    private static boolean isOnOpenBorder(MaskTracer.Ring ring, int i, int width, int height, boolean[] open) {
+        int j = (i + 1) % ring.xs.length;
+        int x1 = ring.xs[i];
+        int y1 = ring.ys[i];
+        int x2 = ring.xs[j];
+        int y2 = ring.ys[j];
+        return (open[0] && y1 == 0 && y2 == 0) ||
+                (open[1] && y1 == height && y2 == height) ||
+                (open[2] && x1 == 0 && x2 == 0) ||
+                (open[3] && x1 == width && x2 == width);
+    }
+
+    /**
+     * Add the contours of a tile. Tiles that are never added are treated as empty.
+     *
+     * @param index The index of the tile, in raster order.
+     * @param contours The contours of the tile.
+     */
+    public synchronized void add(int index, TileContours contours) {
+        tiles[index] = contours;
+    }
+
+    /**
+     * Join the contours of all tiles into one geometry.
+     *
+     * @param scale The size of a pixel in slide coordinates, i.e. the downsample.
+     * @param filter The filter of small fragments and holes applied to the stitched rings, or null to keep them.
+     * @param simplifier The simplifier applied to the stitched rings, or null to keep every corner.
+     * @param factory The factory creating the geometry.
+     * @return A polygon or multipolygon, empty if no pixel is set.
+     * @see #getUnclosedOutlines()
+     */
+    public synchronized Geometry stitch(double scale, FragmentFilter filter, RingSimplifier simplifier,
+                                        GeometryFactory factory) {
+        List<MaskTracer.Ring> rings = new ArrayList<>();
+        List<Piece> pieces = new ArrayList<>();
+        for (int index = 0; index < tiles.length; index++) {
+            TileContours tile = tiles[index];
+            if (tile != null) {
+                rings.addAll(tile.rings);
+                pieces.addAll(tile.chains);
+            }
+            int column = index % nColumns;
+            int row = index / nColumns;
+            if (column < nColumns - 1) {
+                addVerticalSeam(tile, tiles[index + 1], pieces);
+            }
+            if (row < nRows - 1) {
+                addHorizontalSeam(tile, tiles[index + nColumns], pieces);
+            }
+        }
+        unclosedOutlines = joinPieces(pieces, rings);
+        return MaskTracer.createGeometry(rings, 0, 0, scale, filter, simplifier, factory);
+    }
+
+    /**
+     * @return The number of outlines the last {@link #stitch} could not close, which should always be 0; each was
+     *         closed by a straight edge back to its start, so the geometry may be off along that edge.
+     */
+    public synchronized int getUnclosedOutlines() {
+        return unclosedOutlines;
+    }
+
+    /**
+     * Add the edges along the seam between a tile and its right-hand neighbour.
+     */
+    private static void addVerticalSeam(TileContours left, TileContours right, List<Piece> pieces) {
+        if (left == null && right == null) {
+            return;
+        }
+        TileContours tile = left != null ? left : right;
+        int x = right != null ? right.x : left.x + left.width;
+        int start = 0;
+        int runType = 0;
+        for (int j = 0; j <= tile.height; j++) {
+            int type = 0;
+            if (j < tile.height) {
+                boolean a = left != null && left.right.get(0, j);
+                boolean b = right != null && right.left.get(0, j);
+                type = a == b ? 0 : a ? 1 : -1;
+            }
+            if (type != runType) {
+                // Right edges of the left tile run south, left edges of the right tile run north
+                if (runType == 1) {
+                    pieces.add(new Piece(new int[]{x, x}, new int[]{tile.y + start, tile.y + j}));
+                } else if (runType == -1) {
+                    pieces.add(new Piece(new int[]{x, x}, new int[]{tile.y + j, tile.y + start}));
+                }
+                start = j;
+                runType = type;
+            }
+        }
+    }
+
+    /**
+     * Add the edges along the seam between a tile and its neighbour below.
+     */
+    private static void addHorizontalSeam(TileContours top, TileContours bottom, List<Piece> pieces) {
+        if (top == null && bottom == null) {
+            return;
+        }
+        TileContours tile = top != null ? top : bottom;
+        int y = bottom != null ? bottom.y : top.y + top.height;
+        int start = 0;
+        int runType = 0;
+        for (int i = 0; i <= tile.width; i++) {
+            int type = 0;
+            if (i < tile.width) {
+                boolean a = top != null && top.bottom.get(i, 0);
+                boolean b = bottom != null && bottom.top.get(i, 0);
+                type = a == b ? 0 : a ? 1 : -1;
+            }
+            if (type != runType) {
+                // Bottom edges of the upper tile run west, top edges of the lower tile run east
+                if (runType == 1) {
+                    pieces.add(new Piece(new int[]{tile.x + i, tile.x + start}, new int[]{y, y}));
+                } else if (runType == -1) {
+                    pieces.add(new Piece(new int[]{tile.x + start, tile.x + i}, new int[]{y, y}));
+                }
+                start = i;
+                runType = type;
+            }
+        }
+    }
+
+    /**
+     * Join the pieces end to end into closed rings.
+     *
+     * @return The number of outlines that could not be closed.
+     */
+    private static int joinPieces(List<Piece> pieces, List<MaskTracer.Ring> rings) {
+        int unclosed = 0;
+        Map<Long, List<Piece>> byStart = new HashMap<>();
+        for (Piece piece : pieces) {
+            byStart.computeIfAbsent(key(piece.xs[0], piece.ys[0]), k -> new ArrayList<>(1)).add(piece);
+        }
+        for (Piece first : pieces) {
+            if (first.used) {
+                continue;
+            }
+            MaskTracer.IntList xs = new MaskTracer.IntList();
+            MaskTracer.IntList ys = new MaskTracer.IntList();
+            Piece piece = first;
+            while (true) {
+                piece.used = true;
+                for (int i = xs.size() == 0 ? 0 : 1; i < piece.xs.length; i++) {
+                    xs.add(piece.xs[i]);
+                    ys.add(piece.ys[i]);
+                }
+                Piece next = choosePiece(piece, byStart.get(key(piece.xs[piece.xs.length - 1],
+                        piece.ys[piece.ys.length - 1])), first);
+                if (next == null) {
+                    logger.warn("Contour stitching: an outline could not be closed at ({}, {})",
+                            piece.xs[piece.xs.length - 1], piece.ys[piece.ys.length - 1]);
+                    unclosed++;
+                    break;
+                }
+                if (next == first) {
+                    // The last corner is the first one
+                    xs.truncate(xs.size() - 1);
+                    ys.truncate(ys.size() - 1);
+                    break;
+                }
+                piece = next;
+            }
+            addRings(xs, ys, rings);
+        }
+        return unclosed;
+    }
+
+    /**
+     * Choose the piece to follow at the end of another: turn right if possible, then go straight, then turn left.
+     * The first piece of the ring is a candidate so that the ring can close.
+     */
+    private static Piece choosePiece(Piece piece, List<Piece> candidates, Piece first) {
+        if (candidates == null) {
+            return null;
+        }
+        int direction = piece.getEndDirection();
+        Piece best = null;
+        int bestTurn = Integer.MAX_VALUE;
+        for (Piece candidate : candidates) {
+            if (candidate.used && candidate != first) {
+                continue;
+            }
+            // 0 for a right turn, 1 straight on, 2 for a left turn
+            int turn = ((direction + 1 - candidate.getStartDirection()) & 3);
+            if (turn < bestTurn) {
+                best = candidate;
+                bestTurn = turn;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Drop the corners where two pieces meet in a straight line, and split the ring where it passes twice through
+     * the same corner, so that every ring is simple.
+     */
+    private static void addRings(MaskTracer.IntList xs, MaskTracer.IntList ys, List<MaskTracer.Ring> rings) {
+        int n = xs.size();
+        MaskTracer.IntList cornerXs = new MaskTracer.IntList();
+        MaskTracer.IntList cornerYs = new MaskTracer.IntList();
+        for (int i = 0; i < n; i++) {
+            int previous = (i + n - 1) % n;
+            int next = (i + 1) % n;
+            boolean straight = (xs.get(previous) == xs.get(i) && xs.get(i) == xs.get(next)) ||
+                    (ys.get(previous) == ys.get(i) && ys.get(i) == ys.get(next));
+            if (!straight) {
+                cornerXs.add(xs.get(i));
+                cornerYs.add(ys.get(i));
+            }
+        }
+
+        Map<Long, Integer> positions = new HashMap<>();
+        MaskTracer.IntList ringXs = new MaskTracer.IntList();
+        MaskTracer.IntList ringYs = new MaskTracer.IntList();
+        for (int i = 0; i < cornerXs.size(); i++) {
+            ringXs.add(cornerXs.get(i));
+            ringYs.add(cornerYs.get(i));
+            long key = key(cornerXs.get(i), cornerYs.get(i));
+            Integer previous = positions.remove(key);
+            if (previous != null) {
+                rings.add(new MaskTracer.Ring(ringXs.slice(previous + 1, ringXs.size()),
+                        ringYs.slice(previous + 1, ringYs.size())));
+                for (int j = previous + 1; j < ringXs.size() - 1; j++) {
+                    positions.remove(key(ringXs.get(j), ringYs.get(j)), j);
+                }
+                ringXs.truncate(previous + 1);
+                ringYs.truncate(previous + 1);
+            } else {
+                positions.put(key, ringXs.size() - 1);
+            }
+        }
+        if (ringXs.size() >= 4) {
+            rings.add(new MaskTracer.Ring(ringXs.toArray(), ringYs.toArray()));
+        }
+    }
+
+    private static long key(int x, int y) {
+        return ((long) y << 32) | (x & 0xFFFFFFFFL);
+    }
+
+    /**
+     * The contours of one tile: the rings inside its core, the chains cut at its borders with other tiles, and
+     * its border pixels, all in the pixel coordinates of the whole slide.
+     */
+    public static class TileContours {
+
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+        private final List<MaskTracer.Ring> rings = new ArrayList<>();
+        private final List<Piece> chains = new ArrayList<>();
+        private BitMask top;
+        private BitMask bottom;
+        private BitMask left;
+        private BitMask right;
+
+        private TileContours(int x, int y, int width, int height) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * An open path of pixel edges, through its corners.
+     */
+    private static class Piece {
+
+        private final int[] xs;
+        private final int[] ys;
+        private boolean used = false;
+
+        private Piece(int[] xs, int[] ys) {
+            this.xs = xs;
+            this.ys = ys;
+        }
+
+        private int getStartDirection() {
+            return direction(xs[0], ys[0], xs[1], ys[1]);
+        }
+
+        private int getEndDirection() {
+            int n = xs.length;
+            return direction(xs[n - 2], ys[n - 2], xs[n - 1], ys[n - 1]);
+        }
+
+        private static int direction(int x1, int y1, int x2, int y2) {
+            if (x2 > x1) {
+                return EAST;
+            }
+            if (y2 > y1) {
+                return SOUTH;
+            }
+            return x2 < x1 ? WEST : NORTH;
+        }
+    }
+}
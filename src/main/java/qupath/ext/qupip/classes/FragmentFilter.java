@@ -0,0 +1,259 @@
+package qupath.ext.qupip.classes;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Removes small fragments and fills small holes of a mask, before it is vectorised.
+ * <p>
+ * Fragments are the connected components of the mask, with 4-connectivity as in {@link MaskTracer}, and holes
+ * the connected components of the background that do not touch the border of the mask, with 8-connectivity: a
+ * gap closed only by fragments touching at their corners is not a hole, just as it is not a hole of any polygon.
+ * Small fragments are removed first, so a hole that only held small fragments can then be filled. Components are
+ * labelled on the runs of a {@link RunLengthMask}, in time proportional to the number of runs.
+ * <p>
+ * When the mask is never held in one piece (see {@link ContourStitcher}), the same filter is applied to the traced
+ * rings instead, whose areas are the pixel counts of the fragments and holes they bound.
+ */
+public class FragmentFilter {
+
+    private final double minFragment;
+    private final double maxHole;
+
+    /**
+     * @param minFragment The smallest area of a fragment to keep, in pixels of the mask; 0 to keep them all.
+     * @param maxHole The area of a hole from which it is kept, in pixels of the mask: smaller holes are filled,
+     *                as in QuPath's annotation refinement; 0 to fill none.
+     */
+    public FragmentFilter(double minFragment, double maxHole) {
+        this.minFragment = minFragment;
+        this.maxHole = maxHole;
+    }
+
+    /**
+     * @return The smallest area of a fragment to keep, in pixels.
+     */
+    public double getMinFragment() {
+        return minFragment;
+    }
+
+    /**
+     * @return The area of a hole from which it is kept, in pixels.
+     */
+    public double getMaxHole() {
+        return maxHole;
+    }
+
+    /**
+     * Filter a mask.
+     *
+     * @param mask The mask.
+     * @return A new mask, without the small fragments and with the small holes filled.
+     */
+    public BitMask apply(BitMask mask) {
+        RunLengthMask runs = RunLengthMask.fromBitMask(mask);
+        if (minFragment > 0) {
+            runs = runs.retainRuns(selectComponents(runs, false, false, minFragment, Double.POSITIVE_INFINITY));
+        }
+        if (maxHole > 0) {
+            RunLengthMask background = runs.not();
+            runs = runs.union(background.retainRuns(selectComponents(background, true, true, 0, maxHole)));
+        }
+        return runs.toBitMask();
+    }
+
+    /**
+     * Filter traced rings the way {@link #apply(BitMask)} filters a mask. The area of a fragment is the area of its
+     * outer ring less its holes, and the area of a hole is the area of its ring less the fragments inside it.
+     * Rings meeting at a corner join the background on either side of it, so holes touching other holes, or the
+     * outside of a fragment, at a corner are one hole, filled or kept together.
+     * Removing a fragment hands the fragments in its holes to the hole around it; filling a hole merges the
+     * fragments inside it into the outer ring of the hole, which takes over their holes.
+     *
+     * @param shells The outer rings, updated in place.
+     * @param holes All the holes.
+     * @param holesByShell The holes of each outer ring, updated in place.
+     */
+    void filterRings(List<MaskTracer.Ring> shells, List<MaskTracer.Ring> holes,
+                     Map<MaskTracer.Ring, List<MaskTracer.Ring>> holesByShell) {
+        Map<MaskTracer.Ring, MaskTracer.Ring> owners = new HashMap<>();
+        holesByShell.forEach((shell, shellHoles) -> shellHoles.forEach(hole -> owners.put(hole, shell)));
+        // The hole each outer ring lies in, i.e. the smallest hole containing one of its pixels
+        List<MaskTracer.Ring> sortedHoles = new ArrayList<>(holes);
+        sortedHoles.sort(Comparator.comparingLong(hole -> -hole.area));
+        MaskTracer.RingIndex holeIndex = new MaskTracer.RingIndex(sortedHoles);
+        Map<MaskTracer.Ring, MaskTracer.Ring> parents = new HashMap<>();
+        for (MaskTracer.Ring shell : shells) {
+            MaskTracer.Ring parent = holeIndex.findFirst(shell.interiorX(), shell.interiorY());
+            if (parent != null) {
+                parents.put(shell, parent);
+            }
+        }
+
+        Set<MaskTracer.Ring> removed = new HashSet<>();
+        for (MaskTracer.Ring shell : shells) {
+            long area = shell.area;
+            for (MaskTracer.Ring hole : holesByShell.getOrDefault(shell, List.of())) {
+                area += hole.area;
+            }
+            if (area < minFragment) {
+                removed.add(shell);
+            }
+        }
+
+        Map<MaskTracer.Ring, Long> backgroundAreas = new HashMap<>();
+        Map<MaskTracer.Ring, MaskTracer.Ring> effectiveParents = new HashMap<>();
+        for (MaskTracer.Ring shell : shells) {
+            MaskTracer.Ring parent = parents.get(shell);
+            while (parent != null && removed.contains(owners.get(parent))) {
+                parent = parents.get(owners.get(parent));
+            }
+            if (parent != null) {
+                effectiveParents.put(shell, parent);
+                if (!removed.contains(shell)) {
+                    backgroundAreas.merge(parent, shell.area, Long::sum);
+                }
+            }
+        }
+
+        // The background regions, i.e. the holes left and the outside, joined where their rings meet at a corner
+        Map<MaskTracer.Ring, Integer> holeIndices = new HashMap<>();
+        for (int h = 0; h < holes.size(); h++) {
+            holeIndices.put(holes.get(h), h);
+        }
+        int outside = holes.size();
+        int[] regions = new int[holes.size() + 1];
+        for (int r = 0; r < regions.length; r++) {
+            regions[r] = r;
+        }
+        Map<Long, Integer> corners = new HashMap<>();
+        for (MaskTracer.Ring shell : shells) {
+            MaskTracer.Ring parent = effectiveParents.get(shell);
+            int region = parent == null ? outside : holeIndices.get(parent);
+            joinCorners(shell, region, corners, regions);
+            // The holes of a removed fragment are part of the background around it
+            for (MaskTracer.Ring hole : holesByShell.getOrDefault(shell, List.of())) {
+                joinCorners(hole, removed.contains(shell) ? region : holeIndices.get(hole), corners, regions);
+            }
+        }
+        long[] regionAreas = new long[regions.length];
+        for (MaskTracer.Ring hole : holes) {
+            if (!removed.contains(owners.get(hole))) {
+                regionAreas[find(regions, holeIndices.get(hole))] +=
+                        -hole.area - backgroundAreas.getOrDefault(hole, 0L);
+            }
+        }
+        Set<MaskTracer.Ring> filled = new HashSet<>();
+        for (MaskTracer.Ring hole : holes) {
+            int region = find(regions, holeIndices.get(hole));
+            if (!removed.contains(owners.get(hole)) && region != find(regions, outside) &&
+                    regionAreas[region] < maxHole) {
+                filled.add(hole);
+            }
+        }
+
+        Map<MaskTracer.Ring, List<MaskTracer.Ring>> filtered = new HashMap<>();
+        List<MaskTracer.Ring> kept = new ArrayList<>();
+        for (MaskTracer.Ring shell : shells) {
+            if (removed.contains(shell)) {
+                continue;
+            }
+            MaskTracer.Ring target = getTarget(shell, effectiveParents, filled, owners);
+            if (target == shell) {
+                kept.add(shell);
+            }
+            for (MaskTracer.Ring hole : holesByShell.getOrDefault(shell, List.of())) {
+                if (!filled.contains(hole)) {
+                    filtered.computeIfAbsent(target, s -> new ArrayList<>()).add(hole);
+                }
+            }
+        }
+        shells.clear();
+        shells.addAll(kept);
+        holesByShell.clear();
+        holesByShell.putAll(filtered);
+    }
+
+    /**
+     * Join the background region a ring borders with those of the rings it meets at a corner, whose background
+     * pixels touch diagonally.
+     */
+    private static void joinCorners(MaskTracer.Ring ring, int region, Map<Long, Integer> corners, int[] regions) {
+        for (int i = 0; i < ring.xs.length; i++) {
+            Integer other = corners.putIfAbsent(key(ring, i), region);
+            if (other != null) {
+                int a = find(regions, region);
+                int b = find(regions, other);
+                regions[Math.max(a, b)] = Math.min(a, b);
+            }
+        }
+    }
+
+    private static long key(MaskTracer.Ring ring, int i) {
+        return ((long) ring.ys[i] << 32) | (ring.xs[i] & 0xFFFFFFFFL);
+    }
+
+    private static int find(int[] parents, int h) {
+        while (parents[h] != h) {
+            parents[h] = parents[parents[h]];
+            h = parents[h];
+        }
+        return h;
+    }
+
+    /**
+     * @return The outer ring a fragment ends up part of: itself, or the outer ring of the filled hole it lies in.
+     */
+    private static MaskTracer.Ring getTarget(MaskTracer.Ring shell,
+                                             Map<MaskTracer.Ring, MaskTracer.Ring> effectiveParents,
+                                             Set<MaskTracer.Ring> filled,
+                                             Map<MaskTracer.Ring, MaskTracer.Ring> owners) {
+        MaskTracer.Ring parent = effectiveParents.get(shell);
+        while (parent != null && filled.contains(parent)) {
+            shell = owners.get(parent);
+            parent = effectiveParents.get(shell);
+        }
+        return shell;
+    }
+
+    /**
+     * Select the runs of the components whose area is at least {@code minArea} and less than {@code maxArea}.
+     *
+     * @param eightConnected Whether pixels touching diagonally are connected.
+     * @param excludeBorder Whether to leave out the components touching the border of the mask.
+     */
+    private static boolean[] selectComponents(RunLengthMask runs, boolean eightConnected, boolean excludeBorder,
+                                              double minArea, double maxArea) {
+        int[] labels = runs.labelRuns(eightConnected);
+        int nLabels = 0;
+        for (int label : labels) {
+            nLabels = Math.max(nLabels, label + 1);
+        }
+        long[] areas = new long[nLabels];
+        boolean[] onBorder = new boolean[nLabels];
+        int width = runs.getWidth();
+        int height = runs.getHeight();
+        int r = 0;
+        for (int y = 0; y < height; y++) {
+            for (int i = 0; i < runs.getRunCount(y); i++, r++) {
+                int start = runs.getRunStart(y, i);
+                int end = runs.getRunEnd(y, i);
+                areas[labels[r]] += end - start;
+                if (y == 0 || y == height - 1 || start == 0 || end == width) {
+                    onBorder[labels[r]] = true;
+                }
+            }
+        }
+        boolean[] keep = new boolean[labels.length];
+        for (r = 0; r < labels.length; r++) {
+            int label = labels[r];
+            keep[r] = areas[label] >= minArea && areas[label] < maxArea && !(excludeBorder && onBorder[label]);
+        }
+        return keep;
+    }
+}
@@ -0,0 +1,537 @@
+package qupath.ext.qupip.classes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Shape and intensity measurements of every fragment of a mask, i.e. of every connected component
+ * (4-connectivity, as in {@link MaskTracer}).
+ * <p>
+ * Fragments are labelled on the runs of a {@link RunLengthMask} with a two-pass union-find split into stripes of
+ * rows, which are run on a {@link ForkJoinPool}: the first pass joins the runs within each stripe, the seams
+ * between stripes are then joined, and the second pass resolves the label of every run. All measurements are then
+ * gathered in a single pass over the runs and the stain pixels, without a label image:
+ * <ul>
+ *     <li>the area and the intensity statistics, from the pixels of each run;</li>
+ *     <li>the perimeter, from the pixel edges of the outline, with each corner cut diagonally (the outline through
+ *     the middle of the pixel edges), so that slanted outlines are not measured as staircases;</li>
+ *     <li>the convex hull of the pixels, built one row at a time from the leftmost and rightmost pixels of each
+ *     row, which gives the solidity and, with rotating calipers, the largest and smallest Feret diameters.</li>
+ * </ul>
+ */
+public class FragmentMorphometry {
+
+    /**
+     * Stripes per pool thread, so that threads finishing early can pick up more work.
+     */
+    private static final int STRIPES_PER_THREAD = 4;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param nThreads The number of threads of the pool.
+     */
+    public FragmentMorphometry(int nThreads) {
+        this.pool = new ForkJoinPool(Math.max(1, nThreads));
+    }
+
+    /**
+     * Label the fragments of a mask.
+     *
+     * @param runs The mask.
+     * @return The label of each run, as {@link RunLengthMask#labelRuns(boolean)} with 4-connectivity.
+     */
+    public int[] label(RunLengthMask runs) {
+        int height = runs.getHeight();
+        int nRuns = runs.getRunCount();
+        if (nRuns == 0) {
+            return new int[0];
+        }
+        int[] parents = new int[nRuns];
+        int[] stripeStarts = getStripeStarts(height);
+        int nStripes = stripeStarts.length - 1;
+
+        // First pass: join the runs of each stripe, which only touches the runs of the stripe
+        runStripes(stripeStarts, (start, end) -> {
+            for (int r = runs.getFirstRun(start); r < runs.getFirstRun(end); r++) {
+                parents[r] = r;
+            }
+            runs.joinRows(parents, start + 1, end, false);
+        });
+        for (int s = 1; s < nStripes; s++) {
+            runs.joinRows(parents, stripeStarts[s], stripeStarts[s] + 1, false);
+        }
+
+        // Second pass: find the root of every run, then number the roots in order, stripe by stripe
+        int[] roots = new int[nRuns];
+        int[] rootCounts = new int[nStripes + 1];
+        runStripes(stripeStarts, (start, end) -> {
+            int count = 0;
+            for (int r = runs.getFirstRun(start); r < runs.getFirstRun(end); r++) {
+                int root = r;
+                while (parents[root] != root) {
+                    root = parents[root];
+                }
+                roots[r] = root;
+                if (root == r) {
+                    count++;
+                }
+            }
+            rootCounts[getStripe(stripeStarts, start) + 1] = count;
+        });
+        for (int s = 0; s < nStripes; s++) {
+            rootCounts[s + 1] += rootCounts[s];
+        }
+        int[] labels = new int[nRuns];
+        runStripes(stripeStarts, (start, end) -> {
+            int next = rootCounts[getStripe(stripeStarts, start)];
+            for (int r = runs.getFirstRun(start); r < runs.getFirstRun(end); r++) {
+                if (roots[r] == r) {
+                    labels[r] = next++;
+                }
+            }
+        });
+        // Roots are the first run of their fragment, so every root is numbered before the runs pointing to it
+        runStripes(stripeStarts, (start, end) -> {
+            for (int r = runs.getFirstRun(start); r < runs.getFirstRun(end); r++) {
+                labels[r] = labels[roots[r]];
+            }
+        });
+        return labels;
+    }
+
+    /**
+     * Measure the fragments of a mask.
+     *
+     * @param mask The mask.
+     * @param pixels The stain pixels the mask was made from, row by row.
+     * @param pixelWidth The width of a pixel, e.g. in microns.
+     * @param pixelHeight The height of a pixel.
+     * @return The fragments, in the order of their first pixel.
+     */
+    public List<Fragment> measure(BitMask mask, float[] pixels, double pixelWidth, double pixelHeight) {
+        RunLengthMask runs = RunLengthMask.fromBitMask(mask);
+        int[] labels = label(runs);
+        int nLabels = 0;
+        for (int label : labels) {
+            nLabels = Math.max(nLabels, label + 1);
+        }
+        int width = runs.getWidth();
+        int height = runs.getHeight();
+        Accumulator[] accumulators = new Accumulator[nLabels];
+        int[] touched = new int[nLabels];
+        for (int y = 0; y <= height; y++) {
+            if (y < height) {
+                int nTouched = 0;
+                for (int r = runs.getFirstRun(y); r < runs.getFirstRun(y + 1); r++) {
+                    int start = runs.getStart(r);
+                    int end = runs.getEnd(r);
+                    Accumulator accumulator = accumulators[labels[r]];
+                    if (accumulator == null) {
+                        accumulator = new Accumulator(y * width + start);
+                        accumulators[labels[r]] = accumulator;
+                    }
+                    accumulator.addPixels(pixels, y * width, start, end);
+                    if (accumulator.row != y) {
+                        accumulator.row = y;
+                        accumulator.rowMin = start;
+                        touched[nTouched++] = labels[r];
+                    }
+                    accumulator.rowMax = end;
+                }
+                for (int i = 0; i < nTouched; i++) {
+                    accumulators[touched[i]].addRow(y);
+                }
+            }
+            addLineEdges(runs, labels, accumulators, y);
+        }
+
+        double diagonal = Math.hypot(pixelWidth, pixelHeight) / 2;
+        List<Fragment> fragments = new ArrayList<>(nLabels);
+        for (Accumulator accumulator : accumulators) {
+            fragments.add(accumulator.finish(pixelWidth, pixelHeight, diagonal));
+        }
+        return fragments;
+    }
+
+    /**
+     * Count the horizontal pixel edges and the corners of the outlines on the line between rows {@code y - 1} and
+     * {@code y}, sweeping over the run boundaries of both rows in order. The pixels on either side of the line only
+     * change at run boundaries, so these are the only places where the outline can turn.
+     */
+    private static void addLineEdges(RunLengthMask runs, int[] labels, Accumulator[] accumulators, int y) {
+        int height = runs.getHeight();
+        int aFirst = y > 0 ? runs.getFirstRun(y - 1) : 0;
+        int aEnd = 2 * (y > 0 ? runs.getFirstRun(y) - aFirst : 0);
+        int bFirst = y < height ? runs.getFirstRun(y) : 0;
+        int bEnd = 2 * (y < height ? runs.getFirstRun(y + 1) - bFirst : 0);
+        // a and b index the next boundary of the rows above and below: even indices are starts, odd indices are ends
+        int a = 0;
+        int b = 0;
+        int lastX = 0;
+        while (a < aEnd || b < bEnd) {
+            int xa = a < aEnd ? getBoundary(runs, aFirst, a) : Integer.MAX_VALUE;
+            int xb = b < bEnd ? getBoundary(runs, bFirst, b) : Integer.MAX_VALUE;
+            int x = Math.min(xa, xb);
+            // The runs holding the pixels left of x, or -1
+            int aLeft = (a & 1) == 1 ? aFirst + a / 2 : -1;
+            int bLeft = (b & 1) == 1 ? bFirst + b / 2 : -1;
+            if ((aLeft < 0) != (bLeft < 0)) {
+                accumulators[labels[Math.max(aLeft, bLeft)]].horizontalEdges += x - lastX;
+            }
+            if (xa == x) {
+                a++;
+            }
+            if (xb == x) {
+                b++;
+            }
+            // The runs holding the pixels right of x, or -1
+            int aRight = (a & 1) == 1 ? aFirst + a / 2 : -1;
+            int bRight = (b & 1) == 1 ? bFirst + b / 2 : -1;
+            int n = (aLeft >= 0 ? 1 : 0) + (aRight >= 0 ? 1 : 0) + (bLeft >= 0 ? 1 : 0) + (bRight >= 0 ? 1 : 0);
+            if (n == 1 || n == 3) {
+                // One convex or concave corner; the pixels of an L are all 4-connected
+                int run = Math.max(Math.max(aLeft, aRight), Math.max(bLeft, bRight));
+                accumulators[labels[run]].corners++;
+            } else if (n == 2 && (aLeft >= 0) == (bRight >= 0) && (aRight >= 0) == (bLeft >= 0)) {
+                // Two pixels touching diagonally: a convex corner of each
+                accumulators[labels[Math.max(aLeft, bLeft)]].corners++;
+                accumulators[labels[Math.max(aRight, bRight)]].corners++;
+            }
+            lastX = x;
+        }
+    }
+
+    private static int getBoundary(RunLengthMask runs, int firstRun, int k) {
+        return (k & 1) == 0 ? runs.getStart(firstRun + k / 2) : runs.getEnd(firstRun + k / 2);
+    }
+
+    /**
+     * Stop the threads of the pool.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private int[] getStripeStarts(int height) {
+        int nStripes = Math.max(1, Math.min(height, pool.getParallelism() * STRIPES_PER_THREAD));
+        int step = Math.max(1, (height + nStripes - 1) / nStripes);
+        int[] starts = new int[(height + step - 1) / step + 1];
+        for (int s = 0; s < starts.length; s++) {
+            starts[s] = Math.min(height, s * step);
+        }
+        return starts;
+    }
+
+    private static int getStripe(int[] stripeStarts, int start) {
+        return Arrays.binarySearch(stripeStarts, 0, stripeStarts.length - 1, start);
+    }
+
+    private interface StripeTask {
+        void run(int start, int end);
+    }
+
+    private void runStripes(int[] stripeStarts, StripeTask task) {
+        int nStripes = stripeStarts.length - 1;
+        if (nStripes <= 1) {
+            task.run(0, stripeStarts[nStripes]);
+            return;
+        }
+        List<Callable<Void>> stripes = new ArrayList<>();
+        for (int s = 0; s < nStripes; s++) {
+            int stripeStart = stripeStarts[s];
+            int stripeEnd = stripeStarts[s + 1];
+            stripes.add(() -> {
+                task.run(stripeStart, stripeEnd);
+                return null;
+            });
+        }
+        for (Future<Void> future : pool.invokeAll(stripes)) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * The measurements of a fragment. Lengths and areas are in the units of the pixel size.
+     */
+    public static class Fragment {
+
+        private final int firstPixel;
+        private final long pixelCount;
+        private final double area;
+        private final double perimeter;
+        private final double convexArea;
+        private final double maxFeret;
+        private final double minFeret;
+        private final double mean;
+        private final double stdDev;
+        private final double min;
+        private final double max;
+
+        private Fragment(int firstPixel, long pixelCount, double area, double perimeter, double convexArea,
+                         double maxFeret, double minFeret, double mean, double stdDev, double min, double max) {
+            this.firstPixel = firstPixel;
+            this.pixelCount = pixelCount;
+            this.area = area;
+            this.perimeter = perimeter;
+            this.convexArea = convexArea;
+            this.maxFeret = maxFeret;
+            this.minFeret = minFeret;
+            this.mean = mean;
+            this.stdDev = stdDev;
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * @return The first pixel of the fragment in raster order, as {@code y * width + x}.
+         */
+        public int getFirstPixel() {
+            return firstPixel;
+        }
+
+        /**
+         * @return The number of pixels.
+         */
+        public long getPixelCount() {
+            return pixelCount;
+        }
+
+        /**
+         * @return The area.
+         */
+        public double getArea() {
+            return area;
+        }
+
+        /**
+         * @return The length of the outline, holes included.
+         */
+        public double getPerimeter() {
+            return perimeter;
+        }
+
+        /**
+         * @return 4&pi; area / perimeter&sup2;, 1 for a disc, at most 1.
+         */
+        public double getCircularity() {
+            return perimeter > 0 ? Math.min(1, 4 * Math.PI * area / (perimeter * perimeter)) : 0;
+        }
+
+        /**
+         * @return The area over the area of the convex hull.
+         */
+        public double getSolidity() {
+            return convexArea > 0 ? area / convexArea : 0;
+        }
+
+        /**
+         * @return The largest distance between two points of the fragment.
+         */
+        public double getMaxFeret() {
+            return maxFeret;
+        }
+
+        /**
+         * @return The smallest width of the fragment over all directions.
+         */
+        public double getMinFeret() {
+            return minFeret;
+        }
+
+        /**
+         * @return The mean stain intensity.
+         */
+        public double getMean() {
+            return mean;
+        }
+
+        /**
+         * @return The standard deviation of the stain intensity.
+         */
+        public double getStdDev() {
+            return stdDev;
+        }
+
+        /**
+         * @return The smallest stain intensity.
+         */
+        public double getMin() {
+            return min;
+        }
+
+        /**
+         * @return The largest stain intensity.
+         */
+        public double getMax() {
+            return max;
+        }
+    }
+
+    /**
+     * The running sums of a fragment, and the left and right chains of its convex hull. The hull is built over
+     * the pixel corners, one horizontal line at a time: only the leftmost and rightmost corners of each line can be
+     * on the hull, and lines come in order, so each chain is a monotone chain that only needs appending.
+     */
+    private static class Accumulator {
+
+        private final int firstPixel;
+        private long count = 0;
+        private double sum = 0;
+        private double sumSquares = 0;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private long horizontalEdges = 0;
+        private long verticalEdges = 0;
+        private long corners = 0;
+
+        // The leftmost and rightmost pixel edges of the current row
+        private int row = -1;
+        private int rowMin;
+        private int rowMax;
+        // The line below the last row, waiting for the next row to widen it
+        private int pendingLine = -1;
+        private int pendingMin;
+        private int pendingMax;
+        private final MaskTracer.IntList leftXs = new MaskTracer.IntList();
+        private final MaskTracer.IntList leftYs = new MaskTracer.IntList();
+        private final MaskTracer.IntList rightXs = new MaskTracer.IntList();
+        private final MaskTracer.IntList rightYs = new MaskTracer.IntList();
+
+        private Accumulator(int firstPixel) {
+            this.firstPixel = firstPixel;
+        }
+
+        private void addPixels(float[] pixels, int offset, int start, int end) {
+            for (int x = start; x < end; x++) {
+                float value = pixels[offset + x];
+                sum += value;
+                sumSquares += (double) value * value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            count += end - start;
+            verticalEdges += 2;
+        }
+
+        /**
+         * Add the corners of the current row, whose top line may already hold those of the row above.
+         */
+        private void addRow(int y) {
+            int lineMin = rowMin;
+            int lineMax = rowMax;
+            if (pendingLine == y) {
+                lineMin = Math.min(lineMin, pendingMin);
+                lineMax = Math.max(lineMax, pendingMax);
+            } else if (pendingLine >= 0) {
+                addLine(pendingLine, pendingMin, pendingMax);
+            }
+            addLine(y, lineMin, lineMax);
+            pendingLine = y + 1;
+            pendingMin = rowMin;
+            pendingMax = rowMax;
+        }
+
+        private void addLine(int y, int lineMin, int lineMax) {
+            addToChain(leftXs, leftYs, lineMin, y, 1);
+            addToChain(rightXs, rightYs, lineMax, y, -1);
+        }
+
+        /**
+         * Append a corner to a chain, removing the corners it makes concave (or collinear).
+         *
+         * @param side 1 for the left chain, -1 for the right chain.
+         */
+        private static void addToChain(MaskTracer.IntList xs, MaskTracer.IntList ys, int x, int y, int side) {
+            int n = xs.size();
+            while (n >= 2) {
+                long cross = (long) (xs.get(n - 1) - xs.get(n - 2)) * (y - ys.get(n - 2)) -
+                        (long) (ys.get(n - 1) - ys.get(n - 2)) * (x - xs.get(n - 2));
+                if (cross * side < 0) {
+                    break;
+                }
+                n--;
+            }
+            xs.truncate(n);
+            ys.truncate(n);
+            xs.add(x);
+            ys.add(y);
+        }
+
+        private Fragment finish(double pixelWidth, double pixelHeight, double diagonal) {
+            if (pendingLine >= 0) {
+                addLine(pendingLine, pendingMin, pendingMax);
+            }
+            // The left chain downwards, then the right chain upwards
+            int nLeft = leftXs.size();
+            int nRight = rightXs.size();
+            double[] xs = new double[nLeft + nRight];
+            double[] ys = new double[nLeft + nRight];
+            for (int i = 0; i < nLeft; i++) {
+                xs[i] = leftXs.get(i) * pixelWidth;
+                ys[i] = leftYs.get(i) * pixelHeight;
+            }
+            for (int i = 0; i < nRight; i++) {
+                xs[nLeft + i] = rightXs.get(nRight - 1 - i) * pixelWidth;
+                ys[nLeft + i] = rightYs.get(nRight - 1 - i) * pixelHeight;
+            }
+            double convexArea = 0;
+            for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+                convexArea += xs[j] * ys[i] - xs[i] * ys[j];
+            }
+            double[] ferets = getFeretDiameters(xs, ys);
+
+            double mean = sum / count;
+            double variance = Math.max(0, sumSquares / count - mean * mean);
+            // Each corner is cut by the diagonal joining the middles of its two half edges
+            double perimeter = horizontalEdges * pixelWidth + verticalEdges * pixelHeight -
+                    corners * ((pixelWidth + pixelHeight) / 2 - diagonal);
+            return new Fragment(firstPixel, count, count * pixelWidth * pixelHeight, perimeter,
+                    Math.abs(convexArea) / 2, ferets[0], ferets[1], mean, Math.sqrt(variance), min, max);
+        }
+
+        /**
+         * Rotating calipers over a convex polygon: for each edge, the corner farthest from it gives the width in
+         * the direction of the edge, and the pairs of corners met on the way include the farthest pair.
+         *
+         * @return The largest and smallest Feret diameters.
+         */
+        private static double[] getFeretDiameters(double[] xs, double[] ys) {
+            int n = xs.length;
+            double maxSquared = 0;
+            double minWidth = Double.POSITIVE_INFINITY;
+            int j = 1;
+            for (int i = 0; i < n; i++) {
+                int next = (i + 1) % n;
+                while (Math.abs(cross(xs, ys, i, next, (j + 1) % n)) > Math.abs(cross(xs, ys, i, next, j))) {
+                    j = (j + 1) % n;
+                }
+                double length = Math.hypot(xs[next] - xs[i], ys[next] - ys[i]);
+                minWidth = Math.min(minWidth, Math.abs(cross(xs, ys, i, next, j)) / length);
+                maxSquared = Math.max(maxSquared, Math.max(
+                        squaredDistance(xs, ys, i, j), squaredDistance(xs, ys, next, j)));
+            }
+            return new double[]{Math.sqrt(maxSquared), minWidth};
+        }
+
+        private static double cross(double[] xs, double[] ys, int a, int b, int c) {
+            return (xs[b] - xs[a]) * (ys[c] - ys[a]) - (ys[b] - ys[a]) * (xs[c] - xs[a]);
+        }
+
+        private static double squaredDistance(double[] xs, double[] ys, int a, int b) {
+            return (xs[b] - xs[a]) * (xs[b] - xs[a]) + (ys[b] - ys[a]) * (ys[b] - ys[a]);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package qupath.ext.qupip.classes;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Hysteresis thresholding: the connected components of the pixels above a low threshold are kept if they contain
+ * at least one pixel above a high threshold. Faint structures attached to strongly stained ones are kept, while
+ * faint structures on their own are not.
+ * <p>
+ * Components are labelled tile by tile with a union-find (4-connectivity), so a whole slide never needs a label
+ * image of its own. For tiled slides, each tile only reports the components touching the edges of its core, as
+ * runs along each edge (see {@link TileSeams}); a {@link SeamMerge} joins the runs facing each other across every
+ * seam, and decides which of these components are kept. Labelling is deterministic, so a tile labelled again in a
+ * later pass gets the same components.
+ */
+public class Hysteresis {
+
+    private Hysteresis() {
+    }
+
+    /**
+     * Label the components of the pixels above the low threshold inside a rectangle.
+     *
+     * @param pixels The pixels, row by row.
+     * @param width The image width.
+     * @param rect The rectangle to label, e.g. the core of a tile.
+     * @param low The low threshold: values greater than or equal to it belong to a component.
+     * @param high The high threshold: a component is seeded if it has a value greater than or equal to it.
+     * @return The components.
+     */
+    public static Components label(float[] pixels, int width, Rectangle rect, double low, double high) {
+        int w = rect.width;
+        int h = rect.height;
+        int[] labels = new int[w * h];
+        int[] parent = new int[64];
+        boolean[] seeded = new boolean[64];
+        int nProvisional = 0;
+
+        // First pass: provisional labels, with equivalences recorded in the union-find
+        for (int y = 0; y < h; y++) {
+            int offset = (rect.y + y) * width + rect.x;
+            for (int x = 0; x < w; x++) {
+                float value = pixels[offset + x];
+                if (!(value >= low)) {
+                    continue;
+                }
+                int i = y * w + x;
+                int up = y > 0 ? labels[i - w] : 0;
+                int left = x > 0 ? labels[i - 1] : 0;
+                int label;
+                if (up == 0 && left == 0) {
+                    label = ++nProvisional;
+                    if (label >= parent.length) {
+                        parent = Arrays.copyOf(parent, parent.length * 2);
+                        seeded = Arrays.copyOf(seeded, seeded.length * 2);
+                    }
+                    parent[label] = label;
+                } else if (up == 0 || left == 0) {
+                    label = up + left;
+                } else {
+                    label = union(parent, up, left);
+                }
+                labels[i] = label;
+                if (value >= high) {
+                    seeded[label] = true;
+                }
+            }
+        }
+
+        // Second pass: resolve every label to its root, numbered in order of first appearance
+        int[] compact = new int[nProvisional + 1];
+        boolean[] compactSeeded = new boolean[nProvisional + 1];
+        int nLabels = 0;
+        for (int label = 1; label <= nProvisional; label++) {
+            // Roots are the smallest label of their set, so they are numbered before the labels pointing to them
+            int root = find(parent, label);
+            compact[label] = root == label ? ++nLabels : compact[root];
+            compactSeeded[compact[label]] |= seeded[label];
+        }
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = compact[labels[i]];
+        }
+        return new Components(rect, labels, Arrays.copyOf(compactSeeded, nLabels + 1), nLabels);
+    }
+
+    private static int find(int[] parent, int label) {
+        while (parent[label] != label) {
+            parent[label] = parent[parent[label]];
+            label = parent[label];
+        }
+        return label;
+    }
+
+    private static int union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        int root = Math.min(rootA, rootB);
+        parent[rootA] = root;
+        parent[rootB] = root;
+        return root;
+    }
+
+    /**
+     * The components of one image or tile core.
+     */
+    public static class Components {
+
+        private final Rectangle rect;
+        private final int[] labels;
+        private final boolean[] seeded;
+        private final int[] edgeIndex;
+        private int nEdgeComponents = 0;
+
+        private Components(Rectangle rect, int[] labels, boolean[] seeded, int nLabels) {
+            this.rect = rect;
+            this.labels = labels;
+            this.seeded = seeded;
+            this.edgeIndex = new int[nLabels + 1];
+            Arrays.fill(edgeIndex, -1);
+            // Number the components touching the edges, top, bottom, left then right
+            int w = rect.width;
+            int h = rect.height;
+            for (int x = 0; x < w && h > 0; x++) {
+                addEdgeComponent(labels[x]);
+                addEdgeComponent(labels[(h - 1) * w + x]);
+            }
+            for (int y = 0; y < h && w > 0; y++) {
+                addEdgeComponent(labels[y * w]);
+                addEdgeComponent(labels[y * w + w - 1]);
+            }
+        }
+
+        private void addEdgeComponent(int label) {
+            if (label != 0 && edgeIndex[label] < 0) {
+                edgeIndex[label] = nEdgeComponents++;
+            }
+        }
+
+        /**
+         * @return The components touching the edges, as runs along each edge.
+         */
+        public TileSeams getSeams() {
+            int w = rect.width;
+            int h = rect.height;
+            if (labels.length == 0) {
+                return new TileSeams(new boolean[0], new int[0], new int[0], new int[0], new int[0]);
+            }
+            boolean[] edgeSeeded = new boolean[nEdgeComponents];
+            for (int label = 1; label < edgeIndex.length; label++) {
+                if (edgeIndex[label] >= 0) {
+                    edgeSeeded[edgeIndex[label]] = seeded[label];
+                }
+            }
+            return new TileSeams(edgeSeeded,
+                    edgeRuns(0, 1, w),
+                    edgeRuns((h - 1) * w, 1, w),
+                    edgeRuns(0, w, h),
+                    edgeRuns(w - 1, w, h));
+        }
+
+        private int[] edgeRuns(int offset, int step, int n) {
+            int[] runs = new int[0];
+            int nRuns = 0;
+            int start = 0;
+            for (int i = 0; i <= n; i++) {
+                int label = i < n ? labels[offset + i * step] : 0;
+                int previous = i > 0 ? labels[offset + (i - 1) * step] : 0;
+                if (label == previous) {
+                    continue;
+                }
+                if (previous != 0) {
+                    if (3 * nRuns + 3 > runs.length) {
+                        runs = Arrays.copyOf(runs, Math.max(12, runs.length * 2));
+                    }
+                    runs[3 * nRuns] = start;
+                    runs[3 * nRuns + 1] = i;
+                    runs[3 * nRuns + 2] = edgeIndex[previous];
+                    nRuns++;
+                }
+                start = i;
+            }
+            return Arrays.copyOf(runs, 3 * nRuns);
+        }
+
+        /**
+         * Set the pixels of the kept components in a mask of the whole image.
+         * Pixels outside the labelled rectangle are left unchanged.
+         *
+         * @param mask The mask.
+         * @param keptEdgeComponents Whether each component touching the edges is kept, see
+         *                           {@link SeamMerge#getKept(int)}; null to decide from the seeds of this image only.
+         */
+        public void fillMask(BitMask mask, boolean[] keptEdgeComponents) {
+            boolean[] kept = new boolean[seeded.length];
+            for (int label = 1; label < seeded.length; label++) {
+                int edge = edgeIndex[label];
+                kept[label] = edge >= 0 && keptEdgeComponents != null ? keptEdgeComponents[edge] : seeded[label];
+            }
+            for (int y = 0; y < rect.height; y++) {
+                for (int x = 0; x < rect.width; x++) {
+                    if (kept[labels[y * rect.width + x]]) {
+                        mask.set(rect.x + x, rect.y + y);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The components of a tile core that touch its edges: whether each is seeded, and the runs of each edge as
+     * {@code (start, end, component)} triples, with the end exclusive.
+     */
+    public static class TileSeams {
+
+        private final boolean[] seeded;
+        private final int[] top;
+        private final int[] bottom;
+        private final int[] left;
+        private final int[] right;
+
+        private TileSeams(boolean[] seeded, int[] top, int[] bottom, int[] left, int[] right) {
+            this.seeded = seeded;
+            this.top = top;
+            this.bottom = bottom;
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    /**
+     * Joins the edge components of all the tiles of a slide across the seams between tiles.
+     */
+    public static class SeamMerge {
+
+        private final int nColumns;
+        private final int nRows;
+        private final TileSeams[] tiles;
+        private int[] offsets;
+        private boolean[] kept;
+
+        /**
+         * @param nColumns The number of columns of tiles.
+         * @param nRows The number of rows of tiles.
+         */
+        public SeamMerge(int nColumns, int nRows) {
+            this.nColumns = nColumns;
+            this.nRows = nRows;
+            this.tiles = new TileSeams[nColumns * nRows];
+        }
+
+        /**
+         * Add the seams of a tile. Tiles can be added in any order, but all must be added before {@link #merge()}.
+         *
+         * @param index The tile index, in raster order.
+         * @param seams The seams of the tile.
+         */
+        public void add(int index, TileSeams seams) {
+            tiles[index] = seams;
+        }
+
+        /**
+         * Join the components facing each other across every seam. A joined component is kept if any of its
+         * parts is seeded.
+         */
+        public void merge() {
+            offsets = new int[tiles.length + 1];
+            for (int i = 0; i < tiles.length; i++) {
+                offsets[i + 1] = offsets[i] + (tiles[i] == null ? 0 : tiles[i].seeded.length);
+            }
+            int[] parent = new int[offsets[tiles.length]];
+            for (int i = 0; i < parent.length; i++) {
+                parent[i] = i;
+            }
+            for (int row = 0; row < nRows; row++) {
+                for (int column = 0; column < nColumns; column++) {
+                    int index = row * nColumns + column;
+                    if (column + 1 < nColumns) {
+                        joinRuns(parent, index, tiles[index] == null ? null : tiles[index].right,
+                                index + 1, tiles[index + 1] == null ? null : tiles[index + 1].left);
+                    }
+                    if (row + 1 < nRows) {
+                        joinRuns(parent, index, tiles[index] == null ? null : tiles[index].bottom,
+                                index + nColumns, tiles[index + nColumns] == null ? null : tiles[index + nColumns].top);
+                    }
+                }
+            }
+            boolean[] seeded = new boolean[parent.length];
+            for (int i = 0; i < tiles.length; i++) {
+                for (int c = 0; tiles[i] != null && c < tiles[i].seeded.length; c++) {
+                    if (tiles[i].seeded[c]) {
+                        seeded[find(parent, offsets[i] + c)] = true;
+                    }
+                }
+            }
+            // Resolve every component now, so that the tiles can be queried from several threads
+            kept = new boolean[parent.length];
+            for (int i = 0; i < kept.length; i++) {
+                kept[i] = seeded[find(parent, i)];
+            }
+        }
+
+        /**
+         * Join the overlapping runs of two facing edges.
+         */
+        private void joinRuns(int[] parent, int indexA, int[] runsA, int indexB, int[] runsB) {
+            if (runsA == null || runsB == null) {
+                return;
+            }
+            int a = 0;
+            int b = 0;
+            while (a < runsA.length && b < runsB.length) {
+                if (runsA[a] < runsB[b + 1] && runsB[b] < runsA[a + 1]) {
+                    union(parent, offsets[indexA] + runsA[a + 2], offsets[indexB] + runsB[b + 2]);
+                }
+                if (runsA[a + 1] < runsB[b + 1]) {
+                    a += 3;
+                } else {
+                    b += 3;
+                }
+            }
+        }
+
+        /**
+         * @param index The tile index, in raster order.
+         * @return Whether each edge component of the tile is kept, after {@link #merge()}.
+         */
+        public boolean[] getKept(int index) {
+            return Arrays.copyOfRange(kept, offsets[index], offsets[index + 1]);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package qupath.ext.qupip.classes;
+
+/**
+ * Adaptive (local) thresholding, for slides where a single threshold fails because of staining gradients.
+ * <p>
+ * The threshold of each pixel depends on the statistics of a square window around it. Niblack and Sauvola use the
+ * local mean and standard deviation, read from integral images of the values and squared values, so each pixel
+ * costs the same whatever the window size. Bernsen uses the local min and max, computed with the separable
+ * van Herk/Gil-Werman running min/max filter, which also costs a constant number of comparisons per pixel.
+ * <p>
+ * Stain channels are optical densities, where the objects are brighter than the background, so every method
+ * selects pixels above their local threshold. Windows are clipped at the image border.
+ */
+public class LocalThreshold {
+
+    /**
+     * The local threshold methods.
+     */
+    public enum Method {
+        /**
+         * {@code t = mean + k * std}
+         */
+        Niblack,
+        /**
+         * {@code t = mean * (1 + k * (1 - std / r))}: Sauvola's formula mirrored for bright objects,
+         * so low-contrast (flat) areas need to be well above their mean to be selected.
+         */
+        Sauvola,
+        /**
+         * {@code t = (min + max) / 2}, where windows with a contrast {@code max - min} below the contrast
+         * threshold are background.
+         */
+        Bernsen
+    }
+
+    private final Method method;
+    private final int radius;
+    private final double k;
+    private final double r;
+    private final double contrast;
+
+    /**
+     * @param method The method.
+     * @param radius The radius of the window, in pixels; the window is {@code 2 * radius + 1} pixels wide.
+     * @param k The k parameter of Niblack and Sauvola.
+     * @param r The dynamic range of the standard deviation, for Sauvola.
+     * @param contrast The minimum local contrast, for Bernsen.
+     */
+    public LocalThreshold(Method method, int radius, double k, double r, double contrast) {
+        this.method = method;
+        this.radius = Math.max(1, radius);
+        this.k = k;
+        this.r = r;
+        this.contrast = contrast;
+    }
+
+    /**
+     * @return The radius of the window, in pixels. Tiles need a halo at least this wide for their core
+     * to be thresholded as if the whole slide had been read.
+     */
+    public int getRadius() {
+        return radius;
+    }
+
+    /**
+     * Threshold an image.
+     *
+     * @param pixels The pixels, row by row.
+     * @param width The image width.
+     * @param height The image height.
+     * @return A mask of the pixels above their local threshold.
+     */
+    public BitMask apply(float[] pixels, int width, int height) {
+        if (method == Method.Bernsen) {
+            return applyBernsen(pixels, width, height);
+        }
+        return applyMeanStd(pixels, width, height);
+    }
+
+    private BitMask applyMeanStd(float[] pixels, int width, int height) {
+        // Integral images, with an extra leading row and column of zeros
+        int stride = width + 1;
+        double[] sum = new double[stride * (height + 1)];
+        double[] sumSquares = new double[stride * (height + 1)];
+        for (int y = 0; y < height; y++) {
+            double rowSum = 0;
+            double rowSumSquares = 0;
+            for (int x = 0; x < width; x++) {
+                double value = pixels[y * width + x];
+                rowSum += value;
+                rowSumSquares += value * value;
+                int i = (y + 1) * stride + x + 1;
+                sum[i] = sum[i - stride] + rowSum;
+                sumSquares[i] = sumSquares[i - stride] + rowSumSquares;
+            }
+        }
+
+        BitMask mask = new BitMask(width, height);
+        for (int y = 0; y < height; y++) {
+            int y1 = Math.max(0, y - radius);
+            int y2 = Math.min(height, y + radius + 1);
+            for (int x = 0; x < width; x++) {
+                int x1 = Math.max(0, x - radius);
+                int x2 = Math.min(width, x + radius + 1);
+                double n = (double) (x2 - x1) * (y2 - y1);
+                double s = boxSum(sum, stride, x1, y1, x2, y2);
+                double s2 = boxSum(sumSquares, stride, x1, y1, x2, y2);
+                double mean = s / n;
+                double std = Math.sqrt(Math.max(0, s2 / n - mean * mean));
+                double threshold = method == Method.Niblack ?
+                        mean + k * std :
+                        mean * (1 + k * (1 - std / r));
+                if (pixels[y * width + x] > threshold) {
+                    mask.set(x, y);
+                }
+            }
+        }
+        return mask;
+    }
+
+    private static double boxSum(double[] integral, int stride, int x1, int y1, int x2, int y2) {
+        return integral[y2 * stride + x2] - integral[y1 * stride + x2]
+                - integral[y2 * stride + x1] + integral[y1 * stride + x1];
+    }
+
+    private BitMask applyBernsen(float[] pixels, int width, int height) {
+        float[] min = pixels.clone();
+        float[] max = pixels.clone();
+        float[] line = new float[Math.max(width, height)];
+        float[] prefix = new float[line.length];
+        float[] suffix = new float[line.length];
+        for (int y = 0; y < height; y++) {
+            filterLine(min, y * width, 1, width, line, prefix, suffix, false);
+            filterLine(max, y * width, 1, width, line, prefix, suffix, true);
+        }
+        for (int x = 0; x < width; x++) {
+            filterLine(min, x, width, height, line, prefix, suffix, false);
+            filterLine(max, x, width, height, line, prefix, suffix, true);
+        }
+        BitMask mask = new BitMask(width, height);
+        for (int i = 0; i < pixels.length; i++) {
+            if (max[i] - min[i] >= contrast && pixels[i] > (min[i] + max[i]) / 2) {
+                mask.set(i % width, i / width);
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Running min or max over a window of {@code 2 * radius + 1} values along one row or column, in place,
+     * with the van Herk/Gil-Werman algorithm: the line is split into blocks of the window size, and the result
+     * at each position is the combination of a suffix of one block and a prefix of the next.
+     */
+    private void filterLine(float[] values, int offset, int step, int n,
+                            float[] line, float[] prefix, float[] suffix, boolean isMax) {
+        int window = 2 * radius + 1;
+        for (int i = 0; i < n; i++) {
+            line[i] = values[offset + i * step];
+        }
+        for (int start = 0; start < n; start += window) {
+            int end = Math.min(n, start + window);
+            prefix[start] = line[start];
+            for (int i = start + 1; i < end; i++) {
+                prefix[i] = isMax ? Math.max(prefix[i - 1], line[i]) : Math.min(prefix[i - 1], line[i]);
+            }
+            suffix[end - 1] = line[end - 1];
+            for (int i = end - 2; i >= start; i--) {
+                suffix[i] = isMax ? Math.max(suffix[i + 1], line[i]) : Math.min(suffix[i + 1], line[i]);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            int lo = Math.max(0, i - radius);
+            int hi = Math.min(n - 1, i + radius);
+            if (lo / window != hi / window) {
+                // The window spans two blocks
+                values[offset + i * step] = isMax ? Math.max(suffix[lo], prefix[hi]) : Math.min(suffix[lo], prefix[hi]);
+            } else {
+                // Within one block, the window either starts the block or is clipped by the end of the line
+                values[offset + i * step] = lo % window == 0 ? prefix[hi] : suffix[lo];
+            }
+        }
+    }
+}
@@ -0,0 +1,528 @@
+package qupath.ext.qupip.classes;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Polygon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * Traces the outlines of a {@link BitMask} straight into JTS polygons, with their holes.
+ * <p>
+ * Outlines follow the pixel edges, with the mask on the right-hand side, and only the corners are kept as vertices.
+ * Pixels touching only by a corner are not connected (4-connectivity, as in {@link Hysteresis}); an outline
+ * passing twice through such a corner is split there, so every ring is simple and the polygons are valid.
+ * Outer rings and holes are told apart by their orientation, and each hole is given to the smallest outer ring
+ * containing it. The only per-pixel memory is one bit per horizontal pixel edge, to remember where tracing
+ * has already been.
+ */
+public class MaskTracer {
+
+    // Directions, clockwise on screen (y pointing down): east, south, west, north
+    private static final int[] DX = {1, 0, -1, 0};
+    private static final int[] DY = {0, 1, 0, -1};
+
+    private final BitMask mask;
+    private final int width;
+    private final int height;
+
+    private MaskTracer(BitMask mask) {
+        this.mask = mask;
+        this.width = mask.getWidth();
+        this.height = mask.getHeight();
+    }
+
+    /**
+     * Trace the outlines of a mask.
+     *
+     * @param mask The mask.
+     * @param xOrigin The x coordinate of the left edge of the mask.
+     * @param yOrigin The y coordinate of the top edge of the mask.
+     * @param scale The size of a pixel, e.g. the downsample of the image the mask was made from.
+     * @param factory The factory creating the geometry.
+     * @return A polygon or multipolygon, empty if the mask is empty.
+     */
+    public static Geometry trace(BitMask mask, double xOrigin, double yOrigin, double scale, GeometryFactory factory) {
+        return trace(mask, xOrigin, yOrigin, scale, null, factory);
+    }
+
+    /**
+     * Trace the outlines of a mask, and simplify them before the geometry is built.
+     *
+     * @param mask The mask.
+     * @param xOrigin The x coordinate of the left edge of the mask.
+     * @param yOrigin The y coordinate of the top edge of the mask.
+     * @param scale The size of a pixel, e.g. the downsample of the image the mask was made from.
+     * @param simplifier The simplifier, or null to keep every corner.
+     * @param factory The factory creating the geometry.
+     * @return A polygon or multipolygon, empty if the mask is empty.
+     */
+    public static Geometry trace(BitMask mask, double xOrigin, double yOrigin, double scale,
+                                 RingSimplifier simplifier, GeometryFactory factory) {
+        return createGeometry(traceRings(mask), xOrigin, yOrigin, scale, null, simplifier, factory);
+    }
+
+    /**
+     * Trace the outlines of a mask into one polygon per fragment, i.e. per connected component with its holes.
+     *
+     * @param mask The mask.
+     * @param xOrigin The x coordinate of the left edge of the mask.
+     * @param yOrigin The y coordinate of the top edge of the mask.
+     * @param scale The size of a pixel, e.g. the downsample of the image the mask was made from.
+     * @param simplifier The simplifier, or null to keep every corner.
+     * @param factory The factory creating the geometry.
+     * @return The polygon of each fragment, keyed by the first pixel of the fragment in raster order
+     * ({@code y * width + x}, as {@link FragmentMorphometry.Fragment#getFirstPixel()}).
+     */
+    public static Map<Integer, Polygon> traceFragments(BitMask mask, double xOrigin, double yOrigin, double scale,
+                                                       RingSimplifier simplifier, GeometryFactory factory) {
+        List<Ring> shells = new ArrayList<>();
+        Polygon[] polygons = createPolygons(traceRings(mask), xOrigin, yOrigin, scale, null, simplifier, factory,
+                shells);
+        Map<Integer, Polygon> fragments = new LinkedHashMap<>();
+        for (int i = 0; i < polygons.length; i++) {
+            fragments.put(shells.get(i).getFirstPixel(mask.getWidth()), polygons[i]);
+        }
+        return fragments;
+    }
+
+    /**
+     * Combine polygons, e.g. those of {@link #traceFragments}, into the geometry {@link #trace} would return.
+     *
+     * @param polygons The polygons.
+     * @param factory The factory creating the geometry.
+     * @return A polygon or multipolygon, empty if there are no polygons.
+     */
+    public static Geometry toGeometry(Collection<Polygon> polygons, GeometryFactory factory) {
+        if (polygons.isEmpty()) {
+            return factory.createPolygon();
+        }
+        return polygons.size() == 1 ? polygons.iterator().next() :
+                factory.createMultiPolygon(polygons.toArray(Polygon[]::new));
+    }
+
+    /**
+     * Trace the rings of a mask, in pixel edge coordinates.
+     *
+     * @param mask The mask.
+     * @return The outer rings (clockwise on screen) and holes (anticlockwise).
+     */
+    static List<Ring> traceRings(BitMask mask) {
+        return new MaskTracer(mask).traceRings();
+    }
+
+    /**
+     * Find every ring, starting each one from a horizontal edge that has not been traced yet.
+     * Every ring has at least one horizontal edge, so none is missed.
+     */
+    private List<Ring> traceRings() {
+        List<Ring> rings = new ArrayList<>();
+        BitMask visited = new BitMask(width, height + 1);
+        int nWords = mask.getWordsPerRow();
+        for (int y = 0; y <= height; y++) {
+            for (int w = 0; w < nWords; w++) {
+                long above = y > 0 ? mask.getWord(w, y - 1) : 0;
+                long below = y < height ? mask.getWord(w, y) : 0;
+                long edges = (above ^ below) & ~visited.getWord(w, y);
+                while (edges != 0) {
+                    int x = (w << 6) + Long.numberOfTrailingZeros(edges);
+                    edges &= edges - 1;
+                    if (visited.get(x, y)) {
+                        continue;
+                    }
+                    // The top edge of a pixel runs east, the bottom edge west
+                    if ((below & (1L << x)) != 0) {
+                        traceRing(x, y, 0, visited, rings);
+                    } else {
+                        traceRing(x + 1, y, 2, visited, rings);
+                    }
+                }
+            }
+        }
+        return rings;
+    }
+
+    private void traceRing(int x0, int y0, int d0, BitMask visited, List<Ring> rings) {
+        IntList xs = new IntList();
+        IntList ys = new IntList();
+        Map<Long, Integer> corners = null;
+        int x = x0;
+        int y = y0;
+        int d = d0;
+        do {
+            if (d == 0) {
+                visited.set(x, y);
+            } else if (d == 2) {
+                visited.set(x - 1, y);
+            }
+            x += DX[d];
+            y += DY[d];
+            int next = nextDirection(x, y, d);
+            if (next != d) {
+                xs.add(x);
+                ys.add(y);
+                if (isDiagonal(x, y)) {
+                    // A ring can pass twice through a corner shared by diagonal pixels: split off the loop between
+                    if (corners == null) {
+                        corners = new HashMap<>();
+                    }
+                    long key = (long) y * (width + 1) + x;
+                    Integer previous = corners.remove(key);
+                    if (previous != null) {
+                        rings.add(new Ring(xs.slice(previous + 1, xs.size()), ys.slice(previous + 1, ys.size())));
+                        // Forget the corners of the loop, which are no longer part of this ring
+                        for (int i = previous + 1; i < xs.size() - 1; i++) {
+                            corners.remove((long) ys.get(i) * (width + 1) + xs.get(i), i);
+                        }
+                        xs.truncate(previous + 1);
+                        ys.truncate(previous + 1);
+                    } else {
+                        corners.put(key, xs.size() - 1);
+                    }
+                }
+            }
+            d = next;
+        } while (x != x0 || y != y0 || d != d0);
+        if (xs.size() >= 4) {
+            rings.add(new Ring(xs.toArray(), ys.toArray()));
+        }
+    }
+
+    /**
+     * Choose where to go from a corner, keeping the mask on the right: turn right if the pixel ahead on the right
+     * is not set, go straight if only the pixel ahead on the left is not set, and turn left otherwise.
+     */
+    private int nextDirection(int x, int y, int d) {
+        // The pixels ahead on the left and on the right, for each direction
+        boolean frontRight;
+        boolean frontLeft;
+        switch (d) {
+            case 0 -> {
+                frontLeft = isSet(x, y - 1);
+                frontRight = isSet(x, y);
+            }
+            case 1 -> {
+                frontLeft = isSet(x, y);
+                frontRight = isSet(x - 1, y);
+            }
+            case 2 -> {
+                frontLeft = isSet(x - 1, y);
+                frontRight = isSet(x - 1, y - 1);
+            }
+            default -> {
+                frontLeft = isSet(x - 1, y - 1);
+                frontRight = isSet(x, y - 1);
+            }
+        }
+        if (!frontRight) {
+            return (d + 1) & 3;
+        }
+        return frontLeft ? (d + 3) & 3 : d;
+    }
+
+    /**
+     * @return Whether exactly two of the four pixels around a corner are set, diagonally opposite each other.
+     */
+    private boolean isDiagonal(int x, int y) {
+        boolean nw = isSet(x - 1, y - 1);
+        boolean ne = isSet(x, y - 1);
+        boolean sw = isSet(x - 1, y);
+        boolean se = isSet(x, y);
+        return nw == se && ne == sw && nw != ne;
+    }
+
+    private boolean isSet(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height && mask.get(x, y);
+    }
+
+    /**
+     * Nest the holes in the outer rings, filter and simplify the rings if needed, and create the geometry.
+     * Holes are nested first, because simplification moves the pixel edges the nesting relies on.
+     */
+    static Geometry createGeometry(List<Ring> rings, double xOrigin, double yOrigin, double scale,
+                                   FragmentFilter filter, RingSimplifier simplifier, GeometryFactory factory) {
+        return toGeometry(Arrays.asList(
+                createPolygons(rings, xOrigin, yOrigin, scale, filter, simplifier, factory, null)), factory);
+    }
+
+    /**
+     * Create one polygon per outer ring, as {@link #createGeometry}.
+     *
+     * @param shellsOut If not null, receives the outer ring of each polygon, before simplification.
+     */
+    private static Polygon[] createPolygons(List<Ring> rings, double xOrigin, double yOrigin, double scale,
+                                            FragmentFilter filter, RingSimplifier simplifier,
+                                            GeometryFactory factory, List<Ring> shellsOut) {
+        List<Ring> shells = new ArrayList<>();
+        List<Ring> holes = new ArrayList<>();
+        for (Ring ring : rings) {
+            // With y pointing down, rings with the mask on their right have a positive area
+            (ring.area > 0 ? shells : holes).add(ring);
+        }
+        // Assign each hole to the smallest shell containing it, i.e. the first one in order of area
+        shells.sort(Comparator.comparingLong(ring -> ring.area));
+        RingIndex shellIndex = new RingIndex(shells);
+        Map<Ring, List<Ring>> holesByShell = new HashMap<>();
+        for (Ring hole : holes) {
+            Ring shell = shellIndex.findFirst(hole.interiorX(), hole.interiorY());
+            if (shell != null) {
+                holesByShell.computeIfAbsent(shell, s -> new ArrayList<>()).add(hole);
+            }
+        }
+
+        if (filter != null) {
+            filter.filterRings(shells, holes, holesByShell);
+        }
+
+        // Each shell followed by its holes
+        List<Ring> ordered = new ArrayList<>(rings.size());
+        for (Ring shell : shells) {
+            ordered.add(shell);
+            ordered.addAll(holesByShell.getOrDefault(shell, List.of()));
+        }
+        if (simplifier != null) {
+            ordered = simplifier.simplify(ordered);
+        }
+
+        Polygon[] polygons = new Polygon[shells.size()];
+        int next = 0;
+        for (int i = 0; i < polygons.length; i++) {
+            LinearRing shellRing = ordered.get(next++).toLinearRing(xOrigin, yOrigin, scale, factory);
+            LinearRing[] holeRings = new LinearRing[holesByShell.getOrDefault(shells.get(i), List.of()).size()];
+            for (int h = 0; h < holeRings.length; h++) {
+                holeRings[h] = ordered.get(next++).toLinearRing(xOrigin, yOrigin, scale, factory);
+            }
+            polygons[i] = factory.createPolygon(shellRing, holeRings);
+        }
+        if (shellsOut != null) {
+            shellsOut.addAll(shells);
+        }
+        return polygons;
+    }
+
+    /**
+     * A closed ring of corners, in pixel edge coordinates.
+     */
+    static class Ring {
+
+        final int[] xs;
+        final int[] ys;
+        final long area;
+        private final int minX;
+        private final int minY;
+        private final int maxX;
+        private final int maxY;
+
+        Ring(int[] xs, int[] ys) {
+            this.xs = xs;
+            this.ys = ys;
+            long twiceArea = 0;
+            int x1 = Integer.MAX_VALUE;
+            int y1 = Integer.MAX_VALUE;
+            int x2 = Integer.MIN_VALUE;
+            int y2 = Integer.MIN_VALUE;
+            for (int i = 0; i < xs.length; i++) {
+                int j = (i + 1) % xs.length;
+                twiceArea += (long) xs[i] * ys[j] - (long) xs[j] * ys[i];
+                x1 = Math.min(x1, xs[i]);
+                y1 = Math.min(y1, ys[i]);
+                x2 = Math.max(x2, xs[i]);
+                y2 = Math.max(y2, ys[i]);
+            }
+            this.area = twiceArea / 2;
+            this.minX = x1;
+            this.minY = y1;
+            this.maxX = x2;
+            this.maxY = y2;
+        }
+
+        /**
+         * The centre of a pixel next to the first edge, inside the region the ring bounds: on the right of the edge
+         * for an outer ring (a pixel of the mask), on the left for a hole. The first edge runs from the last corner
+         * to the first one.
+         */
+        double interiorX() {
+            int last = xs.length - 1;
+            int dx = Integer.signum(xs[0] - xs[last]);
+            int dy = Integer.signum(ys[0] - ys[last]);
+            return xs[last] + 0.5 * dx + (area > 0 ? -0.5 : 0.5) * dy;
+        }
+
+        double interiorY() {
+            int last = xs.length - 1;
+            int dx = Integer.signum(xs[0] - xs[last]);
+            int dy = Integer.signum(ys[0] - ys[last]);
+            return ys[last] + 0.5 * dy - (area > 0 ? -0.5 : 0.5) * dx;
+        }
+
+        /**
+         * @return The first pixel inside an outer ring in raster order, as {@code y * width + x}: the pixel below
+         * and right of its topmost, then leftmost, corner.
+         */
+        int getFirstPixel(int width) {
+            int first = 0;
+            for (int i = 1; i < xs.length; i++) {
+                if (ys[i] < ys[first] || (ys[i] == ys[first] && xs[i] < xs[first])) {
+                    first = i;
+                }
+            }
+            return ys[first] * width + xs[first];
+        }
+
+        /**
+         * Even-odd test for a point that is never on an edge (pixel centres are at half-integers).
+         */
+        boolean contains(double px, double py) {
+            if (px < minX || px > maxX || py < minY || py > maxY) {
+                return false;
+            }
+            boolean inside = false;
+            for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+                if ((ys[i] > py) != (ys[j] > py)
+                        && px < xs[j] + (double) (xs[i] - xs[j]) * (py - ys[j]) / (ys[i] - ys[j])) {
+                    inside = !inside;
+                }
+            }
+            return inside;
+        }
+
+        private LinearRing toLinearRing(double xOrigin, double yOrigin, double scale, GeometryFactory factory) {
+            Coordinate[] coordinates = new Coordinate[xs.length + 1];
+            for (int i = 0; i < xs.length; i++) {
+                coordinates[i] = new Coordinate(xOrigin + xs[i] * scale, yOrigin + ys[i] * scale);
+            }
+            coordinates[xs.length] = coordinates[0];
+            return factory.createLinearRing(coordinates);
+        }
+    }
+
+    /**
+     * A grid over the bounding boxes of rings, to find the first ring of a list containing a point
+     * without testing every ring.
+     */
+    static class RingIndex {
+
+        private final List<Ring> rings;
+        private int minX;
+        private int minY;
+        private int cellSize;
+        private int nCellsX;
+        private int nCellsY;
+        private int[] cellStarts;
+        private int[] cellRings;
+
+        /**
+         * @param rings The rings, in the order in which they are searched.
+         */
+        RingIndex(List<Ring> rings) {
+            this.rings = rings;
+            if (rings.isEmpty()) {
+                return;
+            }
+            minX = Integer.MAX_VALUE;
+            minY = Integer.MAX_VALUE;
+            int maxX = Integer.MIN_VALUE;
+            int maxY = Integer.MIN_VALUE;
+            for (Ring ring : rings) {
+                minX = Math.min(minX, ring.minX);
+                minY = Math.min(minY, ring.minY);
+                maxX = Math.max(maxX, ring.maxX);
+                maxY = Math.max(maxY, ring.maxY);
+            }
+            double area = ((double) maxX - minX + 1) * ((double) maxY - minY + 1);
+            cellSize = (int) Math.max(1, Math.ceil(Math.sqrt(area / rings.size())));
+            nCellsX = (maxX - minX) / cellSize + 1;
+            nCellsY = (maxY - minY) / cellSize + 1;
+            cellStarts = new int[nCellsX * nCellsY + 1];
+            for (Ring ring : rings) {
+                forEachCell(ring, cell -> cellStarts[cell + 1]++);
+            }
+            for (int cell = 0; cell < nCellsX * nCellsY; cell++) {
+                cellStarts[cell + 1] += cellStarts[cell];
+            }
+            int[] fill = cellStarts.clone();
+            cellRings = new int[cellStarts[nCellsX * nCellsY]];
+            for (int i = 0; i < rings.size(); i++) {
+                int index = i;
+                forEachCell(rings.get(i), cell -> cellRings[fill[cell]++] = index);
+            }
+        }
+
+        private void forEachCell(Ring ring, IntConsumer action) {
+            for (int cy = (ring.minY - minY) / cellSize; cy <= (ring.maxY - minY) / cellSize; cy++) {
+                for (int cx = (ring.minX - minX) / cellSize; cx <= (ring.maxX - minX) / cellSize; cx++) {
+                    action.accept(cy * nCellsX + cx);
+                }
+            }
+        }
+
+        /**
+         * @return The first ring containing the point, or null if none does.
+         */
+        Ring findFirst(double px, double py) {
+            if (rings.isEmpty() || px < minX || py < minY) {
+                return null;
+            }
+            int cx = (int) (px - minX) / cellSize;
+            int cy = (int) (py - minY) / cellSize;
+            if (cx >= nCellsX || cy >= nCellsY) {
+                return null;
+            }
+            int cell = cy * nCellsX + cx;
+            // Rings are listed in each cell in the order of the list
+            for (int k = cellStarts[cell]; k < cellStarts[cell + 1]; k++) {
+                Ring ring = rings.get(cellRings[k]);
+                if (ring.contains(px, py)) {
+                    return ring;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A growable list of ints.
+     */
+    static class IntList {
+
+        private int[] values = new int[64];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        int[] slice(int from, int to) {
+            return Arrays.copyOfRange(values, from, to);
+        }
+
+        void truncate(int newSize) {
+            size = newSize;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package qupath.ext.qupip.classes;
+
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import qupath.lib.color.ColorDeconvolutionStains;
+
+/**
+ * Fused conversions of packed RGB pixels to optical density channels.
+ * <p>
+ * The optical density of an 8-bit channel value only depends on that value, so it is looked up in a 256-entry
+ * table rather than computed with a logarithm per channel and pixel. The packed ARGB ints are read directly,
+ * and the result is written in a single pass into one float array.
+ */
+public final class OpticalDensity {
+
+    private static final float[] OD_LUT_255 = createLut(255);
+
+    private OpticalDensity() {
+    }
+
+    /**
+     * Create the lookup table of optical densities for 8-bit values, i.e. {@code -log10(value / maxValue)}.
+     * A value of 0 is treated as 1 to avoid infinite densities, and negative densities are clipped to 0,
+     * consistent with QuPath's own optical density conversion.
+     *
+     * @param maxValue The value of the background (no absorption).
+     * @return A lookup table with 256 entries.
+     */
+    public static float[] createLut(double maxValue) {
+        float[] lut = new float[256];
+        for (int i = 0; i < lut.length; i++) {
+            lut[i] = (float) Math.max(0, -Math.log10(Math.max(i, 1) / maxValue));
+        }
+        return lut;
+    }
+
+    /**
+     * Compute the sum of the red, green and blue optical densities, with a white background of 255.
+     * If the processor is already RGB its pixels are read directly, without a copy.
+     *
+     * @param ip The RGB image.
+     * @return The optical density sum.
+     */
+    public static FloatProcessor sum(ImageProcessor ip) {
+        ColorProcessor cp = ip instanceof ColorProcessor ? (ColorProcessor) ip : ip.convertToColorProcessor();
+        int[] rgb = (int[]) cp.getPixels();
+        float[] od = new float[rgb.length];
+        sum(rgb, od, OD_LUT_255, OD_LUT_255, OD_LUT_255);
+        return new FloatProcessor(cp.getWidth(), cp.getHeight(), od);
+    }
+
+    /**
+     * Compute the sum of optical densities of packed RGB pixels into an existing array.
+     *
+     * @param rgb The packed RGB pixels.
+     * @param od The output array, at least as long as {@code rgb}.
+     * @param lutRed The lookup table for the red channel.
+     * @param lutGreen The lookup table for the green channel.
+     * @param lutBlue The lookup table for the blue channel.
+     */
+    public static void sum(int[] rgb, float[] od, float[] lutRed, float[] lutGreen, float[] lutBlue) {
+        for (int i = 0; i < rgb.length; i++) {
+            int c = rgb[i];
+            od[i] = lutRed[(c >> 16) & 0xff] + lutGreen[(c >> 8) & 0xff] + lutBlue[c & 0xff];
+        }
+    }
+
+    /**
+     * Color deconvolve a single stain.
+     * Only the column of the inverse stain matrix belonging to the requested stain is applied to each pixel,
+     * so one float image is created rather than one per stain.
+     *
+     * @param ip The RGB image.
+     * @param stains The stains, providing the inverse stain matrix and background values.
+     * @param stainIndex The index of the stain (0, 1 or 2).
+     * @return The deconvolved stain.
+     */
+    public static FloatProcessor stain(ImageProcessor ip, ColorDeconvolutionStains stains, int stainIndex) {
+        ColorProcessor cp = ip instanceof ColorProcessor ? (ColorProcessor) ip : ip.convertToColorProcessor();
+        int[] rgb = (int[]) cp.getPixels();
+        float[] values = new float[rgb.length];
+        stain(rgb, values, stains, stainIndex);
+        return new FloatProcessor(cp.getWidth(), cp.getHeight(), values);
+    }
+
+    /**
+     * Color deconvolve a single stain into an existing array, which may be reused between calls.
+     *
+     * @param rgb The packed RGB pixels.
+     * @param values The output array, at least as long as {@code rgb}.
+     * @param stains The stains, providing the inverse stain matrix and background values.
+     * @param stainIndex The index of the stain (0, 1 or 2).
+     */
+    public static void stain(int[] rgb, float[] values, ColorDeconvolutionStains stains, int stainIndex) {
+        double[][] inverse = stains.getMatrixInverse();
+        float[] lutRed = lutFor(stains.getMaxRed());
+        float[] lutGreen = lutFor(stains.getMaxGreen());
+        float[] lutBlue = lutFor(stains.getMaxBlue());
+        stain(rgb, values, lutRed, lutGreen, lutBlue,
+                (float) inverse[0][stainIndex], (float) inverse[1][stainIndex], (float) inverse[2][stainIndex]);
+    }
+
+    /**
+     * Apply one column of an inverse stain matrix to the optical densities of packed RGB pixels.
+     */
+    private static void stain(int[] rgb, float[] values, float[] lutRed, float[] lutGreen, float[] lutBlue,
+                              float scaleRed, float scaleGreen, float scaleBlue) {
+        for (int i = 0; i < rgb.length; i++) {
+            int c = rgb[i];
+            values[i] = lutRed[(c >> 16) & 0xff] * scaleRed
+                    + lutGreen[(c >> 8) & 0xff] * scaleGreen
+                    + lutBlue[c & 0xff] * scaleBlue;
+        }
+    }
+
+    private static float[] lutFor(double maxValue) {
+        return maxValue == 255 ? OD_LUT_255 : createLut(maxValue);
+    }
+}
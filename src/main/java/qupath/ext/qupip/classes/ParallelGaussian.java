@@ -0,0 +1,105 @@
+package qupath.ext.qupip.classes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Multi-threaded separable Gaussian blur.
+ * <p>
+ * The row pass and then the column pass of a {@link RecursiveGaussian} are split into stripes, which are run on a
+ * {@link ForkJoinPool}. Each pool thread keeps its own line buffer, so no memory is allocated per stripe.
+ * <p>
+ * All instances with the same number of threads share one pool, whose idle threads stop on their own, so there
+ * is nothing to shut down. Several threads (e.g. the workers of a pipeline) may blur different images at the same
+ * time: they only wait for their stripes, so the number of threads doing the work stays bounded by the pool.
+ */
+public class ParallelGaussian {
+
+    /**
+     * Stripes per pool thread, so that threads finishing early can pick up more work.
+     */
+    private static final int STRIPES_PER_THREAD = 4;
+
+    private static final ThreadLocal<float[]> LINES = ThreadLocal.withInitial(() -> new float[0]);
+
+    private static ForkJoinPool sharedPool;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param nThreads The number of threads of the pool.
+     */
+    public ParallelGaussian(int nThreads) {
+        this.pool = getSharedPool(Math.max(1, nThreads));
+    }
+
+    /**
+     * Get the pool shared by all instances, replacing it if it has another number of threads. Blurs running on a
+     * replaced pool finish on it, after which its threads stop.
+     */
+    private static synchronized ForkJoinPool getSharedPool(int nThreads) {
+        if (sharedPool == null || sharedPool.getParallelism() != nThreads) {
+            sharedPool = new ForkJoinPool(nThreads);
+        }
+        return sharedPool;
+    }
+
+    /**
+     * Blur an image in place.
+     *
+     * @param pixels The pixels, row by row.
+     * @param width The image width.
+     * @param height The image height.
+     * @param sigma The Gaussian sigma, in pixels. See {@link RecursiveGaussian#isSupported(double)}.
+     */
+    public void blur(float[] pixels, int width, int height, double sigma) {
+        RecursiveGaussian gaussian = new RecursiveGaussian(sigma);
+        runStripes(height, (start, end) -> gaussian.blurRows(pixels, width, start, end, getLine(width)));
+        runStripes(width, (start, end) -> gaussian.blurColumns(pixels, width, height, start, end, getLine(height)));
+    }
+
+    private interface StripeTask {
+        void run(int start, int end);
+    }
+
+    private void runStripes(int n, StripeTask task) {
+        int nStripes = Math.min(n, pool.getParallelism() * STRIPES_PER_THREAD);
+        if (nStripes <= 1) {
+            task.run(0, n);
+            return;
+        }
+        int step = (n + nStripes - 1) / nStripes;
+        List<Callable<Void>> stripes = new ArrayList<>();
+        for (int start = 0; start < n; start += step) {
+            int stripeStart = start;
+            int stripeEnd = Math.min(n, start + step);
+            stripes.add(() -> {
+                task.run(stripeStart, stripeEnd);
+                return null;
+            });
+        }
+        for (Future<Void> future : pool.invokeAll(stripes)) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private static float[] getLine(int length) {
+        float[] line = LINES.get();
+        if (line.length < length) {
+            line = new float[length];
+            LINES.set(line);
+        }
+        return line;
+    }
+}
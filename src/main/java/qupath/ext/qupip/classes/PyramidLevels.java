@@ -0,0 +1,79 @@
+package qupath.ext.qupip.classes;
+
+import qupath.lib.images.servers.ImageServer;
+
+/**
+ * Helpers to choose a downsample that matches the native pyramid levels of an image.
+ * <p>
+ * Reading at a downsample between two levels makes the server decode tiles of the finer level and resample them,
+ * so a downsample of 3.0 on a pyramid with levels 1, 4, 16 decodes about nine times more pixels than it returns.
+ * Reading at a native level downsample avoids both the extra decoding and the resampling.
+ */
+public final class PyramidLevels {
+
+    /**
+     * Use the requested downsample as-is.
+     */
+    public static final String MODE_EXACT = "Exact";
+
+    /**
+     * Use the nearest native level if it is within the tolerance of the requested downsample,
+     * otherwise use the requested downsample.
+     */
+    public static final String MODE_SNAP = "Snap";
+
+    /**
+     * Always use the native level nearest to the requested downsample.
+     */
+    public static final String MODE_NATIVE = "Native";
+
+    private PyramidLevels() {
+    }
+
+    /**
+     * Choose the downsample at which to read regions.
+     *
+     * @param server The server that will be read.
+     * @param requested The requested downsample.
+     * @param mode One of {@link #MODE_EXACT}, {@link #MODE_SNAP} or {@link #MODE_NATIVE}.
+     * @param tolerance The maximum relative difference between the requested downsample and a native level
+     *                  for {@link #MODE_SNAP} to use the level.
+     * @return The downsample to use.
+     */
+    public static double chooseDownsample(ImageServer<?> server, double requested, String mode, double tolerance) {
+        if (MODE_EXACT.equals(mode)) {
+            return requested;
+        }
+        double nearest = nearestLevelDownsample(server.getPreferredDownsamples(), requested);
+        if (MODE_NATIVE.equals(mode)) {
+            return nearest;
+        }
+        if (MODE_SNAP.equals(mode)) {
+            return Math.abs(nearest - requested) <= tolerance * requested ? nearest : requested;
+        }
+        throw new IllegalArgumentException("Unknown downsample mode " + mode);
+    }
+
+    /**
+     * Find the native level downsample nearest to the requested downsample.
+     * Distances are compared on a log scale (as ratios), so 3.0 is closer to 4.0 than to 1.0. On a tie, e.g. 2.0
+     * between levels 1.0 and 4.0, the finer level is chosen whatever the order of the levels, so no detail is lost.
+     *
+     * @param levelDownsamples The downsamples of the pyramid levels.
+     * @param requested The requested downsample.
+     * @return The nearest level downsample, or the requested downsample if there are no levels.
+     */
+    public static double nearestLevelDownsample(double[] levelDownsamples, double requested) {
+        double best = requested;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (double level : levelDownsamples) {
+            // The ratio is exact for ties such as 4 / 2 and 2 / 1, unlike the difference of logarithms
+            double distance = Math.max(level / requested, requested / level);
+            if (distance < bestDistance || (distance == bestDistance && level < best)) {
+                best = level;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+}
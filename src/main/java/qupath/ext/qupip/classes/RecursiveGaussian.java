@@ -0,0 +1,173 @@
+package qupath.ext.qupip.classes;
+
+/**
+ * Recursive (IIR) Gaussian blur, after Young &amp; van Vliet (1995).
+ * <p>
+ * Each row and column is filtered by a third-order causal pass followed by an anti-causal pass, so the cost per
+ * pixel is constant, whatever the sigma. ImageJ's blur uses a kernel whose width grows linearly with sigma, which
+ * makes the recursive filter much faster for the large sigmas used to smooth stain channels.
+ * Edges are handled by replicating the edge pixel, as ImageJ does.
+ * <p>
+ * The filter is only a good approximation for sigma &ge; 2, where it stays within 0.02 of an exact Gaussian for values
+ * in [0, 1]; use {@link #isSupported(double)} to check.
+ */
+public class RecursiveGaussian {
+
+    private final double b1;
+    private final double b2;
+    private final double b3;
+    private final double gain;
+    /**
+     * Maps the last three causal outputs and the edge value to the anti-causal pass's initial state, row by row.
+     */
+    private final double[][] endState;
+
+    /**
+     * @param sigma The Gaussian sigma, in pixels.
+     */
+    public RecursiveGaussian(double sigma) {
+        if (!isSupported(sigma)) {
+            throw new IllegalArgumentException("Recursive Gaussian requires sigma >= 2, but was " + sigma);
+        }
+        double q = sigma >= 2.5 ?
+                0.98711 * sigma - 0.96330 :
+                3.97156 - 4.14554 * Math.sqrt(1 - 0.26891 * sigma);
+        double q2 = q * q;
+        double q3 = q2 * q;
+        double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+        this.b1 = ((2.44413 * q + 2.85619 * q2 + 1.26661 * q3) / b0);
+        this.b2 = (-(1.4281 * q2 + 1.26661 * q3) / b0);
+        this.b3 = (0.422205 * q3 / b0);
+        this.gain = 1 - (b1 + b2 + b3);
+        this.endState = computeEndState(sigma);
+    }
+
+    /**
+     * Work out how the anti-causal pass should start so that the line behaves as if its last value were replicated
+     * forever, as Triggs &amp; Sdika (2006) do in closed form.
+     * The initial state is linear in the last three causal outputs and the edge value, so each column of the map is
+     * found by running both passes over a long replicated extension for one unit input.
+     */
+    private double[][] computeEndState(double sigma) {
+        int length = (int) Math.ceil(20 * sigma) + 100;
+        double[][] map = new double[3][4];
+        for (int j = 0; j < 4; j++) {
+            double[] w = new double[length + 3];
+            if (j < 3) {
+                w[2 - j] = 1;
+            }
+            double edge = j == 3 ? 1 : 0;
+            for (int i = 3; i < w.length; i++) {
+                w[i] = gain * edge + b1 * w[i - 1] + b2 * w[i - 2] + b3 * w[i - 3];
+            }
+            double y1 = edge;
+            double y2 = edge;
+            double y3 = edge;
+            for (int i = w.length - 1; i >= 3; i--) {
+                double y = gain * w[i] + b1 * y1 + b2 * y2 + b3 * y3;
+                y3 = y2;
+                y2 = y1;
+                y1 = y;
+            }
+            map[0][j] = y1;
+            map[1][j] = y2;
+            map[2][j] = y3;
+        }
+        return map;
+    }
+
+    /**
+     * @param sigma The Gaussian sigma, in pixels.
+     * @return true if the recursive filter approximates a Gaussian of this sigma well.
+     */
+    public static boolean isSupported(double sigma) {
+        return sigma >= 2;
+    }
+
+    /**
+     * Blur an image in place.
+     *
+     * @param pixels The pixels, row by row.
+     * @param width The image width.
+     * @param height The image height.
+     */
+    public void blur(float[] pixels, int width, int height) {
+        float[] line = new float[Math.max(width, height)];
+        blurRows(pixels, width, 0, height, line);
+        blurColumns(pixels, width, height, 0, width, line);
+    }
+
+    /**
+     * Blur a range of rows in place.
+     *
+     * @param pixels The pixels, row by row.
+     * @param width The image width.
+     * @param rowStart The first row to blur (inclusive).
+     * @param rowEnd The last row to blur (exclusive).
+     * @param line A buffer of at least {@code width} values, which is overwritten.
+     */
+    public void blurRows(float[] pixels, int width, int rowStart, int rowEnd, float[] line) {
+        for (int y = rowStart; y < rowEnd; y++) {
+            int offset = y * width;
+            System.arraycopy(pixels, offset, line, 0, width);
+            filter(line, width);
+            System.arraycopy(line, 0, pixels, offset, width);
+        }
+    }
+
+    /**
+     * Blur a range of columns in place.
+     *
+     * @param pixels The pixels, row by row.
+     * @param width The image width.
+     * @param height The image height.
+     * @param colStart The first column to blur (inclusive).
+     * @param colEnd The last column to blur (exclusive).
+     * @param line A buffer of at least {@code height} values, which is overwritten.
+     */
+    public void blurColumns(float[] pixels, int width, int height, int colStart, int colEnd, float[] line) {
+        for (int x = colStart; x < colEnd; x++) {
+            for (int y = 0, i = x; y < height; y++, i += width) {
+                line[y] = pixels[i];
+            }
+            filter(line, height);
+            for (int y = 0, i = x; y < height; y++, i += width) {
+                pixels[i] = line[y];
+            }
+        }
+    }
+
+    /**
+     * Filter the first {@code n} values of a line in place: causal pass, then anti-causal pass.
+     * Both passes start as if the edge values were replicated beyond the ends of the line.
+     */
+    private void filter(float[] line, int n) {
+        if (n == 0) {
+            return;
+        }
+        double edge = line[n - 1];
+        double w1 = line[0];
+        double w2 = w1;
+        double w3 = w1;
+        for (int i = 0; i < n; i++) {
+            double w = gain * line[i] + b1 * w1 + b2 * w2 + b3 * w3;
+            line[i] = (float) w;
+            w3 = w2;
+            w2 = w1;
+            w1 = w;
+        }
+        double[] m0 = endState[0];
+        double[] m1 = endState[1];
+        double[] m2 = endState[2];
+        double y1 = m0[0] * w1 + m0[1] * w2 + m0[2] * w3 + m0[3] * edge;
+        double y2 = m1[0] * w1 + m1[1] * w2 + m1[2] * w3 + m1[3] * edge;
+        double y3 = m2[0] * w1 + m2[1] * w2 + m2[2] * w3 + m2[3] * edge;
+        for (int i = n - 1; i >= 0; i--) {
+            double y = gain * line[i] + b1 * y1 + b2 * y2 + b3 * y3;
+            line[i] = (float) y;
+            y3 = y2;
+            y2 = y1;
+            y1 = y;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package qupath.ext.qupip.classes;
+
+import ij.ImagePlus;
+import qupath.imagej.tools.IJTools;
+import qupath.lib.images.PathImage;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A lazy, pull-based source of the regions to threshold.
+ * Annotations are matched against the requested classification only when the consumer asks for the next region,
+ * and the pixels of a region are only read when {@link Region#readImage()} is called.
+ * Nothing is cached, so a region's pixels can be garbage collected as soon as the consumer is done with them.
+ */
+public class RegionSource implements Iterator<RegionSource.Region> {
+
+    private final ImageServer<BufferedImage> server;
+    private final double downsample;
+    private final String pathClassName;
+    private final Iterator<? extends PathObject> iterator;
+
+    private PathObject nextObject;
+
+    /**
+     * @param server The server from which regions will be read.
+     * @param downsample The downsample at which regions will be read.
+     * @param pathObjects The candidate objects, usually all annotations of the image.
+     * @param pathClassName The name of the classification a candidate needs to be used as a region.
+     */
+    public RegionSource(ImageServer<BufferedImage> server, double downsample,
+                        Collection<? extends PathObject> pathObjects, String pathClassName) {
+        this.server = server;
+        this.downsample = downsample;
+        this.pathClassName = pathClassName;
+        this.iterator = pathObjects.iterator();
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        while (nextObject == null && iterator.hasNext()) {
+            PathObject candidate = iterator.next();
+            if (candidate.getPathClass() != null && candidate.getPathClass().getName().equals(pathClassName)) {
+                nextObject = candidate;
+            }
+        }
+        return nextObject != null;
+    }
+
+    /**
+     * Claim the next region. This does not read any pixels, so it is cheap and safe to call from several threads.
+     */
+    @Override
+    public synchronized Region next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        PathObject parent = nextObject;
+        nextObject = null;
+        return new Region(parent, RegionRequest.createInstance(server.getPath(), downsample, parent.getROI()));
+    }
+
+    /**
+     * A region to threshold: the annotation it comes from, and the request needed to read its pixels.
+     */
+    public class Region {
+
+        private final PathObject parent;
+        private final RegionRequest request;
+
+        private Region(PathObject parent, RegionRequest request) {
+            this.parent = parent;
+            this.request = request;
+        }
+
+        /**
+         * @return The annotation defining the region, under which results should be added.
+         */
+        public PathObject getParent() {
+            return parent;
+        }
+
+        /**
+         * @return The request used to read the region.
+         */
+        public RegionRequest getRequest() {
+            return request;
+        }
+
+        /**
+         * Read the pixels of the region. The image is not retained by the region.
+         *
+         * @return The region as an ImagePlus.
+         * @throws IOException If an I/O error occurs.
+         */
+        public PathImage<ImagePlus> readImage() throws IOException {
+            return IJTools.convertToImagePlus(server, request);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package qupath.ext.qupip.classes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Simplifies the rings traced from a mask before they become JTS geometry, without changing their topology.
+ * <p>
+ * Corners are removed one at a time, always the one that moves the outline least (a Visvalingam-Whyatt
+ * elimination ranked by distance rather than area), as long as every corner removed so far stays within the
+ * tolerance of the simplified outline. Each edge keeps a bound on the distance of the corners it replaced, and
+ * removing a corner costs its distance from the segment joining its neighbours plus the larger bound of its two
+ * edges; this can only overestimate, so the tolerance always holds, at the price of sometimes keeping a corner the
+ * exact distance would allow to go. If the rings still have more corners than the vertex budget, removal carries on
+ * past the tolerance until the budget is met, or until no corner can go without changing the topology.
+ * A corner is only removed if the triangle it forms with its neighbours holds no other corner of any ring: the
+ * shortcut then cannot cross or touch another edge, so rings stay simple, holes stay inside their shells, and rings
+ * touching at a corner keep touching there. Rings keep at least three corners.
+ * <p>
+ * One simplifier is used per annotation, and it counts the corners before and after.
+ */
+public class RingSimplifier {
+
+    private final double tolerance;
+    private final int maxVertices;
+    private long verticesBefore = 0;
+    private long verticesAfter = 0;
+
+    // All corners of all rings, as circular linked lists
+    private int[] xs;
+    private int[] ys;
+    private int[] prev;
+    private int[] next;
+    private int[] ringOf;
+    private int[] ringSizes;
+    private boolean[] removed;
+    private int[] versions;
+    // Bound on the distance of the removed corners between each corner and the next from the edge joining them
+    private double[] errors;
+
+    // Uniform grid of the corners, as the indices of the corners sorted by cell
+    private int minX;
+    private int minY;
+    private int cellSize;
+    private int nCellsX;
+    private int nCellsY;
+    private int[] cellStarts;
+    private int[] cellCorners;
+
+    /**
+     * @param tolerance The largest distance of a removed corner from the simplified outline, in pixels of the mask,
+     *                  unless the vertex budget needs more; 0 for no simplification within the tolerance.
+     * @param maxVertices The largest number of corners of all rings together, or 0 for no budget.
+     */
+    public RingSimplifier(double tolerance, int maxVertices) {
+        this.tolerance = tolerance;
+        this.maxVertices = maxVertices;
+    }
+
+    /**
+     * @return The number of corners traced, before simplification.
+     */
+    public long getVerticesBefore() {
+        return verticesBefore;
+    }
+
+    /**
+     * @return The number of corners left after simplification.
+     */
+    public long getVerticesAfter() {
+        return verticesAfter;
+    }
+
+    /**
+     * Simplify rings together, so that none of them crosses another.
+     *
+     * @param rings The rings, in pixel edge coordinates.
+     * @return The simplified rings, in the same order.
+     */
+    List<MaskTracer.Ring> simplify(List<MaskTracer.Ring> rings) {
+        int n = 0;
+        for (MaskTracer.Ring ring : rings) {
+            n += ring.xs.length;
+        }
+        verticesBefore += n;
+        if (tolerance <= 0 && (maxVertices <= 0 || n <= maxVertices)) {
+            verticesAfter += n;
+            return rings;
+        }
+
+        xs = new int[n];
+        ys = new int[n];
+        prev = new int[n];
+        next = new int[n];
+        ringOf = new int[n];
+        ringSizes = new int[rings.size()];
+        removed = new boolean[n];
+        versions = new int[n];
+        errors = new double[n];
+        int offset = 0;
+        for (int r = 0; r < rings.size(); r++) {
+            MaskTracer.Ring ring = rings.get(r);
+            int size = ring.xs.length;
+            for (int i = 0; i < size; i++) {
+                xs[offset + i] = ring.xs[i];
+                ys[offset + i] = ring.ys[i];
+                prev[offset + i] = offset + (i + size - 1) % size;
+                next[offset + i] = offset + (i + 1) % size;
+                ringOf[offset + i] = r;
+            }
+            ringSizes[r] = size;
+            offset += size;
+        }
+        buildGrid();
+
+        PriorityQueue<Candidate> queue = new PriorityQueue<>();
+        for (int v = 0; v < n; v++) {
+            queue.add(new Candidate(v, 0, getCost(v)));
+        }
+        int live = n;
+        boolean overBudget = false;
+        while (!queue.isEmpty()) {
+            Candidate candidate = queue.peek();
+            if (removed[candidate.corner] || versions[candidate.corner] != candidate.version) {
+                queue.poll();
+                continue;
+            }
+            if (candidate.distance > tolerance) {
+                overBudget = maxVertices > 0 && live > maxVertices;
+                if (!overBudget) {
+                    break;
+                }
+            }
+            queue.poll();
+            if (tryRemove(candidate.corner, queue)) {
+                live--;
+                if (overBudget && live <= maxVertices) {
+                    break;
+                }
+            }
+        }
+        verticesAfter += live;
+
+        List<MaskTracer.Ring> simplified = new ArrayList<>(rings.size());
+        offset = 0;
+        for (int r = 0; r < rings.size(); r++) {
+            int start = offset;
+            while (removed[start]) {
+                start++;
+            }
+            int[] ringXs = new int[ringSizes[r]];
+            int[] ringYs = new int[ringSizes[r]];
+            int v = start;
+            for (int i = 0; i < ringXs.length; i++) {
+                ringXs[i] = xs[v];
+                ringYs[i] = ys[v];
+                v = next[v];
+            }
+            simplified.add(new MaskTracer.Ring(ringXs, ringYs));
+            offset += rings.get(r).xs.length;
+        }
+        return simplified;
+    }
+
+    private boolean tryRemove(int v, PriorityQueue<Candidate> queue) {
+        int ring = ringOf[v];
+        if (ringSizes[ring] <= 3) {
+            return false;
+        }
+        int p = prev[v];
+        int q = next[v];
+        if (!isTriangleEmpty(p, v, q)) {
+            return false;
+        }
+        errors[p] = getCost(v);
+        removed[v] = true;
+        next[p] = q;
+        prev[q] = p;
+        ringSizes[ring]--;
+        queue.add(new Candidate(p, ++versions[p], getCost(p)));
+        queue.add(new Candidate(q, ++versions[q], getCost(q)));
+        return true;
+    }
+
+    /**
+     * Bound the distance from the segment joining the neighbours of a corner of the corner and of every corner
+     * already removed on either side of it. A removed corner is within its edge's bound of that edge, and every
+     * point of the edge is within the corner's distance of the segment, so the sum bounds them all.
+     *
+     * @return The bound, i.e. the cost of removing the corner.
+     */
+    private double getCost(int v) {
+        int p = prev[v];
+        int q = next[v];
+        return getSegmentDistance(v, p, q) + Math.max(errors[p], errors[v]);
+    }
+
+    /**
+     * @return The distance of corner v from the segment from corner p to corner q.
+     */
+    private double getSegmentDistance(int v, int p, int q) {
+        double dx = xs[q] - xs[p];
+        double dy = ys[q] - ys[p];
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 :
+                Math.max(0, Math.min(1, ((xs[v] - xs[p]) * dx + (ys[v] - ys[p]) * dy) / lengthSquared));
+        return Math.hypot(xs[v] - xs[p] - t * dx, ys[v] - ys[p] - t * dy);
+    }
+
+    /**
+     * @return Whether no corner other than the three given lies in (or on the edge of) their triangle.
+     */
+    private boolean isTriangleEmpty(int a, int b, int c) {
+        int x1 = Math.min(xs[a], Math.min(xs[b], xs[c]));
+        int y1 = Math.min(ys[a], Math.min(ys[b], ys[c]));
+        int x2 = Math.max(xs[a], Math.max(xs[b], xs[c]));
+        int y2 = Math.max(ys[a], Math.max(ys[b], ys[c]));
+        long orientation = cross(a, b, xs[c], ys[c]);
+        for (int cy = (y1 - minY) / cellSize; cy <= (y2 - minY) / cellSize; cy++) {
+            for (int cx = (x1 - minX) / cellSize; cx <= (x2 - minX) / cellSize; cx++) {
+                int cell = cy * nCellsX + cx;
+                for (int k = cellStarts[cell]; k < cellStarts[cell + 1]; k++) {
+                    int v = cellCorners[k];
+                    if (v == a || v == b || v == c || removed[v]) {
+                        continue;
+                    }
+                    int x = xs[v];
+                    int y = ys[v];
+                    if (x < x1 || x > x2 || y < y1 || y > y2) {
+                        continue;
+                    }
+                    if (orientation == 0) {
+                        // A flat triangle: anything within the bounding box is on its edges
+                        return false;
+                    }
+                    long s1 = cross(a, b, x, y);
+                    long s2 = cross(b, c, x, y);
+                    long s3 = cross(c, a, x, y);
+                    boolean inside = orientation > 0 ?
+                            s1 >= 0 && s2 >= 0 && s3 >= 0 :
+                            s1 <= 0 && s2 <= 0 && s3 <= 0;
+                    if (inside) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private long cross(int a, int b, int x, int y) {
+        return (long) (xs[b] - xs[a]) * (y - ys[a]) - (long) (ys[b] - ys[a]) * (x - xs[a]);
+    }
+
+    /**
+     * Bucket the corners in square cells, about two corners per cell.
+     */
+    private void buildGrid() {
+        int n = xs.length;
+        minX = Integer.MAX_VALUE;
+        minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (int v = 0; v < n; v++) {
+            minX = Math.min(minX, xs[v]);
+            minY = Math.min(minY, ys[v]);
+            maxX = Math.max(maxX, xs[v]);
+            maxY = Math.max(maxY, ys[v]);
+        }
+        double area = ((double) maxX - minX + 1) * ((double) maxY - minY + 1);
+        cellSize = (int) Math.max(1, Math.ceil(Math.sqrt(2 * area / n)));
+        nCellsX = (maxX - minX) / cellSize + 1;
+        nCellsY = (maxY - minY) / cellSize + 1;
+        cellStarts = new int[nCellsX * nCellsY + 1];
+        for (int v = 0; v < n; v++) {
+            cellStarts[getCell(v) + 1]++;
+        }
+        for (int cell = 0; cell < nCellsX * nCellsY; cell++) {
+            cellStarts[cell + 1] += cellStarts[cell];
+        }
+        int[] fill = cellStarts.clone();
+        cellCorners = new int[n];
+        for (int v = 0; v < n; v++) {
+            cellCorners[fill[getCell(v)]++] = v;
+        }
+    }
+
+    private int getCell(int v) {
+        return ((ys[v] - minY) / cellSize) * nCellsX + (xs[v] - minX) / cellSize;
+    }
+
+    /**
+     * A corner waiting to be removed. Corners are recomputed when a neighbour is removed, which makes the
+     * earlier candidates for the same corner stale.
+     */
+    private static class Candidate implements Comparable<Candidate> {
+
+        private final int corner;
+        private final int version;
+        private final double distance;
+
+        private Candidate(int corner, int version, double distance) {
+            this.corner = corner;
+            this.version = version;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            int order = Double.compare(distance, other.distance);
+            return order != 0 ? order : Integer.compare(corner, other.corner);
+        }
+    }
+}
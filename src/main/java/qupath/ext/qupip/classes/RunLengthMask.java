@@ -0,0 +1,417 @@
+package qupath.ext.qupip.classes;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * A binary mask stored as runs of set pixels, row by row.
+ * <p>
+ * Sparse masks (e.g. vessels, which leave most rows empty or covered by a few long runs) take a few bytes per run
+ * instead of a bit per pixel, and set operations between masks cost time proportional to the number of runs.
+ * The runs are kept in two primitive arrays: the {@code [start, end)} pairs of all rows, and the index of the first
+ * pair of each row. Masks are immutable.
+ */
+public class RunLengthMask {
+
+    private static final int UNION = 0;
+    private static final int INTERSECTION = 1;
+    private static final int DIFFERENCE = 2;
+
+    private final int width;
+    private final int height;
+    private final int[] rowStarts;
+    private final int[] runs;
+
+    private RunLengthMask(int width, int height, int[] rowStarts, int[] runs) {
+        this.width = width;
+        this.height = height;
+        this.rowStarts = rowStarts;
+        this.runs = runs;
+    }
+
+    /**
+     * Encode a bit-packed mask, skipping whole words of unset or set pixels at a time.
+     *
+     * @param mask The mask.
+     * @return The run-length mask.
+     */
+    public static RunLengthMask fromBitMask(BitMask mask) {
+        int width = mask.getWidth();
+        int height = mask.getHeight();
+        Builder builder = new Builder(width, height);
+        int nWords = mask.getWordsPerRow();
+        for (int y = 0; y < height; y++) {
+            int x = 0;
+            while (x < width) {
+                int start = nextBit(mask, y, x, nWords, true);
+                if (start >= width) {
+                    break;
+                }
+                int end = Math.min(width, nextBit(mask, y, start, nWords, false));
+                builder.addRun(start, end);
+                x = end;
+            }
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Find the next pixel from {@code x} that is set (or unset), or the end of the row's words if there is none.
+     */
+    private static int nextBit(BitMask mask, int y, int x, int nWords, boolean set) {
+        int w = x >>> 6;
+        if (w >= nWords) {
+            return nWords << 6;
+        }
+        long word = mask.getWord(w, y);
+        word = (set ? word : ~word) & (-1L << x);
+        while (word == 0) {
+            if (++w >= nWords) {
+                return nWords << 6;
+            }
+            word = set ? mask.getWord(w, y) : ~mask.getWord(w, y);
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * @return The mask as a bit-packed mask.
+     */
+    public BitMask toBitMask() {
+        BitMask mask = new BitMask(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int r = rowStarts[y]; r < rowStarts[y + 1]; r++) {
+                for (int x = runs[2 * r]; x < runs[2 * r + 1]; x++) {
+                    mask.set(x, y);
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @return The mask width.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return The mask height.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param y The row.
+     * @return The number of runs in the row.
+     */
+    public int getRunCount(int y) {
+        return rowStarts[y + 1] - rowStarts[y];
+    }
+
+    /**
+     * @param y The row.
+     * @param i The index of the run in the row.
+     * @return The first pixel of the run.
+     */
+    public int getRunStart(int y, int i) {
+        return runs[2 * (rowStarts[y] + i)];
+    }
+
+    /**
+     * @param y The row.
+     * @param i The index of the run in the row.
+     * @return The pixel after the last pixel of the run.
+     */
+    public int getRunEnd(int y, int i) {
+        return runs[2 * (rowStarts[y] + i) + 1];
+    }
+
+    /**
+     * @return The total number of runs.
+     */
+    public int getRunCount() {
+        return rowStarts[height];
+    }
+
+    /**
+     * @return The number of pixels set.
+     */
+    public long getArea() {
+        long area = 0;
+        for (int r = 0; r < rowStarts[height]; r++) {
+            area += runs[2 * r + 1] - runs[2 * r];
+        }
+        return area;
+    }
+
+    /**
+     * @return The bounding box of the pixels set, or an empty rectangle if none is.
+     */
+    public Rectangle getBounds() {
+        int x1 = width;
+        int x2 = 0;
+        int y1 = -1;
+        int y2 = -1;
+        for (int y = 0; y < height; y++) {
+            int first = rowStarts[y];
+            int last = rowStarts[y + 1] - 1;
+            if (last < first) {
+                continue;
+            }
+            if (y1 < 0) {
+                y1 = y;
+            }
+            y2 = y;
+            x1 = Math.min(x1, runs[2 * first]);
+            x2 = Math.max(x2, runs[2 * last + 1]);
+        }
+        return y1 < 0 ? new Rectangle() : new Rectangle(x1, y1, x2 - x1, y2 - y1 + 1);
+    }
+
+    /**
+     * @param other A mask of the same size.
+     * @return The pixels set in either mask.
+     */
+    public RunLengthMask union(RunLengthMask other) {
+        return combine(other, UNION);
+    }
+
+    /**
+     * @param other A mask of the same size.
+     * @return The pixels set in both masks.
+     */
+    public RunLengthMask intersection(RunLengthMask other) {
+        return combine(other, INTERSECTION);
+    }
+
+    /**
+     * @param other A mask of the same size.
+     * @return The pixels set in this mask but not in the other.
+     */
+    public RunLengthMask difference(RunLengthMask other) {
+        return combine(other, DIFFERENCE);
+    }
+
+    /**
+     * @return The pixels not set in this mask.
+     */
+    public RunLengthMask not() {
+        Builder builder = new Builder(width, height);
+        for (int y = 0; y < height; y++) {
+            int x = 0;
+            for (int r = rowStarts[y]; r < rowStarts[y + 1]; r++) {
+                if (runs[2 * r] > x) {
+                    builder.addRun(x, runs[2 * r]);
+                }
+                x = runs[2 * r + 1];
+            }
+            if (x < width) {
+                builder.addRun(x, width);
+            }
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Label the connected components of the mask. With 4-connectivity, runs on consecutive rows belong to the same
+     * component if they share at least one column; with 8-connectivity, also if they touch diagonally. Runs are
+     * joined with union-find, so labelling costs time proportional to the number of runs.
+     *
+     * @param eightConnected Whether pixels touching diagonally are connected.
+     * @return The label of each run, in the order of {@link #getRunCount()}; components are numbered from 0
+     * in the order of their first run.
+     */
+    public int[] labelRuns(boolean eightConnected) {
+        int nRuns = getRunCount();
+        int[] parents = new int[nRuns];
+        for (int r = 0; r < nRuns; r++) {
+            parents[r] = r;
+        }
+        joinRows(parents, 1, height, eightConnected);
+        int[] labels = new int[nRuns];
+        int nLabels = 0;
+        for (int r = 0; r < nRuns; r++) {
+            int root = find(parents, r);
+            // Roots are the first run of their component, so they are labelled before the other runs
+            labels[r] = root == r ? nLabels++ : labels[root];
+        }
+        return labels;
+    }
+
+    /**
+     * Join the runs of each row from {@code fromRow} (at least 1) to {@code toRow} (exclusive) with the runs of
+     * the row above that they touch. Only the runs of rows {@code fromRow - 1} to {@code toRow - 1} are updated,
+     * so stripes of rows that do not overlap can be joined at the same time.
+     *
+     * @param parents The union-find parent of each run, in the order of {@link #getRunCount()}.
+     */
+    void joinRows(int[] parents, int fromRow, int toRow, boolean eightConnected) {
+        int reach = eightConnected ? 1 : 0;
+        for (int y = fromRow; y < toRow; y++) {
+            int a = rowStarts[y - 1];
+            int b = rowStarts[y];
+            // Sweep the runs of both rows together, joining those that overlap
+            while (a < rowStarts[y] && b < rowStarts[y + 1]) {
+                if (runs[2 * a] < runs[2 * b + 1] + reach && runs[2 * b] < runs[2 * a + 1] + reach) {
+                    union(parents, a, b);
+                }
+                if (runs[2 * a + 1] < runs[2 * b + 1]) {
+                    a++;
+                } else {
+                    b++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param y The row, or {@code height} for the end of the last row.
+     * @return The index of the first run of the row, in the order of {@link #getRunCount()}.
+     */
+    int getFirstRun(int y) {
+        return rowStarts[y];
+    }
+
+    /**
+     * @param r The index of a run, in the order of {@link #getRunCount()}.
+     * @return The first pixel of the run.
+     */
+    int getStart(int r) {
+        return runs[2 * r];
+    }
+
+    /**
+     * @param r The index of a run, in the order of {@link #getRunCount()}.
+     * @return The pixel after the last pixel of the run.
+     */
+    int getEnd(int r) {
+        return runs[2 * r + 1];
+    }
+
+    static int find(int[] parents, int r) {
+        while (parents[r] != r) {
+            parents[r] = parents[parents[r]];
+            r = parents[r];
+        }
+        return r;
+    }
+
+    private static void union(int[] parents, int a, int b) {
+        int rootA = find(parents, a);
+        int rootB = find(parents, b);
+        // The smaller run index is the root, so every root is the first run of its component
+        if (rootA < rootB) {
+            parents[rootB] = rootA;
+        } else if (rootB < rootA) {
+            parents[rootA] = rootB;
+        }
+    }
+
+    /**
+     * @param keep Whether to keep each run, in the order of {@link #getRunCount()}.
+     * @return The mask with only the runs kept.
+     */
+    public RunLengthMask retainRuns(boolean[] keep) {
+        Builder builder = new Builder(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int r = rowStarts[y]; r < rowStarts[y + 1]; r++) {
+                if (keep[r]) {
+                    builder.addRun(runs[2 * r], runs[2 * r + 1]);
+                }
+            }
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Combine two masks row by row, sweeping over the run boundaries of both in order.
+     */
+    private RunLengthMask combine(RunLengthMask other, int operation) {
+        if (other.width != width || other.height != height) {
+            throw new IllegalArgumentException("Masks have different sizes: " + width + "x" + height +
+                    " and " + other.width + "x" + other.height);
+        }
+        Builder builder = new Builder(width, height);
+        for (int y = 0; y < height; y++) {
+            int a = 2 * rowStarts[y];
+            int aEnd = 2 * rowStarts[y + 1];
+            int b = 2 * other.rowStarts[y];
+            int bEnd = 2 * other.rowStarts[y + 1];
+            // a and b index the next boundary of each mask: even indices are starts, odd indices are ends
+            int start = -1;
+            while (a < aEnd || b < bEnd) {
+                int xa = a < aEnd ? runs[a] : Integer.MAX_VALUE;
+                int xb = b < bEnd ? other.runs[b] : Integer.MAX_VALUE;
+                int x = Math.min(xa, xb);
+                if (xa == x) {
+                    a++;
+                }
+                if (xb == x) {
+                    b++;
+                }
+                // Inside a mask when its last boundary crossed was a start
+                boolean inA = (a & 1) == 1;
+                boolean inB = (b & 1) == 1;
+                boolean in = operation == UNION ? inA || inB :
+                        operation == INTERSECTION ? inA && inB :
+                                inA && !inB;
+                if (in && start < 0) {
+                    start = x;
+                } else if (!in && start >= 0) {
+                    if (x > start) {
+                        builder.addRun(start, x);
+                    }
+                    start = -1;
+                }
+            }
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Appends runs row by row, merging runs that touch.
+     */
+    private static class Builder {
+
+        private final int width;
+        private final int height;
+        private final int[] rowStarts;
+        private int[] runs = new int[64];
+        private int nRuns = 0;
+        private int row = 0;
+
+        private Builder(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.rowStarts = new int[height + 1];
+        }
+
+        private void addRun(int start, int end) {
+            if (nRuns > rowStarts[row] && runs[2 * nRuns - 1] == start) {
+                runs[2 * nRuns - 1] = end;
+                return;
+            }
+            if (2 * nRuns + 2 > runs.length) {
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            }
+            runs[2 * nRuns] = start;
+            runs[2 * nRuns + 1] = end;
+            nRuns++;
+        }
+
+        private void endRow() {
+            rowStarts[++row] = nRuns;
+        }
+
+        private RunLengthMask build() {
+            return new RunLengthMask(width, height, rowStarts, Arrays.copyOf(runs, 2 * nRuns));
+        }
+    }
+}
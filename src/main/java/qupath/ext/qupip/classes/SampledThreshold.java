@@ -0,0 +1,139 @@
+package qupath.ext.qupip.classes;
+
+import ij.process.AutoThresholder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Estimation of a global threshold from a sample of tiles.
+ * <p>
+ * The tiles are sampled with a stratified scheme: the tiles (in raster order) are split into equal strata and
+ * one tile is drawn at random from each, so the sample covers the whole slide. The confidence interval of the
+ * estimate is computed by bootstrapping: the sampled tile histograms are resampled with replacement, and the
+ * spread of the thresholds of the resamples gives the interval.
+ */
+public class SampledThreshold {
+
+    private final StainHistogram histogram;
+    private final double threshold;
+    private final double lower;
+    private final double upper;
+    private final int nTiles;
+
+    private SampledThreshold(StainHistogram histogram, double threshold, double lower, double upper, int nTiles) {
+        this.histogram = histogram;
+        this.threshold = threshold;
+        this.lower = lower;
+        this.upper = upper;
+        this.nTiles = nTiles;
+    }
+
+    /**
+     * Choose a stratified random sample of tile indices.
+     *
+     * @param nTiles The number of tiles.
+     * @param fraction The fraction of tiles to sample; at least one tile is always sampled.
+     * @param random The source of randomness.
+     * @return The sampled indices, in increasing order.
+     */
+    public static int[] sampleTiles(int nTiles, double fraction, Random random) {
+        if (nTiles <= 0) {
+            return new int[0];
+        }
+        int nSamples = Math.min(nTiles, Math.max(1, (int) Math.ceil(nTiles * fraction)));
+        int[] indices = new int[nSamples];
+        for (int s = 0; s < nSamples; s++) {
+            int start = (int) ((long) s * nTiles / nSamples);
+            int end = (int) ((long) (s + 1) * nTiles / nSamples);
+            indices[s] = start + random.nextInt(end - start);
+        }
+        return indices;
+    }
+
+    /**
+     * Estimate the threshold from the histograms of the sampled tiles.
+     *
+     * @param tileHistograms One histogram per sampled tile, all with the same bins.
+     * @param method The threshold method.
+     * @param nBootstrap The number of bootstrap resamples used for the confidence interval.
+     * @param confidence The confidence level of the interval, e.g. 0.95.
+     * @param random The source of randomness.
+     * @return The estimate.
+     */
+    public static SampledThreshold estimate(List<StainHistogram> tileHistograms, AutoThresholder.Method method,
+                                            int nBootstrap, double confidence, Random random) {
+        int n = tileHistograms.size();
+        if (n == 0) {
+            return new SampledThreshold(null, Double.NaN, Double.NaN, Double.NaN, 0);
+        }
+        StainHistogram merged = new StainHistogram(tileHistograms.get(0));
+        for (StainHistogram histogram : tileHistograms) {
+            merged.merge(histogram);
+        }
+        double threshold = merged.getThreshold(method);
+
+        double[] resampled = new double[Math.max(0, nBootstrap)];
+        StainHistogram resample = new StainHistogram(merged);
+        for (int b = 0; b < resampled.length; b++) {
+            Arrays.fill(resample.getCounts(), 0);
+            for (int i = 0; i < n; i++) {
+                resample.merge(tileHistograms.get(random.nextInt(n)));
+            }
+            resampled[b] = resample.getThreshold(method);
+        }
+        double[] valid = Arrays.stream(resampled).filter(t -> !Double.isNaN(t)).sorted().toArray();
+        if (valid.length == 0) {
+            return new SampledThreshold(merged, threshold, threshold, threshold, n);
+        }
+        double tail = (1 - confidence) / 2;
+        return new SampledThreshold(merged, threshold, percentile(valid, tail), percentile(valid, 1 - tail), n);
+    }
+
+    /**
+     * @return The histogram of all sampled tiles, or null if no tiles were sampled.
+     */
+    public StainHistogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * @return The estimated threshold, or NaN if no pixels were sampled.
+     */
+    public double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return The lower bound of the confidence interval.
+     */
+    public double getLower() {
+        return lower;
+    }
+
+    /**
+     * @return The upper bound of the confidence interval.
+     */
+    public double getUpper() {
+        return upper;
+    }
+
+    /**
+     * @return The number of tiles the estimate is based on.
+     */
+    public int getTileCount() {
+        return nTiles;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Threshold %.4f, confidence interval [%.4f, %.4f] from %d tiles",
+                threshold, lower, upper, nTiles);
+    }
+
+    private static double percentile(double[] sorted, double p) {
+        int index = (int) Math.round(p * (sorted.length - 1));
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
@@ -0,0 +1,173 @@
+package qupath.ext.qupip.classes;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.Rectangle;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks a slide in fixed-size tiles at a given downsample.
+ * Each tile is requested with a halo of extra pixels on every side, so that neighbourhood filters
+ * (e.g. a Gaussian blur) see the same context as they would on the whole slide.
+ * Only the core of each tile (the tile without its halo) should contribute to the stitched result.
+ * Tiles are created lazily, one per call to {@link #next()}.
+ */
+public class SlideTiler implements Iterator<SlideTiler.Tile> {
+
+    private final String path;
+    private final int slideWidth;
+    private final int slideHeight;
+    private final double downsample;
+    private final int tileStep;
+    private final int haloStep;
+
+    private int x = 0;
+    private int y = 0;
+
+    /**
+     * @param server The server to tile.
+     * @param downsample The downsample at which tiles will be read.
+     * @param tileSize The size of the tile core, in pixels at the requested downsample.
+     * @param haloPixels The halo added on each side of the core, in pixels at the requested downsample.
+     */
+    public SlideTiler(ImageServer<?> server, double downsample, int tileSize, int haloPixels) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("Tile size must be > 0, but was " + tileSize);
+        }
+        this.path = server.getPath();
+        this.slideWidth = server.getWidth();
+        this.slideHeight = server.getHeight();
+        this.downsample = downsample;
+        this.tileStep = (int) Math.ceil(tileSize * downsample);
+        this.haloStep = (int) Math.ceil(Math.max(0, haloPixels) * downsample);
+    }
+
+    /**
+     * @return The total number of tiles, including those already returned.
+     */
+    public int getTileCount() {
+        return getColumnCount() * getRowCount();
+    }
+
+    /**
+     * @return The number of columns of tiles.
+     */
+    public int getColumnCount() {
+        return (slideWidth + tileStep - 1) / tileStep;
+    }
+
+    /**
+     * @return The number of rows of tiles.
+     */
+    public int getRowCount() {
+        return (slideHeight + tileStep - 1) / tileStep;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return y < slideHeight;
+    }
+
+    @Override
+    public Tile next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        int coreWidth = Math.min(tileStep, slideWidth - x);
+        int coreHeight = Math.min(tileStep, slideHeight - y);
+        int x1 = Math.max(0, x - haloStep);
+        int y1 = Math.max(0, y - haloStep);
+        int x2 = Math.min(slideWidth, x + coreWidth + haloStep);
+        int y2 = Math.min(slideHeight, y + coreHeight + haloStep);
+
+        Tile tile = new Tile(
+                RegionRequest.createInstance(path, downsample, x1, y1, x2 - x1, y2 - y1),
+                new Rectangle(x, y, coreWidth, coreHeight),
+                downsample,
+                (y / tileStep) * getColumnCount() + x / tileStep
+        );
+
+        x += tileStep;
+        if (x >= slideWidth) {
+            x = 0;
+            y += tileStep;
+        }
+        return tile;
+    }
+
+    /**
+     * A single tile: the region to read (core plus halo) and the core that the tile is responsible for.
+     */
+    public static class Tile {
+
+        private final RegionRequest request;
+        private final Rectangle core;
+        private final double downsample;
+        private final int index;
+
+        Tile(RegionRequest request, Rectangle core, double downsample, int index) {
+            this.request = request;
+            this.core = core;
+            this.downsample = downsample;
+            this.index = index;
+        }
+
+        /**
+         * @return The index of the tile, in raster order (row by row).
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return The region to read, including the halo.
+         */
+        public RegionRequest getRequest() {
+            return request;
+        }
+
+        /**
+         * @return The core of the tile, in full-resolution slide coordinates.
+         */
+        public Rectangle getCore() {
+            return core;
+        }
+
+        /**
+         * Get the core of the tile in the pixel coordinates of an image read for {@link #getRequest()}.
+         * This is {@link #getCoreInGrid()} moved by the origin of the request on the same grid, so that both
+         * rectangles hold the same pixels even when the downsample is not an integer.
+         *
+         * @param imageWidth The width of the image that was read.
+         * @param imageHeight The height of the image that was read.
+         * @return The core rectangle, clipped to the image bounds.
+         */
+        public Rectangle getCoreInTile(int imageWidth, int imageHeight) {
+            Rectangle grid = getCoreInGrid();
+            int originX = (int) Math.round(request.getX() / downsample);
+            int originY = (int) Math.round(request.getY() / downsample);
+            int x1 = Math.max(0, grid.x - originX);
+            int y1 = Math.max(0, grid.y - originY);
+            int x2 = Math.min(imageWidth, grid.x + grid.width - originX);
+            int y2 = Math.min(imageHeight, grid.y + grid.height - originY);
+            return new Rectangle(x1, y1, Math.max(0, x2 - x1), Math.max(0, y2 - y1));
+        }
+
+        /**
+         * Get the core of the tile in the pixel coordinates of the whole slide at the requested downsample.
+         * The cores of neighbouring tiles share their edges exactly, so results traced in these coordinates
+         * can be stitched.
+         *
+         * @return The core rectangle, on the grid of the downsampled slide.
+         */
+        public Rectangle getCoreInGrid() {
+            int x1 = (int) Math.round(core.x / downsample);
+            int y1 = (int) Math.round(core.y / downsample);
+            int x2 = (int) Math.round((core.x + core.width) / downsample);
+            int y2 = (int) Math.round((core.y + core.height) / downsample);
+            return new Rectangle(x1, y1, x2 - x1, y2 - y1);
+        }
+    }
+}
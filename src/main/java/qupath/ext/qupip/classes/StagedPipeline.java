@@ -0,0 +1,180 @@
+package qupath.ext.qupip.classes;
+
+import qupath.lib.common.ThreadTools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A pipeline of stages connected by bounded queues.
+ * Each stage runs on its own worker threads, taking items from the queue before it and putting them in the
+ * queue after it. A full queue blocks the stage feeding it, so a fast stage (e.g. reading) can run ahead of a
+ * slow one (e.g. blurring) by at most the queue capacity, and the number of items in flight stays bounded.
+ * The final stage runs on the thread calling {@link #run(Stage)}, so it is always executed serially.
+ *
+ * @param <T> The type of item passed between stages. Stages usually fill in fields of the item.
+ */
+public class StagedPipeline<T> {
+
+    /**
+     * A single step applied to every item.
+     *
+     * @param <T> The type of item.
+     */
+    public interface Stage<T> {
+        void process(T item) throws Exception;
+    }
+
+    private static final Object END = new Object();
+
+    private final Iterator<? extends T> source;
+    private final int queueCapacity;
+    private final List<String> names = new ArrayList<>();
+    private final List<Integer> threads = new ArrayList<>();
+    private final List<Stage<T>> stages = new ArrayList<>();
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * @param source The items to process. This is only ever called from a single feeder thread.
+     * @param queueCapacity The capacity of the queue in front of each stage.
+     */
+    public StagedPipeline(Iterator<? extends T> source, int queueCapacity) {
+        this.source = source;
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    /**
+     * Append a stage to the pipeline.
+     *
+     * @param name The name of the stage, used for its threads.
+     * @param nThreads The number of threads running the stage.
+     * @param stage The stage.
+     * @return This pipeline.
+     */
+    public StagedPipeline<T> addStage(String name, int nThreads, Stage<T> stage) {
+        names.add(name);
+        threads.add(Math.max(1, nThreads));
+        stages.add(stage);
+        return this;
+    }
+
+    /**
+     * Run every item through all stages, then through the final stage on the calling thread.
+     *
+     * @param finalStage The stage run serially on the calling thread.
+     * @throws IOException If a stage threw an IOException.
+     * @throws InterruptedException If the calling thread is interrupted.
+     */
+    public void run(Stage<T> finalStage) throws IOException, InterruptedException {
+        List<BlockingQueue<Object>> queues = new ArrayList<>();
+        for (int i = 0; i <= stages.size(); i++) {
+            queues.add(new ArrayBlockingQueue<>(queueCapacity));
+        }
+        List<ExecutorService> pools = new ArrayList<>();
+        try {
+            ExecutorService feeder = Executors.newSingleThreadExecutor(
+                    ThreadTools.createThreadFactory("qupip-feed-", true));
+            pools.add(feeder);
+            feeder.submit(() -> feed(queues.get(0)));
+
+            for (int i = 0; i < stages.size(); i++) {
+                int nThreads = threads.get(i);
+                ExecutorService pool = Executors.newFixedThreadPool(nThreads,
+                        ThreadTools.createThreadFactory("qupip-" + names.get(i) + "-", true));
+                pools.add(pool);
+                AtomicInteger running = new AtomicInteger(nThreads);
+                for (int t = 0; t < nThreads; t++) {
+                    Stage<T> stage = stages.get(i);
+                    BlockingQueue<Object> input = queues.get(i);
+                    BlockingQueue<Object> output = queues.get(i + 1);
+                    pool.submit(() -> work(stage, input, output, running));
+                }
+            }
+
+            BlockingQueue<Object> last = queues.get(stages.size());
+            while (true) {
+                Object item = last.poll(100, TimeUnit.MILLISECONDS);
+                checkFailure();
+                if (item == END) {
+                    break;
+                }
+                if (item != null) {
+                    finalStage.process(cast(item));
+                }
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            for (ExecutorService pool : pools) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private void feed(BlockingQueue<Object> output) {
+        try {
+            while (source.hasNext()) {
+                output.put(source.next());
+            }
+            output.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+    }
+
+    private void work(Stage<T> stage, BlockingQueue<Object> input, BlockingQueue<Object> output,
+                      AtomicInteger running) {
+        try {
+            while (true) {
+                Object item = input.take();
+                if (item == END) {
+                    // Let the other workers of this stage see the end too; the last one passes it on
+                    input.put(END);
+                    if (running.decrementAndGet() == 0) {
+                        output.put(END);
+                    }
+                    return;
+                }
+                stage.process(cast(item));
+                output.put(item);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure.get();
+        if (t == null) {
+            return;
+        }
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        throw new RuntimeException(t);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T cast(Object item) {
+        return (T) item;
+    }
+}
@@ -0,0 +1,323 @@
+package qupath.ext.qupip.classes;
+
+import ij.process.AutoThresholder;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * A fixed-bin histogram of stain values, which can be accumulated tile by tile without retaining any pixels.
+ * <p>
+ * Because the bins are fixed up front (rather than derived from the min and max of one image, as ImageJ does),
+ * histograms built on different threads, tiles or regions can be merged, and a threshold computed from the merged
+ * histogram is consistent across all of them. Values outside the range are counted in the first or last bin.
+ * A histogram of a single image can also be binned exactly as ImageJ does, see {@link #of(float[], int, int)}.
+ * <p>
+ * Thresholds can be computed with any of ImageJ's {@link AutoThresholder} methods, so several methods can be
+ * compared on the same histogram without re-reading or re-blurring the pixels.
+ */
+public class StainHistogram {
+
+    /**
+     * The largest total count passed to {@link AutoThresholder} without scaling.
+     */
+    private static final long MAX_TOTAL = 1L << 30;
+
+    private final double min;
+    private final double max;
+    private final double binWidth;
+    private final long[] counts;
+    private final boolean imageJBins;
+
+    /**
+     * @param min The lower bound of the first bin.
+     * @param max The upper bound of the last bin.
+     * @param nBins The number of bins.
+     */
+    public StainHistogram(double min, double max, int nBins) {
+        this(min, max, nBins, false);
+    }
+
+    private StainHistogram(double min, double max, int nBins, boolean imageJBins) {
+        if (!imageJBins && (!(max > min) || nBins < 2)) {
+            throw new IllegalArgumentException("Invalid histogram range [" + min + ", " + max + "] with " + nBins + " bins");
+        }
+        this.min = min;
+        this.max = max;
+        this.binWidth = imageJBins ? (max - min) / (nBins - 1) : (max - min) / nBins;
+        this.counts = new long[nBins];
+        this.imageJBins = imageJBins;
+    }
+
+    /**
+     * Create an empty histogram with the same bins as another one.
+     *
+     * @param template The histogram whose bins are copied.
+     */
+    public StainHistogram(StainHistogram template) {
+        this(template.min, template.max, template.counts.length, template.imageJBins);
+    }
+
+    /**
+     * Create a histogram of all the pixels of an image binned as ImageJ does when auto-thresholding a float image:
+     * the image is converted to 8 bits over the range of its values, so that the 256 bins are centred on the min,
+     * the max and 254 values evenly spaced between them. Thresholds are then the same as those of
+     * {@link ij.process.ImageProcessor#setAutoThreshold(AutoThresholder.Method, boolean, int)} with a dark
+     * background. As in ImageJ, infinite values are left out of the range, and NaN values are counted in the
+     * first bin.
+     *
+     * @param pixels The pixels.
+     * @param width The image width.
+     * @param height The image height.
+     * @return The histogram, which cannot be merged with histograms of other images.
+     */
+    public static StainHistogram of(float[] pixels, int width, int height) {
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (float value : pixels) {
+            if (!Float.isInfinite(value)) {
+                if (value < min) {
+                    min = value;
+                }
+                if (value > max) {
+                    max = value;
+                }
+            }
+        }
+        StainHistogram histogram = new StainHistogram(min, max, 256, true);
+        // The same float arithmetic as ImageJ's conversion to 8 bits, so that values fall in the same bins
+        float scale = 255f / (max - min);
+        for (int i = 0; i < width * height; i++) {
+            float value = pixels[i] - min;
+            if (value < 0f) {
+                value = 0f;
+            }
+            int bin = (int) ((value * scale) + 0.5f);
+            histogram.counts[bin > 255 ? 255 : bin]++;
+        }
+        return histogram;
+    }
+
+    /**
+     * Add the pixels inside a rectangle, e.g. the core of a tile.
+     *
+     * @param pixels The pixels, row by row.
+     * @param width The image width.
+     * @param rect The rectangle to add, which must lie within the image.
+     */
+    public void add(float[] pixels, int width, Rectangle rect) {
+        int nBins = counts.length;
+        double scale = 1.0 / binWidth;
+        for (int y = rect.y; y < rect.y + rect.height; y++) {
+            int offset = y * width;
+            for (int x = rect.x; x < rect.x + rect.width; x++) {
+                float value = pixels[offset + x];
+                if (Float.isNaN(value)) {
+                    continue;
+                }
+                int bin = (int) ((value - min) * scale);
+                counts[bin < 0 ? 0 : (bin >= nBins ? nBins - 1 : bin)]++;
+            }
+        }
+    }
+
+    /**
+     * Add the counts of another histogram with the same bins to this one.
+     *
+     * @param other The histogram to merge.
+     */
+    public void merge(StainHistogram other) {
+        if (other.min != min || other.max != max || other.counts.length != counts.length
+                || other.imageJBins != imageJBins) {
+            throw new IllegalArgumentException("Cannot merge histograms with different bins");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+    }
+
+    /**
+     * @return The counts per bin. This is the internal array, not a copy.
+     */
+    public long[] getCounts() {
+        return counts;
+    }
+
+    /**
+     * @return The total number of values added.
+     */
+    public long getTotalCount() {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @param bin The bin index.
+     * @return The lower bound of the bin.
+     */
+    public double getBinLowerBound(int bin) {
+        return min + (imageJBins ? bin - 0.5 : bin) * binWidth;
+    }
+
+    /**
+     * @return The width of each bin.
+     */
+    public double getBinWidth() {
+        return binWidth;
+    }
+
+    /**
+     * Compute a threshold with one of ImageJ's methods, for an image with a dark background (i.e. values greater
+     * than or equal to the threshold are the objects). Every method uses {@link AutoThresholder} on the counts, so
+     * thresholds are the same as ImageJ's for the same bins. Some methods sum counts in an int, so counts are
+     * scaled down if their total would overflow; Otsu is then computed directly on the exact counts instead.
+     *
+     * @param method The method.
+     * @return The threshold, or NaN if the histogram is empty.
+     */
+    public double getThreshold(AutoThresholder.Method method) {
+        long total = getTotalCount();
+        if (total == 0) {
+            return Double.NaN;
+        }
+        long scale = Math.max(1, (total + MAX_TOTAL - 1) / MAX_TOTAL);
+        if (scale > 1 && method == AutoThresholder.Method.Otsu) {
+            return getThresholdAt(getOtsuBin(counts) + 1);
+        }
+        int[] scaled = new int[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            scaled[i] = (int) ((counts[i] + scale - 1) / scale);
+        }
+        int bin = new AutoThresholder().getThreshold(method, scaled);
+        return getThresholdAt(bin + 1);
+    }
+
+    /**
+     * Compute the Otsu threshold, i.e. the split maximizing the between-class variance.
+     * Values greater than or equal to the returned threshold belong to the upper class.
+     *
+     * @return The threshold, or NaN if the histogram is empty.
+     */
+    public double getOtsuThreshold() {
+        return getThreshold(AutoThresholder.Method.Otsu);
+    }
+
+    /**
+     * Compute the multi-level Otsu thresholds, i.e. the splits into {@code nThresholds + 1} classes maximizing the
+     * between-class variance. The optimal splits are found by dynamic programming over the bins, in
+     * O(nThresholds * nBins^2) rather than the O(nBins^nThresholds) of an exhaustive search.
+     * Class {@code k} holds the values greater than or equal to threshold {@code k - 1} and less than threshold
+     * {@code k}.
+     *
+     * @param nThresholds The number of thresholds, less than the number of bins.
+     * @return The thresholds, in increasing order; all NaN if the histogram is empty.
+     */
+    public double[] getMultiOtsuThresholds(int nThresholds) {
+        int nBins = counts.length;
+        if (nThresholds < 1 || nThresholds >= nBins) {
+            throw new IllegalArgumentException("Cannot split " + nBins + " bins with " + nThresholds + " thresholds");
+        }
+        double[] thresholds = new double[nThresholds];
+        double[] weight = new double[nBins + 1];
+        double[] sum = new double[nBins + 1];
+        for (int i = 0; i < nBins; i++) {
+            weight[i + 1] = weight[i] + counts[i];
+            sum[i + 1] = sum[i] + (double) i * counts[i];
+        }
+        if (weight[nBins] == 0) {
+            Arrays.fill(thresholds, Double.NaN);
+            return thresholds;
+        }
+
+        // best[b] is the best score splitting the bins [0, b) into the classes so far, and start[c][b] is where
+        // the last of these classes starts. Maximizing the sum of (class sum)^2 / (class weight) maximizes the
+        // between-class variance, as the total mean is fixed.
+        double[] best = new double[nBins + 1];
+        for (int b = 1; b <= nBins; b++) {
+            best[b] = classScore(weight, sum, 0, b);
+        }
+        int[][] start = new int[nThresholds + 1][nBins + 1];
+        for (int c = 1; c <= nThresholds; c++) {
+            double[] next = new double[nBins + 1];
+            Arrays.fill(next, Double.NEGATIVE_INFINITY);
+            for (int b = c + 1; b <= nBins; b++) {
+                for (int a = c; a < b; a++) {
+                    double score = best[a] + classScore(weight, sum, a, b);
+                    if (score > next[b]) {
+                        next[b] = score;
+                        start[c][b] = a;
+                    }
+                }
+            }
+            best = next;
+        }
+
+        int end = nBins;
+        for (int c = nThresholds; c >= 1; c--) {
+            end = start[c][end];
+            thresholds[c - 1] = getThresholdAt(end);
+        }
+        return thresholds;
+    }
+
+    /**
+     * Get the threshold that puts a bin and those above it in the upper class. As in ImageJ, the last bin is
+     * always in the upper class. With ImageJ's bins, this is the centre of the bin, as ImageJ computes it.
+     */
+    private double getThresholdAt(int bin) {
+        bin = Math.min(bin, counts.length - 1);
+        if (!imageJBins) {
+            return getBinLowerBound(bin);
+        }
+        return max > min ? min + (bin / (double) (counts.length - 1)) * (max - min) : min;
+    }
+
+    private static double classScore(double[] weight, double[] sum, int start, int end) {
+        double w = weight[end] - weight[start];
+        if (w == 0) {
+            return 0;
+        }
+        double s = sum[end] - sum[start];
+        return s * s / w;
+    }
+
+    /**
+     * Find the last bin of the lower class according to Otsu's method.
+     *
+     * @param counts The histogram counts.
+     * @return The bin index, or -1 if the histogram is empty.
+     */
+    private static int getOtsuBin(long[] counts) {
+        double total = 0;
+        double sum = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i];
+            sum += (double) i * counts[i];
+        }
+        if (total == 0) {
+            return -1;
+        }
+        double weightBelow = 0;
+        double sumBelow = 0;
+        double bestVariance = -1;
+        int best = 0;
+        for (int i = 0; i < counts.length - 1; i++) {
+            weightBelow += counts[i];
+            sumBelow += (double) i * counts[i];
+            double weightAbove = total - weightBelow;
+            if (weightBelow == 0 || weightAbove == 0) {
+                continue;
+            }
+            double meanDifference = sumBelow / weightBelow - (sum - sumBelow) / weightAbove;
+            double variance = weightBelow * weightAbove * meanDifference * meanDifference;
+            if (variance > bestVariance) {
+                bestVariance = variance;
+                best = i;
+            }
+        }
+        return best;
+    }
+}
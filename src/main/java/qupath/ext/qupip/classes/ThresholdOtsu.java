@@ -1,164 +1,653 @@
 package qupath.ext.qupip.classes;
 
 import ij.ImagePlus;
-import ij.gui.Roi;
+import ij.measure.Calibration;
 import ij.plugin.filter.GaussianBlur;
-import ij.plugin.filter.ThresholdToSelection;
 import ij.process.AutoThresholder;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygon;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.qupip.qupipExtension;
 import qupath.imagej.tools.IJTools;
+import qupath.lib.common.GeneralTools;
 import qupath.lib.color.ColorDeconvolutionStains;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.PathImage;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.PixelCalibration;
 import qupath.lib.measurements.MeasurementList;
-import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjects;
-import qupath.lib.objects.hierarchy.PathObjectHierarchy;
-import qupath.lib.regions.RegionRequest;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.GeometryTools;
 import qupath.lib.roi.interfaces.ROI;
 import qupath.lib.scripting.QP;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
 
 public class ThresholdOtsu {
 
-    private static Map<String, Object> params = Map.of(
-            "Roi", "Region*",
-            "ChannelExtrMethod", "OpticalDensitySum",
-            "stainName", "OpticalDensitySum",
-            "setPathClass", "Vessels",
-            "MinFragment", "1000.0",
-            "MaxHole", "1000.0",
-            "Downsample", 3.0,
-            "gaussianSigma", 15.0
+    private static final Logger logger = LoggerFactory.getLogger(ThresholdOtsu.class);
+
+    private static Map<String, Object> params = Map.ofEntries(
+            Map.entry("Roi", "Region*"),
+            Map.entry("ChannelExtrMethod", "OpticalDensitySum"),
+            Map.entry("stainName", "OpticalDensitySum"),
+            Map.entry("setPathClass", "Vessels"),
+            Map.entry("MinFragment", "1000.0"),
+            Map.entry("MaxHole", "1000.0"),
+            Map.entry("Downsample", 3.0),
+            Map.entry("DownsampleMode", PyramidLevels.MODE_SNAP),
+            Map.entry("DownsampleTolerance", 0.05),
+            Map.entry("gaussianSigma", 15.0),
+            Map.entry("BlurEngine", "ImageJ"),
+            Map.entry("BlurShortcutSigma", Double.POSITIVE_INFINITY),
+            Map.entry("BlurShortcutMaxError", 0.01),
+            Map.entry("TileSize", 2048),
+            Map.entry("ReaderThreads", 2),
+            Map.entry("ThresholdScope", "Region"),
+            Map.entry("HistogramMin", 0.0),
+            Map.entry("HistogramMax", 3.0),
+            Map.entry("HistogramBins", 4096),
+            Map.entry("ThresholdMethod", "Otsu"),
+            Map.entry("ThresholdMethods", "Otsu"),
+            Map.entry("ThresholdEstimation", "Full"),
+            Map.entry("SampleFraction", 0.05),
+            Map.entry("SampleDownsampleFactor", 4.0),
+            Map.entry("SampleBootstrap", 200),
+            Map.entry("SampleSeed", 0),
+            Map.entry("LocalThresholdMethod", "None"),
+            Map.entry("LocalWindow", 200.0),
+            Map.entry("LocalK", 0.2),
+            Map.entry("LocalR", 0.5),
+            Map.entry("LocalContrast", 0.15),
+            Map.entry("MultiLevelClasses", ""),
+            Map.entry("HysteresisLowFactor", 1.0),
+            Map.entry("SimplifyTolerance", 0.0),
+            Map.entry("MaxVertices", 0),
+            Map.entry("FragmentObjects", false)
     );
 
     String RoiPathClass = params.containsKey("Roi") ? params.get("Roi").toString() : null;
     String channelExtractionMethod = params.get("ChannelExtrMethod").toString();
     String stainName = params.get("stainName").toString();
     String setPathClass = params.get("setPathClass").toString();
+    String blurEngine = params.get("BlurEngine").toString();
+    double blurShortcutSigma = (double) params.get("BlurShortcutSigma");
+    double blurShortcutMaxError = (double) params.get("BlurShortcutMaxError");
+    String thresholdScope = params.get("ThresholdScope").toString();
+    double histogramMin = (double) params.get("HistogramMin");
+    double histogramMax = (double) params.get("HistogramMax");
+    int histogramBins = (int) params.get("HistogramBins");
+    AutoThresholder.Method thresholdMethod = AutoThresholder.Method.valueOf(params.get("ThresholdMethod").toString());
+    List<AutoThresholder.Method> thresholdMethods = parseThresholdMethods(
+            params.get("ThresholdMethods").toString(), thresholdMethod);
+    String thresholdEstimation = params.get("ThresholdEstimation").toString();
+    double sampleFraction = (double) params.get("SampleFraction");
+    double sampleDownsampleFactor = (double) params.get("SampleDownsampleFactor");
+    int sampleBootstrap = (int) params.get("SampleBootstrap");
+    long sampleSeed = (int) params.get("SampleSeed");
 
 
     ImageData<BufferedImage> imageData = QP.getCurrentImageData();
     ImageServer<BufferedImage> server = imageData.getServer();
     PixelCalibration cal = server.getPixelCalibration();
-    double resolutionDownsampleFactor = (double) params.get("Downsample");
+    String downsampleMode = params.get("DownsampleMode").toString();
+    double downsampleTolerance = (double) params.get("DownsampleTolerance");
+    double resolutionDownsampleFactor = PyramidLevels.chooseDownsample(server,
+            (double) params.get("Downsample"), downsampleMode, downsampleTolerance);
     double requestedPixelSizeMicrons = cal.getAveragedPixelSizeMicrons() * resolutionDownsampleFactor;
+    int tileSize = (int) params.get("TileSize");
+    int numThreads = Math.max(1, qupipExtension.numThreadsProperty().getValue());
+    int readerThreads = (int) params.get("ReaderThreads");
+    // The threads of each pipeline stage, which together add up to numThreads (with at least one per stage)
+    int pipelineReaders = Math.max(1, Math.min(readerThreads, numThreads / 3));
+    int pipelineExtractors = Math.max(1, (numThreads - pipelineReaders) / 2);
+    int pipelineWorkers = Math.max(1, numThreads - pipelineReaders - pipelineExtractors);
+    ParallelGaussian parallelGaussian = blurEngine.equals("Parallel") ? new ParallelGaussian(numThreads) : null;
     ColorDeconvolutionStains stains = getStains();
+    // The index of "stainName" among the stains, or -1 if it is not one of them
+    int stainIndex = stains == null ? -1 : getStainIndex();
+    LocalThreshold localThreshold = createLocalThreshold();
+    List<String> classNames = parseClassNames(params.get("MultiLevelClasses").toString());
+    double hysteresisLowFactor = (double) params.get("HysteresisLowFactor");
+    double simplifyTolerance = (double) params.get("SimplifyTolerance");
+    int maxVertices = (int) params.get("MaxVertices");
+    FragmentFilter fragmentFilter = createFragmentFilter();
+    FragmentMorphometry fragmentMorphometry = (boolean) params.get("FragmentObjects") ?
+            new FragmentMorphometry(numThreads) : null;
 
-    PathImage<ImagePlus> pathImage;
-    PathObjectHierarchy hierarchy;
-    PathAnnotationObject regionAnnotation;
+    // The annotations created by this run, committed and selected together once it is done
+    AnnotationBatch createdObjects;
 
     /**
      * This method applies a threshold to each region of an image.
-     * It first updates the image's hierarchy, then computes the regions of the image.
-     * For each region, it applies a threshold to the region.
+     * It pulls the regions of the image from a {@link RegionSource}.
+     * The regions flow through a {@link StagedPipeline}: reading, channel extraction and thresholding each run
+     * on their own worker threads (sized from the extension's thread preference), connected by bounded queues.
+     * Each worker only touches its own region, and the results are staged on the calling thread. Once all regions
+     * are done (or the run fails), they are committed to the hierarchy in one batch with a single change event,
+     * and the annotations of this run (and only those) are selected (see {@link AnnotationBatch}).
+     * With a "ThresholdScope" of "Global", a first pass computes a single threshold shared by all regions.
+     * With "MultiLevelClasses", each region gets one annotation per intensity class (see
+     * {@link #computeClassBounds(StainHistogram, Map)}) from the same read, extraction and blur.
+     * With "FragmentObjects", each annotation of a region gets one detection per fragment of its mask, with the
+     * shape and intensity measurements of {@link FragmentMorphometry}.
      *
      * @throws IOException If an I/O error occurs.
      * @throws InterruptedException If the thread execution is interrupted.
      */
     public void thresholdRegions() throws IOException, InterruptedException {
-        // Update the image's hierarchy
-        updateHierarchy();
-        // Compute the regions of the image
-        for (PathImage<ImagePlus> pathImage : computeRegions()) {
-            this.pathImage = pathImage;
-            // Apply a threshold to the region
-            this.thresholdIp(this.getStainIp(pathImage));
+        createdObjects = new AnnotationBatch(imageData.getHierarchy());
+        try {
+            if (channelExtractionMethod.equals("Deconvolution") && stainIndex < 0) {
+                // Every region would be skipped
+                logger.warn("Could not find stain with name {}!", stainName);
+                return;
+            }
+            // Without a "Roi" the whole slide is thresholded, which is streamed tile by tile
+            if (RoiPathClass == null) {
+                thresholdSlideTiled();
+            } else {
+                thresholdRegionsPipelined();
+            }
+        } finally {
+            createdObjects.commit(this);
+            if (fragmentMorphometry != null) {
+                fragmentMorphometry.shutdown();
+            }
+        }
+    }
+
+    private void thresholdRegionsPipelined() throws IOException, InterruptedException {
+        // With a "Global" scope, a first pass builds one histogram over all regions and derives a single set of
+        // thresholds; otherwise each region gets its own (null)
+        StainHistogram histogram = thresholdScope.equals("Global") && localThreshold == null ?
+                computeGlobalHistogram(map(createRegionSource(), RegionWork::new)) : null;
+        Map<AutoThresholder.Method, Double> thresholds = histogram != null ? computeThresholds(histogram) : null;
+        double[] classBounds = histogram != null ? computeClassBounds(histogram, thresholds) : null;
+        newPipeline(map(createRegionSource(), RegionWork::new), getSigmaPixels())
+                .addStage("threshold", pipelineWorkers, work -> {
+                    if (work.ipStain != null) {
+                        work.annotations = this.thresholdIp(work, thresholds, classBounds);
+                    }
+                    // Release the pixels before the item waits for its commit
+                    work.release();
+                })
+                .run(work -> {
+                    // Stage serially on this thread
+                    if (work.annotations != null && !work.annotations.isEmpty()) {
+                        for (PathObject annotation : work.annotations) {
+                            createdObjects.add(work.region.getParent(), annotation);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Pull the regions of the image lazily, so only the regions in flight are held.
+     */
+    private RegionSource createRegionSource() {
+        return new RegionSource(server, resolutionDownsampleFactor, QP.getAnnotationObjects(), RoiPathClass);
+    }
+
+    /**
+     * Create a pipeline that reads, then extracts and blurs each region or tile.
+     * Reading the next items overlaps with processing the current ones, while the queues between stages bound
+     * how many are held at once. The image read is dropped once the stain is extracted, keeping only where it
+     * lies. The caller adds one further stage, with {@link #pipelineWorkers} threads, so that the stages use
+     * about numThreads threads in total.
+     */
+    private StagedPipeline<RegionWork> newPipeline(Iterator<RegionWork> works, double sigmaPixels) {
+        return new StagedPipeline<>(works, numThreads)
+                .addStage("read", pipelineReaders, work -> work.pathImage = work.readImage(server))
+                .addStage("extract", pipelineExtractors, work -> {
+                    work.ipStain = this.getStainIp(work.pathImage);
+                    work.keepRegionOnly();
+                    if (work.ipStain != null) {
+                        applyGaussianBlur(work.ipStain, sigmaPixels);
+                    }
+                });
+    }
+
+    /**
+     * First pass of the two-pass threshold engine.
+     * The blurred stain channel of every item is streamed into a fixed-bin {@link StainHistogram}; each worker
+     * thread fills its own histogram, and these are merged at the end. Pixels are released as soon as they
+     * have been counted, so memory does not grow with the number of items.
+     *
+     * @return The merged histogram.
+     */
+    private StainHistogram computeGlobalHistogram(Iterator<RegionWork> works) throws IOException, InterruptedException {
+        Queue<StainHistogram> histograms = new ConcurrentLinkedQueue<>();
+        ThreadLocal<StainHistogram> threadHistogram = ThreadLocal.withInitial(() -> {
+            StainHistogram histogram = createHistogram();
+            histograms.add(histogram);
+            return histogram;
+        });
+        newPipeline(works, getSigmaPixels())
+                .addStage("histogram", pipelineWorkers, work -> {
+                    if (work.ipStain != null) {
+                        threadHistogram.get().add((float[]) work.ipStain.getPixels(), work.ipStain.getWidth(),
+                                work.getCore(work.ipStain.getWidth(), work.ipStain.getHeight()));
+                    }
+                    work.release();
+                })
+                .run(work -> {
+                });
+        StainHistogram histogram = createHistogram();
+        for (StainHistogram threadResult : histograms) {
+            histogram.merge(threadResult);
+        }
+        return histogram;
+    }
+
+    /**
+     * Compute the threshold of every method in "ThresholdMethods" (and of "ThresholdMethod") from one histogram.
+     *
+     * @return The thresholds by method, in the order of "ThresholdMethods". A threshold is NaN if the histogram
+     * is empty.
+     */
+    private Map<AutoThresholder.Method, Double> computeThresholds(StainHistogram histogram) {
+        Map<AutoThresholder.Method, Double> thresholds = new LinkedHashMap<>();
+        for (AutoThresholder.Method method : thresholdMethods) {
+            thresholds.put(method, histogram == null ? Double.NaN : histogram.getThreshold(method));
+        }
+        return thresholds;
+    }
+
+    /**
+     * Compute the range of the blurred stain covered by each class of "MultiLevelClasses": class {@code c} holds
+     * the values greater than or equal to {@code bounds[c]} and less than {@code bounds[c + 1]}.
+     * With several classes, the bounds are the multi-level Otsu thresholds of the histogram (see
+     * {@link StainHistogram#getMultiOtsuThresholds(int)}); with a single class, it is everything above the
+     * "ThresholdMethod" threshold.
+     *
+     * @return The bounds, one more than the number of classes. Bounds are NaN if the histogram is empty.
+     */
+    private double[] computeClassBounds(StainHistogram histogram, Map<AutoThresholder.Method, Double> thresholds) {
+        int nClasses = classNames.size();
+        double[] bounds = new double[nClasses + 1];
+        bounds[nClasses] = Double.POSITIVE_INFINITY;
+        if (nClasses == 1) {
+            bounds[0] = thresholds.getOrDefault(thresholdMethod, Double.NaN);
+            return bounds;
+        }
+        bounds[0] = Double.NEGATIVE_INFINITY;
+        if (histogram == null) {
+            Arrays.fill(bounds, 1, nClasses, Double.NaN);
+        } else {
+            System.arraycopy(histogram.getMultiOtsuThresholds(nClasses - 1), 0, bounds, 1, nClasses - 1);
+        }
+        return bounds;
+    }
+
+    /**
+     * Estimate the global threshold from a sample of tiles, rather than from all of them.
+     * The tiles are read at a downsample "SampleDownsampleFactor" times coarser than the requested one (snapped
+     * to the pyramid like the requested downsample), and a stratified random fraction "SampleFraction" of them
+     * is used, see {@link SampledThreshold}. Because the stain channel is blurred with a large sigma, its
+     * histogram at the coarser level is close to the one at the requested level.
+     *
+     * @return The estimate, including its confidence interval.
+     */
+    private SampledThreshold estimateSampledThreshold() throws IOException, InterruptedException {
+        double sampleDownsample = PyramidLevels.chooseDownsample(server,
+                resolutionDownsampleFactor * sampleDownsampleFactor, downsampleMode, downsampleTolerance);
+        double sigmaPixels = getSigmaPixels() * resolutionDownsampleFactor / sampleDownsample;
+        SlideTiler tiler = new SlideTiler(server, sampleDownsample, tileSize, getBlurHaloPixels(sigmaPixels));
+        Random random = new Random(sampleSeed);
+        int[] sample = SampledThreshold.sampleTiles(tiler.getTileCount(), sampleFraction, random);
+
+        // Stored by tile index rather than in completion order, so the bootstrap resamples the same list every run
+        StainHistogram[] tileHistograms = new StainHistogram[tiler.getTileCount()];
+        newPipeline(map(filter(tiler, sample), RegionWork::new), sigmaPixels)
+                .addStage("histogram", pipelineWorkers, work -> {
+                    if (work.ipStain != null) {
+                        work.histogram = createHistogram();
+                        work.histogram.add((float[]) work.ipStain.getPixels(), work.ipStain.getWidth(),
+                                work.getCore(work.ipStain.getWidth(), work.ipStain.getHeight()));
+                    }
+                    work.release();
+                })
+                .run(work -> {
+                    if (work.histogram != null) {
+                        tileHistograms[work.tile.getIndex()] = work.histogram;
+                    }
+                });
+        List<StainHistogram> sampled = Arrays.stream(tileHistograms).filter(Objects::nonNull).toList();
+        SampledThreshold estimate = SampledThreshold.estimate(sampled, thresholdMethod,
+                sampleBootstrap, 0.95, random);
+        logger.debug("Sampled threshold estimate: {}", estimate);
+        return estimate;
+    }
+
+    private StainHistogram createHistogram() {
+        return new StainHistogram(histogramMin, histogramMax, histogramBins);
+    }
+
+    /**
+     * A region or tile as it moves through the stages of a pipeline. Each stage fills in the next field.
+     */
+    private static class RegionWork {
+
+        private final RegionSource.Region region;
+        private final SlideTiler.Tile tile;
+        private PathImage<ImagePlus> pathImage;
+        // What later stages need of the image read, once the stain is extracted
+        private ImageRegion imageRegion;
+        private double downsample;
+        private double pixelArea;
+        private FloatProcessor ipStain;
+        private List<PathObject> annotations;
+        private ContourStitcher.TileContours[] contours;
+        private SelectionStatistics[] stats;
+        private StainHistogram histogram;
+        private Hysteresis.TileSeams seams;
+
+        private RegionWork(RegionSource.Region region) {
+            this.region = region;
+            this.tile = null;
+        }
+
+        private RegionWork(SlideTiler.Tile tile) {
+            this.region = null;
+            this.tile = tile;
+        }
+
+        private PathImage<ImagePlus> readImage(ImageServer<BufferedImage> server) throws IOException {
+            return region != null ? region.readImage() : IJTools.convertToImagePlus(server, tile.getRequest());
+        }
+
+        /**
+         * @return The part of the image this item is responsible for: the core of a tile, or all of a region.
+         */
+        private Rectangle getCore(int width, int height) {
+            return tile != null ? tile.getCoreInTile(width, height) : new Rectangle(0, 0, width, height);
+        }
+
+        /**
+         * Drop the image read, so that its pixels can be freed while the stain moves through the next stages.
+         */
+        private void keepRegionOnly() {
+            imageRegion = pathImage.getImageRegion();
+            downsample = pathImage.getDownsampleFactor();
+            Calibration calibration = pathImage.getImage().getCalibration();
+            pixelArea = calibration.pixelWidth * calibration.pixelHeight;
+            pathImage = null;
+        }
+
+        private void release() {
+            ipStain = null;
         }
     }
 
-    private void updateHierarchy() {
-        QP.fireHierarchyUpdate();
-        hierarchy = imageData.getHierarchy();
+    /**
+     * Keep only the items at the given indices.
+     *
+     * @param indices The indices to keep, in increasing order.
+     */
+    private static <T> Iterator<T> filter(Iterator<T> iterator, int[] indices) {
+        return new Iterator<>() {
+            private int index = 0;
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < indices.length && iterator.hasNext();
+            }
+
+            @Override
+            public T next() {
+                while (index < indices[next]) {
+                    iterator.next();
+                    index++;
+                }
+                next++;
+                index++;
+                return iterator.next();
+            }
+        };
+    }
+
+    private static <T> Iterator<RegionWork> map(Iterator<T> iterator, Function<T, RegionWork> mapper) {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public RegionWork next() {
+                return mapper.apply(iterator.next());
+            }
+        };
     }
 
     /**
-     * This method computes the regions of an image that need to be processed.
-     * It iterates over all annotation objects and checks if the name of the path class of the current object
-     * matches the value of the "Roi" key in the params map. If it does, the method processes the object and adds it to a list.
-     * If the "Roi" key is not present in the params map (i.e., RoiPathClass is null), the method processes a null object and adds it to the list.
-     * The method returns the list of processed objects.
+     * This method applies a threshold to the whole slide without reading it in one piece.
+     * The slide is walked in tiles of "TileSize" pixels (at the requested downsample), each read with a halo
+     * wide enough for the Gaussian blur, so that the blurred core of each tile matches the whole-slide result.
+     * A first pass over the tiles computes a single threshold for the whole slide (see
+     * {@link #computeGlobalHistogram(Iterator)}), so that tiles do not get thresholds of their own and no seams
+     * appear between them. With a "ThresholdEstimation" of "Sampled", the first pass only reads a coarse sample
+     * of the tiles (see {@link #estimateSampledThreshold()}). With a "LocalThresholdMethod", there is no first
+     * pass, and the halo of each tile also covers the local window. With hysteresis, another pass joins the
+     * components crossing the seams between tiles (see {@link #mergeHysteresisSeams(double)}).
+     * A second pass thresholds each tile and traces the outlines of its core, which are stitched along the seams
+     * into one annotation (one per class with "MultiLevelClasses") by a {@link ContourStitcher}. Peak memory is
+     * therefore bounded by the tile size and the length of the outlines, rather than the slide size.
      *
-     * @return A list of PathImage<ImagePlus> objects representing the regions of the image that need to be processed.
      * @throws IOException If an I/O error occurs.
+     * @throws InterruptedException If the thread execution is interrupted.
      */
-    private List<PathImage<ImagePlus>> computeRegions() throws IOException {
-        List<PathImage<ImagePlus>> pathImageList = new ArrayList<>();
-        // Iterate over all annotation objects
-        for (PathObject roi : QP.getAnnotationObjects()) {
-            regionAnnotation = (PathAnnotationObject) roi;
-            // Check if the name of the path class of the current object matches the value of the "Roi" key in the params map
-            if (roi.getPathClass().getName().equals(RoiPathClass)) {
-                // Process the object and add it to the list
-                pathImageList.add(this.processRoi(roi));
+    private void thresholdSlideTiled() throws IOException, InterruptedException {
+        if (fragmentMorphometry != null) {
+            logger.warn("FragmentObjects is ignored when the whole slide is thresholded in tiles!");
+        }
+        SampledThreshold estimate = localThreshold == null && thresholdEstimation.equals("Sampled") ?
+                estimateSampledThreshold() : null;
+        StainHistogram histogram = null;
+        if (localThreshold == null) {
+            histogram = estimate != null ?
+                    estimate.getHistogram() :
+                    computeGlobalHistogram(map(createTiler(), RegionWork::new));
+            if (histogram == null || histogram.getTotalCount() == 0) {
+                return;
             }
         }
-        // If the "Roi" key is not present in the params map (i.e., RoiPathClass is null), process a null object and add it to the list
-        if (RoiPathClass == null) {
-            pathImageList.add(this.processRoi(null));
+        Map<AutoThresholder.Method, Double> thresholds = histogram != null ? computeThresholds(histogram) : Map.of();
+        double[] classBounds = computeClassBounds(histogram, thresholds);
+        int nClasses = classNames.size();
+        Hysteresis.SeamMerge seams = isHysteresis() ? mergeHysteresisSeams(classBounds[0]) : null;
+
+        SlideTiler tiler = createTiler();
+        ContourStitcher[] stitchers = new ContourStitcher[nClasses];
+        SelectionStatistics[] statistics = new SelectionStatistics[nClasses];
+        for (int c = 0; c < nClasses; c++) {
+            stitchers[c] = new ContourStitcher(tiler.getColumnCount(), tiler.getRowCount());
+            statistics[c] = new SelectionStatistics();
+        }
+        newPipeline(map(tiler, RegionWork::new), getSigmaPixels())
+                .addStage("threshold", pipelineWorkers, work -> {
+                    if (work.ipStain != null) {
+                        Rectangle core = work.getCore(work.ipStain.getWidth(), work.ipStain.getHeight());
+                        work.contours = new ContourStitcher.TileContours[nClasses];
+                        work.stats = new SelectionStatistics[nClasses];
+                        for (int c = 0; c < nClasses; c++) {
+                            boolean[] kept = seams != null ? seams.getKept(work.tile.getIndex()) : null;
+                            BitMask mask = createClassMask(work.ipStain, classBounds, c, core, kept);
+                            if (mask != null && !mask.isEmpty()) {
+                                work.contours[c] = stitchers[c].trace(work.tile.getIndex(), mask, core,
+                                        work.tile.getCoreInGrid());
+                                work.stats[c] = makeMeasurements(work, mask);
+                            }
+                        }
+                    }
+                    work.release();
+                })
+                .run(work -> {
+                    for (int c = 0; work.contours != null && c < nClasses; c++) {
+                        if (work.contours[c] != null) {
+                            stitchers[c].add(work.tile.getIndex(), work.contours[c]);
+                            statistics[c].merge(work.stats[c]);
+                        }
+                    }
+                });
+
+        for (int c = 0; c < nClasses; c++) {
+            RingSimplifier simplifier = createSimplifier();
+            Geometry geometry = stitchers[c].stitch(resolutionDownsampleFactor, fragmentFilter, simplifier,
+                    GeometryTools.getDefaultFactory());
+            int unclosedOutlines = stitchers[c].getUnclosedOutlines();
+            if (unclosedOutlines > 0) {
+                logger.warn("{} outline(s) of {} could not be closed when stitching the tiles, check the annotation!",
+                        unclosedOutlines, classNames.get(c));
+            }
+            if (geometry.isEmpty()) {
+                continue;
+            }
+            PathObject annotation = PathObjects.createAnnotationObject(
+                    GeometryTools.geometryToROI(geometry, ImagePlane.getDefaultPlane()));
+            annotation.setPathClass(QP.getPathClass(classNames.get(c)));
+            MeasurementList measurementList = annotation.getMeasurementList();
+            putThresholdMeasurements(measurementList, thresholds, classBounds, c);
+            putVertexMeasurements(measurementList, simplifier);
+            if (unclosedOutlines > 0) {
+                measurementList.put("Unclosed outlines", unclosedOutlines);
+            }
+            if (estimate != null) {
+                measurementList.put("Threshold CI lower (IJ)", estimate.getLower());
+                measurementList.put("Threshold CI upper (IJ)", estimate.getUpper());
+            }
+            measurementList.put("Area (IJ)", statistics[c].area);
+            measurementList.put("Mean " + stainName + " (IJ)", statistics[c].getMean());
+            measurementList.put("Min " + stainName + " (IJ)", statistics[c].min);
+            measurementList.put("Max " + stainName + " (IJ)", statistics[c].max);
+            measurementList.close();
+            annotation.setLocked(true);
+            createdObjects.add(null, annotation);
         }
-        // Return the list of processed objects
-        return pathImageList;
     }
 
     /**
-     * This method processes a PathObject and returns a PathImage<ImagePlus> object.
-     * It first checks if the PathObject is not null and gets its ROI (Region of Interest).
-     * Then, it checks if the ROI is null. If it is, it creates a RegionRequest for the entire image.
-     * If the ROI is not null, it creates a RegionRequest for the specific ROI.
-     * Finally, it converts the RegionRequest to a PathImage<ImagePlus> object and returns it.
+     * Label the hysteresis components of the core of every tile, and join those crossing the seams between tiles.
+     * Only the components touching the edges of each core are kept in memory, not the labels of the pixels.
      *
-     * @param roi The PathObject to be processed. If null, a RegionRequest for the entire image will be created.
-     * @return A PathImage<ImagePlus> object representing the region of the image that needs to be processed.
-     * @throws IOException If an I/O error occurs.
+     * @param threshold The high threshold.
+     * @return The merged seams, to be queried when each tile is labelled again.
      */
-    private PathImage<ImagePlus> processRoi(PathObject roi) throws IOException {
-        ROI roiObj = roi != null ? roi.getROI() : null;
-        RegionRequest region = roiObj == null ?
-                RegionRequest.createInstance(
-                        server.getPath(),
-                        resolutionDownsampleFactor,
-                        0, 0,
-                        this.server.getWidth(), this.server.getHeight()
-                ) :
-                RegionRequest.createInstance(server.getPath(), resolutionDownsampleFactor, roiObj);
-        return IJTools.convertToImagePlus(server, region);
+    private Hysteresis.SeamMerge mergeHysteresisSeams(double threshold) throws IOException, InterruptedException {
+        SlideTiler tiler = createTiler();
+        Hysteresis.SeamMerge merge = new Hysteresis.SeamMerge(tiler.getColumnCount(), tiler.getRowCount());
+        newPipeline(map(tiler, RegionWork::new), getSigmaPixels())
+                .addStage("seams", pipelineWorkers, work -> {
+                    if (work.ipStain != null) {
+                        int width = work.ipStain.getWidth();
+                        work.seams = Hysteresis.label((float[]) work.ipStain.getPixels(), width,
+                                work.getCore(width, work.ipStain.getHeight()),
+                                hysteresisLowFactor * threshold, threshold).getSeams();
+                    }
+                    work.release();
+                })
+                .run(work -> {
+                    if (work.seams != null) {
+                        merge.add(work.tile.getIndex(), work.seams);
+                    }
+                });
+        merge.merge();
+        return merge;
+    }
+
+    private SlideTiler createTiler() {
+        int halo = getBlurHaloPixels(getSigmaPixels()) + (localThreshold != null ? localThreshold.getRadius() : 0);
+        return new SlideTiler(server, resolutionDownsampleFactor, tileSize, halo);
+    }
+
+    /**
+     * Area, mean, min and max of a selection made of several parts, e.g. the cores of tiles.
+     */
+    private static class SelectionStatistics {
+
+        private double area = 0;
+        private double weightedMean = 0;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+
+        /**
+         * Add the pixels set in a mask, each covering {@code pixelArea}.
+         */
+        private void add(BitMask mask, float[] pixels, double pixelArea) {
+            int width = mask.getWidth();
+            long count = 0;
+            double sum = 0;
+            for (int y = 0; y < mask.getHeight(); y++) {
+                for (int w = 0; w < mask.getWordsPerRow(); w++) {
+                    long word = mask.getWord(w, y);
+                    while (word != 0) {
+                        float value = pixels[y * width + (w << 6) + Long.numberOfTrailingZeros(word)];
+                        word &= word - 1;
+                        count++;
+                        sum += value;
+                        min = Math.min(min, value);
+                        max = Math.max(max, value);
+                    }
+                }
+            }
+            area += count * pixelArea;
+            weightedMean += sum * pixelArea;
+        }
+
+        private void merge(SelectionStatistics other) {
+            area += other.area;
+            weightedMean += other.weightedMean;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+
+        private double getMean() {
+            return area > 0 ? weightedMean / area : Double.NaN;
+        }
     }
 
     /**
      * This method retrieves the ImageProcessor for the specified stain from the given PathImage.
-     * It first gets the index of the stain by calling the getStainIndex() method.
-     * If the stain index is less than 0, it means the stain was not found and the method returns null.
-     * Otherwise, it gets the ImageProcessor from the PathImage and checks the extraction method specified in the params map.
-     * If the extraction method is "Deconvolution", it performs color deconvolution on the ImageProcessor and returns the ImageProcessor for the specified stain.
-     * If the extraction method is "OpticalDensitySum", it converts the ImageProcessor to an optical density sum and returns it.
+     * It gets the ImageProcessor from the PathImage and checks the extraction method specified in the params map.
+     * The index of the stain is looked up once per run (see getStainIndex()); if the stain was not found, the run
+     * stops with a warning before any region is read, and this method returns null.
+     * If the extraction method is "Deconvolution", it color deconvolves only the specified stain (see {@link OpticalDensity}) and returns it.
+     * If the extraction method is "OpticalDensitySum", it converts the ImageProcessor to an optical density sum in a single
+     * lookup-table pass (see {@link OpticalDensity}) and returns it.
      * If none of the above conditions are met, the method returns null.
      *
      * @param pathImage The PathImage from which to retrieve the ImageProcessor.
      * @return The ImageProcessor for the specified stain, or null if the stain was not found or the extraction method is not supported.
      */
-    private ImageProcessor getStainIp(PathImage<ImagePlus> pathImage) {
+    private FloatProcessor getStainIp(PathImage<ImagePlus> pathImage) {
         ImageProcessor ip = pathImage.getImage().getProcessor();
 
         if (channelExtractionMethod.equals("OpticalDensitySum")) {
-            return IJTools.convertToOpticalDensitySum(ip.convertToColorProcessor(), 255, 255, 255);
+            return OpticalDensity.sum(ip);
 
-        } else if (channelExtractionMethod.equals("Deconvolution")) {
-            int stainIndex = this.getStainIndex();
-            if (stainIndex < 0) {
-                System.out.println("Could not find stain with name " + stainName + " !");
-                return IJTools.colorDeconvolve(ip.convertToColorProcessor(), stains)[stainIndex].duplicate();
-            }
+        } else if (channelExtractionMethod.equals("Deconvolution") && stainIndex >= 0) {
+            return OpticalDensity.stain(ip, stains, stainIndex);
         }
         return null;
     }
@@ -178,61 +667,224 @@ public class ThresholdOtsu {
 
     /**
      * This method applies a threshold to the ImageProcessor of a stain.
-     * It first applies a Gaussian blur to the ImageProcessor.
-     * Then, it sets an auto threshold to the ImageProcessor.
+     * The ImageProcessor is expected to be blurred already.
+     * It first sets the threshold of the ImageProcessor, using the "ThresholdMethod" entry of the given thresholds,
+     * or of thresholds computed from a single histogram of the ImageProcessor itself; with a "LocalThresholdMethod",
+     * each pixel gets its own threshold instead (see {@link LocalThreshold}).
      * After that, it creates a selection from the ImageProcessor and makes measurements on the selection.
-     * It creates an annotation from the ImageProcessor, the selection, and the measurements.
-     * The annotation is then added to the hierarchy.
-     * Finally, it refines the annotations.
+     * Finally, it creates an annotation from the ImageProcessor, the selection, and the measurements.
+     * With "MultiLevelClasses", this is repeated for each intensity class, on the same ImageProcessor.
+     * The annotations are returned rather than added to the hierarchy, so that this can run on any thread.
      *
-     * @param ipStain The ImageProcessor of the stain to which the threshold will be applied.
-     * @throws InterruptedException If the thread execution is interrupted.
+     * @param work The region, with the ImageProcessor of the stain to which the threshold will be applied.
+     * @param thresholds The thresholds by method, or null to compute them from the ImageProcessor.
+     * @param classBounds The bounds of the classes, or null to compute them with the thresholds.
+     * @return The annotations, one per class with pixels in its range.
      */
-    private void thresholdIp(ImageProcessor ipStain) throws InterruptedException {
-        applyGaussianBlur(ipStain);
-        setAutoThreshold(ipStain);
-        Roi roiIJ = createSelection(ipStain);
-        ImageStatistics stats = this.makeMeasurements(ipStain, roiIJ);
-        PathObject annotation = createAnnotation(ipStain, roiIJ, stats);
-        addAnnotationToHierarchy(annotation);
-        refineAnnotations();
+    private List<PathObject> thresholdIp(RegionWork work, Map<AutoThresholder.Method, Double> thresholds,
+                                         double[] classBounds) {
+        FloatProcessor ipStain = work.ipStain;
+        if (localThreshold != null) {
+            thresholds = Map.of();
+        } else if (thresholds == null) {
+            StainHistogram histogram = StainHistogram.of(
+                    (float[]) ipStain.getPixels(), ipStain.getWidth(), ipStain.getHeight());
+            thresholds = computeThresholds(histogram);
+            classBounds = computeClassBounds(histogram, thresholds);
+        }
+        List<PathObject> annotations = new ArrayList<>();
+        for (int c = 0; c < classNames.size(); c++) {
+            BitMask mask = createClassMask(ipStain, classBounds, c,
+                    new Rectangle(0, 0, ipStain.getWidth(), ipStain.getHeight()), null);
+            if (mask != null && fragmentFilter != null) {
+                mask = fragmentFilter.apply(mask);
+            }
+            RingSimplifier simplifier = createSimplifier();
+            Map<Integer, Polygon> fragments = traceFragments(work, mask, simplifier);
+            if (!fragments.isEmpty()) {
+                ROI roi = GeometryTools.geometryToROI(
+                        MaskTracer.toGeometry(fragments.values(), GeometryTools.getDefaultFactory()),
+                        work.imageRegion.getImagePlane());
+                SelectionStatistics stats = makeMeasurements(work, mask);
+                PathObject annotation = createAnnotation(roi, stats, simplifier, thresholds, classBounds, c);
+                if (fragmentMorphometry != null) {
+                    annotation.addChildObjects(createFragmentObjects(work, mask, fragments, c));
+                }
+                annotations.add(annotation);
+            }
+        }
+        return annotations;
     }
 
-    private void applyGaussianBlur(ImageProcessor ipStain) {
+    private double getSigmaPixels() {
         double sigmaMicrons = (double) params.get("gaussianSigma");
-        double sigmaPixels = sigmaMicrons / requestedPixelSizeMicrons;
-        if (sigmaPixels > 0) {
+        return sigmaMicrons / requestedPixelSizeMicrons;
+    }
+
+    /**
+     * The number of pixels a tile needs around its core for the Gaussian blur of the core to be unaffected
+     * by the tile edge (ImageJ truncates its kernel at about 3.5 sigma for float images).
+     */
+    private int getBlurHaloPixels(double sigmaPixels) {
+        return (int) Math.ceil(4 * Math.max(0, sigmaPixels));
+    }
+
+    /**
+     * This method applies a Gaussian blur to the ImageProcessor of a stain, in place.
+     * The "BlurEngine" param selects how: "ImageJ" (the default) uses ImageJ's kernel-based blur, whose cost grows
+     * with sigma, while "Recursive" uses a {@link RecursiveGaussian}, whose cost per pixel does not depend on sigma.
+     * "Parallel" splits the same recursive blur into stripes run on a pool sized from the thread preference and
+     * shared by every run (see {@link ParallelGaussian}), so that a single large region is blurred using all threads.
+     * The recursive blur falls back to ImageJ for sigmas too small for it to be accurate.
+     * When sigma is at least "BlurShortcutSigma" pixels (never by default), the blur is computed on a downsampled
+     * channel and upsampled back (see {@link CoarseBlur}), using the coarsest factor whose result stays within
+     * "BlurShortcutMaxError" of the exact blur, as a fraction of the range of the stain values.
+     *
+     * @param ipStain The ImageProcessor of the stain to blur.
+     * @param sigmaPixels The Gaussian sigma, in pixels of the ImageProcessor.
+     */
+    private void applyGaussianBlur(ImageProcessor ipStain, double sigmaPixels) {
+        if (sigmaPixels <= 0) {
+            return;
+        }
+        if (ipStain instanceof FloatProcessor && sigmaPixels >= blurShortcutSigma) {
+            int factor = CoarseBlur.chooseFactor(sigmaPixels, blurShortcutMaxError);
+            CoarseBlur.blur((FloatProcessor) ipStain, sigmaPixels, factor, this::blurWithEngine);
+        } else {
+            blurWithEngine(ipStain, sigmaPixels);
+        }
+    }
+
+    private void blurWithEngine(ImageProcessor ipStain, double sigmaPixels) {
+        boolean recursive = ipStain instanceof FloatProcessor && RecursiveGaussian.isSupported(sigmaPixels);
+        if (recursive && parallelGaussian != null) {
+            parallelGaussian.blur(
+                    (float[]) ipStain.getPixels(), ipStain.getWidth(), ipStain.getHeight(), sigmaPixels);
+        } else if (recursive && blurEngine.equals("Recursive")) {
+            new RecursiveGaussian(sigmaPixels).blur(
+                    (float[]) ipStain.getPixels(), ipStain.getWidth(), ipStain.getHeight());
+        } else {
             GaussianBlur gaussianBlur = new GaussianBlur();
             gaussianBlur.blurGaussian(ipStain, sigmaPixels);
         }
     }
 
-    private void setAutoThreshold(ImageProcessor ipStain) {
-        AutoThresholder.Method thresholdMethod = AutoThresholder.Method.Otsu;
-        ipStain.setAutoThreshold(thresholdMethod, true);
+    /**
+     * Threshold the pixels of one class into a {@link BitMask}: those within the class bounds (values greater than
+     * or equal to the lower bound and less than the upper bound, i.e. a dark background) or, with a
+     * "LocalThresholdMethod" (which always has a single class), those above their local threshold.
+     * With hysteresis, the single class is made of the kept components, see {@link #isHysteresis()}.
+     * Only the pixels inside {@code core} are kept, so that neighbouring tiles do not overlap.
+     *
+     * @param ipStain The blurred stain channel.
+     * @param classBounds The bounds of the classes, see {@link #computeClassBounds(StainHistogram, Map)}.
+     * @param c The class index.
+     * @param core The part of the image to keep: the core of a tile, or all of a region.
+     * @param keptEdgeComponents With hysteresis, whether each component touching the edges of the core is kept
+     *                           (see {@link Hysteresis.SeamMerge}), or null to decide from the core alone.
+     * @return The mask, or null if the class has no name or no bounds.
+     */
+    private BitMask createClassMask(FloatProcessor ipStain, double[] classBounds, int c, Rectangle core,
+                                    boolean[] keptEdgeComponents) {
+        if (classNames.get(c).isBlank()) {
+            return null;
+        }
+        float[] pixels = (float[]) ipStain.getPixels();
+        int width = ipStain.getWidth();
+        int height = ipStain.getHeight();
+        BitMask mask;
+        if (localThreshold != null) {
+            mask = localThreshold.apply(pixels, width, height);
+        } else if (Double.isNaN(classBounds[c]) || Double.isNaN(classBounds[c + 1])) {
+            return null;
+        } else if (isHysteresis()) {
+            mask = new BitMask(width, height);
+            Hysteresis.label(pixels, width, core, hysteresisLowFactor * classBounds[0], classBounds[0])
+                    .fillMask(mask, keptEdgeComponents);
+        } else {
+            mask = BitMask.threshold(pixels, width, height, classBounds[c], classBounds[c + 1]);
+        }
+        return mask.retain(core);
+    }
+
+    /**
+     * Hysteresis thresholding is used when "HysteresisLowFactor" is below 1, with a single class and a global
+     * threshold: the pixels above "HysteresisLowFactor" times the threshold are kept if they are connected to
+     * pixels above the threshold itself.
+     */
+    private boolean isHysteresis() {
+        return hysteresisLowFactor < 1 && localThreshold == null && classNames.size() == 1;
     }
 
-    private Roi createSelection(ImageProcessor ipStain) {
-        ThresholdToSelection tts = new ThresholdToSelection();
-        return tts.convert(ipStain);
+    /**
+     * Trace the outlines of a mask in the coordinates of the full-resolution image, one polygon per fragment.
+     *
+     * @return The polygons, keyed by the first pixel of their fragment; empty if the mask is null or empty.
+     */
+    private Map<Integer, Polygon> traceFragments(RegionWork work, BitMask mask, RingSimplifier simplifier) {
+        if (mask == null || mask.isEmpty()) {
+            return Map.of();
+        }
+        ImageRegion region = work.imageRegion;
+        return MaskTracer.traceFragments(mask, region.getX(), region.getY(), work.downsample,
+                simplifier, GeometryTools.getDefaultFactory());
     }
 
-    private ImageStatistics makeMeasurements(ImageProcessor ipStain, Roi roiIJ) {
-        ipStain.setRoi(roiIJ);
-        ImagePlus imp = pathImage.getImage();
-        return ImageStatistics.getStatistics(
-                ipStain,
-                ImageStatistics.MEAN + ImageStatistics.MIN_MAX + ImageStatistics.AREA,
-                imp.getCalibration());
+    /**
+     * Create one detection per fragment of a mask, with its shape and intensity measurements
+     * (see {@link FragmentMorphometry}), to be added below the annotation of the mask.
+     * Sizes are in microns, or in full-resolution pixels if the image has no pixel size, with the unit in the
+     * measurement name as QuPath does (e.g. "Perimeter px").
+     */
+    private List<PathObject> createFragmentObjects(RegionWork work, BitMask mask, Map<Integer, Polygon> polygons,
+                                                   int c) {
+        ImagePlane plane = work.imageRegion.getImagePlane();
+        double downsample = work.downsample;
+        boolean microns = cal.hasPixelSizeMicrons();
+        double pixelWidth = microns ? cal.getPixelWidthMicrons() * downsample : downsample;
+        double pixelHeight = microns ? cal.getPixelHeightMicrons() * downsample : downsample;
+        String unit = microns ? GeneralTools.micrometerSymbol() : "px";
+        List<PathObject> detections = new ArrayList<>();
+        for (FragmentMorphometry.Fragment fragment : fragmentMorphometry.measure(
+                mask, (float[]) work.ipStain.getPixels(), pixelWidth, pixelHeight)) {
+            Polygon polygon = polygons.get(fragment.getFirstPixel());
+            if (polygon == null) {
+                continue;
+            }
+            PathObject detection = PathObjects.createDetectionObject(
+                    GeometryTools.geometryToROI(polygon, plane), QP.getPathClass(classNames.get(c)));
+            MeasurementList measurementList = detection.getMeasurementList();
+            measurementList.put("Area " + unit + "^2", fragment.getArea());
+            measurementList.put("Perimeter " + unit, fragment.getPerimeter());
+            measurementList.put("Circularity", fragment.getCircularity());
+            measurementList.put("Solidity", fragment.getSolidity());
+            measurementList.put("Max Feret " + unit, fragment.getMaxFeret());
+            measurementList.put("Min Feret " + unit, fragment.getMinFeret());
+            measurementList.put("Mean " + stainName, fragment.getMean());
+            measurementList.put("Std.Dev. " + stainName, fragment.getStdDev());
+            measurementList.put("Min " + stainName, fragment.getMin());
+            measurementList.put("Max " + stainName, fragment.getMax());
+            measurementList.close();
+            detections.add(detection);
+        }
+        return detections;
     }
 
-    private PathObject createAnnotation(ImageProcessor ipStain, Roi roiIJ, ImageStatistics stats) {
-        ROI roi = IJTools.convertToROI(roiIJ, pathImage);
+    private SelectionStatistics makeMeasurements(RegionWork work, BitMask mask) {
+        SelectionStatistics stats = new SelectionStatistics();
+        stats.add(mask, (float[]) work.ipStain.getPixels(), work.pixelArea);
+        return stats;
+    }
+
+    private PathObject createAnnotation(ROI roi, SelectionStatistics stats, RingSimplifier simplifier,
+                                        Map<AutoThresholder.Method, Double> thresholds, double[] classBounds, int c) {
         PathObject annotation = PathObjects.createAnnotationObject(roi);
+        annotation.setPathClass(QP.getPathClass(classNames.get(c)));
         MeasurementList measurementList = annotation.getMeasurementList();
-        measurementList.put("Threshold (IJ)", ipStain.getMinThreshold());
+        putThresholdMeasurements(measurementList, thresholds, classBounds, c);
+        putVertexMeasurements(measurementList, simplifier);
         measurementList.put("Area (IJ)", stats.area);
-        measurementList.put("Mean " + stainName + " (IJ)", stats.mean);
+        measurementList.put("Mean " + stainName + " (IJ)", stats.getMean());
         measurementList.put("Min " + stainName + " (IJ)", stats.min);
         measurementList.put("Max " + stainName + " (IJ)", stats.max);
         measurementList.close();
@@ -240,30 +892,126 @@ public class ThresholdOtsu {
         return annotation;
     }
 
-    private void addAnnotationToHierarchy(PathObject annotation) {
-        if (RoiPathClass != null) {
-            hierarchy.addObjectBelowParent(
-                    regionAnnotation,
-                    annotation,
-                    true
-            );
+    /**
+     * Record the threshold (or, with several classes, the class bounds) that drove the mask, and the threshold of
+     * every method that was compared.
+     */
+    private void putThresholdMeasurements(MeasurementList measurementList,
+                                          Map<AutoThresholder.Method, Double> thresholds, double[] classBounds, int c) {
+        if (localThreshold != null) {
+            measurementList.put("Local threshold window (px)", 2 * localThreshold.getRadius() + 1);
+        } else if (classNames.size() > 1) {
+            if (Double.isFinite(classBounds[c])) {
+                measurementList.put("Class lower threshold (IJ)", classBounds[c]);
+            }
+            if (Double.isFinite(classBounds[c + 1])) {
+                measurementList.put("Class upper threshold (IJ)", classBounds[c + 1]);
+            }
         } else {
-            hierarchy.addObject(
-                    annotation,
-                    false);
-        }
-        annotation.setPathClass(
-                QP.getPathClass(setPathClass)
-        );
-        QP.selectObjectsByClassification(
-                setPathClass
-        );
-    }
-
-    private void refineAnnotations() throws InterruptedException {
-        String pluginArgs = String.format("{\"minFragmentSizeMicrons\": %s,  \"maxHoleSizeMicrons\": %s}",
-                params.get("MinFragment"), params.get("MaxHole"));
-        QP.runPlugin("qupath.lib.plugins.objects.RefineAnnotationsPlugin", pluginArgs);
+            measurementList.put("Threshold (IJ)", thresholds.get(thresholdMethod));
+            if (isHysteresis()) {
+                measurementList.put("Hysteresis low threshold (IJ)", hysteresisLowFactor * thresholds.get(thresholdMethod));
+            }
+        }
+        for (Map.Entry<AutoThresholder.Method, Double> entry : thresholds.entrySet()) {
+            measurementList.put("Threshold " + entry.getKey() + " (IJ)", entry.getValue());
+        }
+    }
+
+    private static List<AutoThresholder.Method> parseThresholdMethods(String methods, AutoThresholder.Method chosen) {
+        List<AutoThresholder.Method> parsed = new ArrayList<>();
+        parsed.add(chosen);
+        for (String name : methods.split(",")) {
+            if (!name.isBlank()) {
+                AutoThresholder.Method method = AutoThresholder.Method.valueOf(name.trim());
+                if (!parsed.contains(method)) {
+                    parsed.add(method);
+                }
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Parse "MultiLevelClasses": the names of the intensity classes, from the lowest to the highest stain values.
+     * A blank name skips a class, e.g. ",Tissue,Vessels" leaves the background unannotated.
+     * Between 3 and 5 classes (2 to 4 thresholds) are supported, and 2 classes are the same as a single Otsu
+     * threshold.
+     *
+     * @return The class names, or just "setPathClass" if there is a single class (including with a local threshold).
+     */
+    private List<String> parseClassNames(String names) {
+        if (names.isBlank()) {
+            return List.of(setPathClass);
+        }
+        List<String> parsed = new ArrayList<>();
+        for (String name : names.split(",", -1)) {
+            parsed.add(name.trim());
+        }
+        if (parsed.size() < 2 || parsed.size() > 5) {
+            throw new IllegalArgumentException("MultiLevelClasses needs 2 to 5 classes, not " + parsed.size());
+        }
+        if (localThreshold != null) {
+            logger.warn("MultiLevelClasses is ignored with a local threshold!");
+            return List.of(setPathClass);
+        }
+        return parsed;
+    }
+
+    /**
+     * Create the filter of small fragments and holes from the "MinFragment" and "MaxHole" params, in square
+     * microns, converted to pixels at the requested downsample with the pixel calibration.
+     *
+     * @return The filter, or null if neither is set.
+     */
+    private FragmentFilter createFragmentFilter() {
+        double minFragmentMicrons = Double.parseDouble(params.get("MinFragment").toString());
+        double maxHoleMicrons = Double.parseDouble(params.get("MaxHole").toString());
+        if (minFragmentMicrons <= 0 && maxHoleMicrons <= 0) {
+            return null;
+        }
+        double pixelAreaMicrons = cal.getPixelWidthMicrons() * cal.getPixelHeightMicrons() *
+                resolutionDownsampleFactor * resolutionDownsampleFactor;
+        return new FragmentFilter(minFragmentMicrons / pixelAreaMicrons, maxHoleMicrons / pixelAreaMicrons);
+    }
+
+    /**
+     * Record how many vertices the outline had when traced, and how many are left after simplification.
+     */
+    private static void putVertexMeasurements(MeasurementList measurementList, RingSimplifier simplifier) {
+        if (simplifier != null) {
+            measurementList.put("Vertices traced", simplifier.getVerticesBefore());
+            measurementList.put("Vertices simplified", simplifier.getVerticesAfter());
+        }
+    }
+
+    /**
+     * Create a simplifier for the outline of one annotation, from the "SimplifyTolerance" param (in microns) and
+     * the "MaxVertices" budget.
+     *
+     * @return The simplifier, or null if neither is set (every corner of the mask is kept).
+     */
+    private RingSimplifier createSimplifier() {
+        if (simplifyTolerance <= 0 && maxVertices <= 0) {
+            return null;
+        }
+        return new RingSimplifier(simplifyTolerance / requestedPixelSizeMicrons, maxVertices);
+    }
+
+    /**
+     * Create the local threshold from the "LocalThresholdMethod" param, with a window of "LocalWindow" microns.
+     *
+     * @return The local threshold, or null if the method is "None" (a global threshold is used).
+     */
+    private LocalThreshold createLocalThreshold() {
+        String method = params.get("LocalThresholdMethod").toString();
+        if (method.equals("None")) {
+            return null;
+        }
+        double windowMicrons = (double) params.get("LocalWindow");
+        int radius = (int) Math.round(windowMicrons / 2 / requestedPixelSizeMicrons);
+        return new LocalThreshold(LocalThreshold.Method.valueOf(method), radius,
+                (double) params.get("LocalK"), (double) params.get("LocalR"), (double) params.get("LocalContrast"));
     }
 
     private ColorDeconvolutionStains getStains() {
@@ -34,7 +34,16 @@ public class InterfaceController extends VBox {
     }
 
     private void action() {
-
+        // Not every interface has a thread spinner
+        if (threadSpinner == null) {
+            return;
+        }
+        threadSpinner.getValueFactory().valueProperty().bindBidirectional(qupipExtension.numThreadsProperty());
+        threadSpinner.getValueFactory().valueProperty().addListener((observableValue, oldValue, newValue) -> {
+            Dialogs.showInfoNotification(
+                    resources.getString("title"),
+                    String.format(resources.getString("threads"), newValue));
+        });
     }
 
     @FXML
@@ -0,0 +1,53 @@
+package qupath.ext.qupip.classes;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The run time of a batch over many regions, on an image that already holds annotations of the output class.
+ * <p>
+ * Timings depend on the machine and its load, so this is left out of the tests and run with
+ * {@code gradle benchmark}; {@link AnnotationBatchTest} checks the same growth by counting calls.
+ */
+@Tag("benchmark")
+public class AnnotationBatchBenchmark {
+
+    @Test
+    public void runTimeGrowsLinearlyWithRegions() {
+        // Warm up the JIT before timing
+        timeRun(500);
+        long small = Long.MAX_VALUE;
+        long large = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            small = Math.min(small, timeRun(125));
+            large = Math.min(large, timeRun(500));
+        }
+        // Linear growth gives a ratio of about 4, while selecting every annotation of the class after each region
+        // (as before) grows quadratically, about 16
+        assertTrue(large < 8 * small, "125 regions took " + small + " ns, 500 regions took " + large + " ns");
+    }
+
+    /**
+     * Threshold, refine, trace and commit the regions of a fresh hierarchy.
+     *
+     * @return The time taken, in nanoseconds, not counting the setup of the hierarchy.
+     */
+    private static long timeRun(int nRegions) {
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        List<PathObject> regions = AnnotationBatchTest.createRegions(hierarchy, nRegions);
+        AnnotationBatchTest.createEarlierAnnotations(hierarchy, regions);
+        long start = System.nanoTime();
+        AnnotationBatch batch = new AnnotationBatch(hierarchy);
+        for (PathObject region : regions) {
+            batch.add(region, AnnotationBatchTest.thresholdRegion(region));
+        }
+        batch.commit(AnnotationBatchBenchmark.class);
+        return System.nanoTime() - start;
+    }
+}
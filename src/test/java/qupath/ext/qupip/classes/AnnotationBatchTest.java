@@ -0,0 +1,187 @@
+package qupath.ext.qupip.classes;
+
+import org.junit.jupiter.api.Test;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A run over many regions of an image that already holds annotations of the output class: only the annotations of
+ * the run may be refined and selected, with a single change event and work linear in the number of regions.
+ */
+public class AnnotationBatchTest {
+
+    private static final PathClass REGION_CLASS = PathClass.fromString("Region*");
+    private static final PathClass OUTPUT_CLASS = PathClass.fromString("Vessels");
+
+    private static final int MASK_SIZE = 32;
+    private static final int REGION_SPACING = 100;
+    // Annotations of the output class left in each region by earlier runs
+    private static final int EARLIER_PER_REGION = 2;
+
+    @Test
+    public void fiveHundredRegionsSelectAndRefineOnlyThisRun() {
+        int nRegions = 500;
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        List<PathObject> regions = createRegions(hierarchy, nRegions);
+        Map<PathObject, ROI> earlier = createEarlierAnnotations(hierarchy, regions);
+        int[] events = {0};
+        hierarchy.addListener(event -> events[0]++);
+
+        AnnotationBatch batch = new AnnotationBatch(hierarchy);
+        for (PathObject region : regions) {
+            batch.add(region, thresholdRegion(region));
+        }
+        List<PathObject> created = new ArrayList<>(batch.getAnnotations());
+        assertEquals(0, events[0], "Nothing is added before the commit");
+        batch.commit(this);
+
+        assertEquals(1, events[0]);
+        Set<PathObject> selected = hierarchy.getSelectionModel().getSelectedObjects();
+        assertEquals(nRegions, selected.size());
+        for (int i = 0; i < nRegions; i++) {
+            PathObject annotation = created.get(i);
+            assertTrue(selected.contains(annotation));
+            assertSame(regions.get(i), annotation.getParent());
+            // Refined once: the speck is removed and the hole filled, leaving the 16 x 16 block
+            assertEquals(16 * 16, annotation.getROI().getArea(), 1e-9);
+        }
+        for (Map.Entry<PathObject, ROI> entry : earlier.entrySet()) {
+            assertFalse(selected.contains(entry.getKey()));
+            assertSame(entry.getValue(), entry.getKey().getROI());
+        }
+        assertEquals(nRegions * (2 + EARLIER_PER_REGION), hierarchy.getAnnotationObjects().size());
+
+        // The batch is empty once committed
+        batch.commit(this);
+        assertEquals(1, events[0]);
+        assertEquals(nRegions * (2 + EARLIER_PER_REGION), hierarchy.getAnnotationObjects().size());
+    }
+
+    @Test
+    public void workGrowsLinearlyWithRegions() {
+        for (int nRegions : new int[]{1, 125, 500}) {
+            CountingHierarchy hierarchy = new CountingHierarchy();
+            List<PathObject> regions = createRegions(hierarchy, nRegions);
+            createEarlierAnnotations(hierarchy, regions);
+            hierarchy.resetCounts();
+            int[] events = {0};
+            hierarchy.addListener(event -> events[0]++);
+
+            AnnotationBatch batch = new AnnotationBatch(hierarchy);
+            for (PathObject region : regions) {
+                batch.add(region, thresholdRegion(region));
+            }
+            batch.commit(this);
+
+            // Each annotation is added once below its region, and the annotations of earlier runs are never
+            // looked up, as selecting them by classification after each region would
+            assertEquals(1, events[0], nRegions + " regions");
+            assertEquals(nRegions, hierarchy.addedBelowParent, nRegions + " regions");
+            assertEquals(0, hierarchy.added, nRegions + " regions");
+            assertEquals(0, hierarchy.annotationQueries, nRegions + " regions");
+        }
+    }
+
+    /**
+     * A hierarchy that counts the calls a batch may make, so the work of a run can be checked without timing it.
+     */
+    private static class CountingHierarchy extends PathObjectHierarchy {
+
+        private int addedBelowParent;
+        private int added;
+        private int annotationQueries;
+
+        @Override
+        public boolean addObjectBelowParent(PathObject pathObjectParent, PathObject pathObject, boolean fireUpdate) {
+            addedBelowParent++;
+            return super.addObjectBelowParent(pathObjectParent, pathObject, fireUpdate);
+        }
+
+        @Override
+        public boolean addObject(PathObject pathObject, boolean fireUpdate) {
+            added++;
+            return super.addObject(pathObject, fireUpdate);
+        }
+
+        @Override
+        public Collection<PathObject> getAnnotationObjects() {
+            annotationQueries++;
+            return super.getAnnotationObjects();
+        }
+
+        private void resetCounts() {
+            addedBelowParent = 0;
+            added = 0;
+            annotationQueries = 0;
+        }
+    }
+
+    static List<PathObject> createRegions(PathObjectHierarchy hierarchy, int nRegions) {
+        List<PathObject> regions = new ArrayList<>();
+        for (int i = 0; i < nRegions; i++) {
+            PathObject region = PathObjects.createAnnotationObject(
+                    ROIs.createRectangleROI(i * REGION_SPACING, 0, MASK_SIZE, MASK_SIZE, ImagePlane.getDefaultPlane()),
+                    REGION_CLASS);
+            hierarchy.addObject(region, false);
+            regions.add(region);
+        }
+        return regions;
+    }
+
+    static Map<PathObject, ROI> createEarlierAnnotations(PathObjectHierarchy hierarchy, List<PathObject> regions) {
+        Map<PathObject, ROI> earlier = new HashMap<>();
+        for (PathObject region : regions) {
+            double x = region.getROI().getBoundsX();
+            for (int j = 0; j < EARLIER_PER_REGION; j++) {
+                // A one-pixel speck, which refinement would remove
+                ROI roi = ROIs.createRectangleROI(x + 2 + 4 * j, 28, 1, 1, ImagePlane.getDefaultPlane());
+                PathObject annotation = PathObjects.createAnnotationObject(roi, OUTPUT_CLASS);
+                hierarchy.addObjectBelowParent(region, annotation, false);
+                earlier.put(annotation, roi);
+            }
+        }
+        hierarchy.fireHierarchyChangedEvent(AnnotationBatchTest.class);
+        hierarchy.getSelectionModel().setSelectedObjects(earlier.keySet(), null);
+        return earlier;
+    }
+
+    /**
+     * Threshold one region as a run does: a 16 x 16 block with a small hole, plus a one-pixel speck, filtered
+     * and traced into an annotation.
+     */
+    static PathObject thresholdRegion(PathObject region) {
+        BitMask mask = new BitMask(MASK_SIZE, MASK_SIZE);
+        for (int y = 8; y < 24; y++) {
+            for (int x = 8; x < 24; x++) {
+                if (x < 15 || x > 16 || y < 15 || y > 16) {
+                    mask.set(x, y);
+                }
+            }
+        }
+        mask.set(2, 2);
+        mask = new FragmentFilter(4, 8).apply(mask);
+        ROI roi = GeometryTools.geometryToROI(
+                MaskTracer.trace(mask, region.getROI().getBoundsX(), region.getROI().getBoundsY(), 1,
+                        GeometryTools.getDefaultFactory()),
+                ImagePlane.getDefaultPlane());
+        return PathObjects.createAnnotationObject(roi, OUTPUT_CLASS);
+    }
+}
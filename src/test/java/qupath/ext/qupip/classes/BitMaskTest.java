@@ -0,0 +1,148 @@
+package qupath.ext.qupip.classes;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The word-wise operations of a mask must match the same operations done pixel by pixel, including for widths and
+ * offsets that are not multiples of 64.
+ */
+public class BitMaskTest {
+
+    private static final int[] WIDTHS = {1, 63, 64, 65, 130};
+
+    @Test
+    public void thresholdKeepsValuesWithinTheBounds() {
+        Random random = new Random(21);
+        for (int width : WIDTHS) {
+            int height = 1 + random.nextInt(5);
+            float[] pixels = new float[width * height];
+            for (int i = 0; i < pixels.length; i++) {
+                // Some values fall exactly on the bounds
+                pixels[i] = random.nextInt(10) / 4f;
+            }
+            pixels[pixels.length - 1] = Float.NaN;
+            BitMask mask = BitMask.threshold(pixels, width, height, 0.5, 1.5);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    float value = pixels[y * width + x];
+                    assertEquals(value >= 0.5 && value < 1.5, mask.get(x, y), "Value " + value);
+                }
+            }
+            assertPaddingIsClear(mask);
+
+            BitMask above = BitMask.threshold(pixels, width, height, 2, Double.POSITIVE_INFINITY);
+            for (int i = 0; i < pixels.length; i++) {
+                assertEquals(pixels[i] >= 2, above.get(i % width, i / width));
+            }
+        }
+    }
+
+    @Test
+    public void getRegionMatchesThePixels() {
+        Random random = new Random(22);
+        for (int n = 0; n < 200; n++) {
+            BitMask mask = createRandom(random, 1 + random.nextInt(200), 1 + random.nextInt(6));
+            int x = random.nextInt(mask.getWidth());
+            int y = random.nextInt(mask.getHeight());
+            Rectangle rect = new Rectangle(x, y,
+                    1 + random.nextInt(mask.getWidth() - x), 1 + random.nextInt(mask.getHeight() - y));
+            BitMask region = mask.getRegion(rect);
+            assertEquals(rect.width, region.getWidth());
+            assertEquals(rect.height, region.getHeight());
+            for (int ry = 0; ry < rect.height; ry++) {
+                for (int rx = 0; rx < rect.width; rx++) {
+                    assertEquals(mask.get(rect.x + rx, rect.y + ry), region.get(rx, ry), "Region " + rect);
+                }
+            }
+            assertPaddingIsClear(region);
+        }
+    }
+
+    @Test
+    public void orRegionAddsThePixels() {
+        Random random = new Random(23);
+        for (int n = 0; n < 200; n++) {
+            BitMask mask = createRandom(random, 1 + random.nextInt(200), 1 + random.nextInt(6));
+            int x = random.nextInt(mask.getWidth());
+            int y = random.nextInt(mask.getHeight());
+            BitMask region = createRandom(random,
+                    1 + random.nextInt(mask.getWidth() - x), 1 + random.nextInt(mask.getHeight() - y));
+            boolean[][] expected = new boolean[mask.getHeight()][mask.getWidth()];
+            for (int py = 0; py < mask.getHeight(); py++) {
+                for (int px = 0; px < mask.getWidth(); px++) {
+                    int rx = px - x;
+                    int ry = py - y;
+                    boolean inRegion = rx >= 0 && ry >= 0 && rx < region.getWidth() && ry < region.getHeight();
+                    expected[py][px] = mask.get(px, py) || (inRegion && region.get(rx, ry));
+                }
+            }
+            mask.orRegion(region, x, y);
+            for (int py = 0; py < mask.getHeight(); py++) {
+                for (int px = 0; px < mask.getWidth(); px++) {
+                    assertEquals(expected[py][px], mask.get(px, py), "Region at (" + x + ", " + y + ")");
+                }
+            }
+            assertPaddingIsClear(mask);
+        }
+    }
+
+    @Test
+    public void retainClearsOutsideTheRectangle() {
+        Random random = new Random(24);
+        for (int n = 0; n < 200; n++) {
+            BitMask mask = createRandom(random, 1 + random.nextInt(200), 1 + random.nextInt(6));
+            BitMask original = mask.getRegion(new Rectangle(0, 0, mask.getWidth(), mask.getHeight()));
+            // Rectangles may reach past the mask, as the core of a tile clipped by the image can
+            Rectangle rect = new Rectangle(random.nextInt(mask.getWidth() + 10) - 5,
+                    random.nextInt(mask.getHeight() + 4) - 2, random.nextInt(100), random.nextInt(8));
+            mask.retain(rect);
+            for (int y = 0; y < mask.getHeight(); y++) {
+                for (int x = 0; x < mask.getWidth(); x++) {
+                    assertEquals(original.get(x, y) && rect.contains(x, y), mask.get(x, y), "Rectangle " + rect);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void isEmpty() {
+        BitMask mask = new BitMask(130, 3);
+        assertTrue(mask.isEmpty());
+        mask.set(129, 2);
+        assertFalse(mask.isEmpty());
+        assertTrue(mask.retain(new Rectangle(0, 0, 129, 3)).isEmpty());
+    }
+
+    private static BitMask createRandom(Random random, int width, int height) {
+        BitMask mask = new BitMask(width, height);
+        double density = random.nextDouble();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (random.nextDouble() < density) {
+                    mask.set(x, y);
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * The bits past the end of each row must stay 0, as tracing and statistics read whole words.
+     */
+    private static void assertPaddingIsClear(BitMask mask) {
+        int used = mask.getWidth() & 63;
+        if (used == 0) {
+            return;
+        }
+        for (int y = 0; y < mask.getHeight(); y++) {
+            assertEquals(0, mask.getWord(mask.getWordsPerRow() - 1, y) >>> used, "Row " + y);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package qupath.ext.qupip.classes;
+
+import ij.process.FloatProcessor;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The factor chosen by {@link CoarseBlur#chooseFactor(double, double)} must keep the coarse blur within the error
+ * bound of the exact blur, for pixel values in [0, 1].
+ */
+public class CoarseBlurTest {
+
+    private static final double[] SIGMAS = {10, 20, 40};
+
+    private static final double[] MAX_ERRORS = {0.003, 0.01, 0.03, 0.1};
+
+    @Test
+    public void chosenFactorStaysWithinMaxError() {
+        for (double sigma : SIGMAS) {
+            // The bound holds where the kernel does not reach the border, where the edge is replicated differently
+            int margin = (int) Math.ceil(5 * sigma);
+            int width = 2 * margin + 200;
+            int height = 2 * margin + 150;
+            float[] pixels = createImage(width, height);
+            float[] expected = RecursiveGaussianTest.convolve(pixels, width, height, sigma);
+            for (double maxError : MAX_ERRORS) {
+                int factor = CoarseBlur.chooseFactor(sigma, maxError);
+                float[] actual = pixels.clone();
+                CoarseBlur.blur(new FloatProcessor(width, height, actual), sigma, factor, CoarseBlurTest::convolve);
+                int border = margin + 2 * factor;
+                double error = 0;
+                for (int y = border; y < height - border; y++) {
+                    for (int x = border; x < width - border; x++) {
+                        error = Math.max(error, Math.abs(expected[y * width + x] - actual[y * width + x]));
+                    }
+                }
+                assertTrue(error <= maxError,
+                        "Error " + error + " at sigma " + sigma + ", factor " + factor + ", max error " + maxError);
+            }
+        }
+    }
+
+    @Test
+    public void factorGrowsWithSigmaAndError() {
+        assertEquals(1, CoarseBlur.chooseFactor(80, 0));
+        assertEquals(1, CoarseBlur.chooseFactor(2, 0.1));
+        assertTrue(CoarseBlur.chooseFactor(80, 0.01) > 1);
+        assertTrue(CoarseBlur.chooseFactor(80, 0.03) > CoarseBlur.chooseFactor(80, 0.01));
+        assertTrue(CoarseBlur.chooseFactor(160, 0.03) > CoarseBlur.chooseFactor(80, 0.03));
+    }
+
+    @Test
+    public void errorBoundMatchesChosenFactor() {
+        for (double sigma : new double[]{10, 40, 160}) {
+            for (double maxError : MAX_ERRORS) {
+                int factor = CoarseBlur.chooseFactor(sigma, maxError);
+                assertTrue(CoarseBlur.getError(sigma, factor) <= maxError);
+                assertTrue(CoarseBlur.getError(sigma, factor + 1) > maxError);
+            }
+        }
+    }
+
+    /**
+     * A step, a bright square and uniform noise, in [0, 1].
+     */
+    private static float[] createImage(int width, int height) {
+        Random random = new Random(13);
+        float[] pixels = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float value;
+                if (x > width / 3 && x < width / 3 + 20 && y > height / 2 && y < height / 2 + 20) {
+                    value = 1;
+                } else if (x < width / 2) {
+                    value = 0.2f * random.nextFloat();
+                } else {
+                    value = 0.8f + 0.2f * random.nextFloat();
+                }
+                pixels[y * width + x] = value;
+            }
+        }
+        return pixels;
+    }
+
+    private static void convolve(FloatProcessor fp, double sigma) {
+        float[] pixels = (float[]) fp.getPixels();
+        float[] blurred = RecursiveGaussianTest.convolve(pixels, fp.getWidth(), fp.getHeight(), sigma);
+        System.arraycopy(blurred, 0, pixels, 0, pixels.length);
+    }
+}
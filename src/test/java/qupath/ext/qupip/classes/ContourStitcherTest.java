@@ -0,0 +1,149 @@
+package qupath.ext.qupip.classes;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import qupath.lib.roi.GeometryTools;
+
+import java.awt.Rectangle;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Stitching the contours of a 2 x 2 grid of tiles must give exactly the outlines of tracing the whole mask at once,
+ * whatever crosses the seams between the tiles.
+ */
+public class ContourStitcherTest {
+
+    private static final GeometryFactory FACTORY = GeometryTools.getDefaultFactory();
+
+    @Test
+    public void blockOverTheCentre() {
+        assertStitchedMatchesUntiled(
+                "........",
+                "........",
+                "..####..",
+                "..####..",
+                "..####..",
+                "..####..",
+                "........",
+                "........");
+    }
+
+    @Test
+    public void holeOverTheCentre() {
+        assertStitchedMatchesUntiled(
+                "########",
+                "########",
+                "###..###",
+                "##....##",
+                "##....##",
+                "###..###",
+                "########",
+                "########");
+    }
+
+    @Test
+    public void diagonalTouchAtTheCentre() {
+        assertStitchedMatchesUntiled(
+                "........",
+                "........",
+                "........",
+                "...#....",
+                "....#...",
+                "........",
+                "........",
+                "........");
+        assertStitchedMatchesUntiled(
+                "........",
+                "........",
+                "........",
+                "....#...",
+                "...#....",
+                "........",
+                "........",
+                "........");
+    }
+
+    @Test
+    public void islandInsideHoleAcrossSeams() {
+        assertStitchedMatchesUntiled(
+                "##########",
+                "#........#",
+                "#.######.#",
+                "#.#....#.#",
+                "#.#.##.#.#",
+                "#.#.##.#.#",
+                "#.#....#.#",
+                "#.######.#",
+                "#........#",
+                "##########");
+    }
+
+    @Test
+    public void pixelsAlongTheSeams() {
+        assertStitchedMatchesUntiled(
+                "...#...",
+                "...#...",
+                "...#...",
+                "#######",
+                "...#...",
+                "...#...",
+                "...#...");
+    }
+
+    @Test
+    public void randomMasks() {
+        Random random = new Random(11);
+        for (int n = 0; n < 200; n++) {
+            int width = 2 + random.nextInt(30);
+            int height = 2 + random.nextInt(30);
+            double density = random.nextDouble();
+            String[] rows = new String[height];
+            for (int y = 0; y < height; y++) {
+                StringBuilder row = new StringBuilder();
+                for (int x = 0; x < width; x++) {
+                    row.append(random.nextDouble() < density ? '#' : '.');
+                }
+                rows[y] = row.toString();
+            }
+            assertStitchedMatchesUntiled(rows);
+        }
+    }
+
+    private static void assertStitchedMatchesUntiled(String... rows) {
+        BitMask mask = TestMasks.create(rows);
+        Geometry expected = MaskTracer.trace(mask, 0, 0, 1, FACTORY);
+        String message = String.join("\n", rows);
+        for (int halo = 0; halo <= 2; halo++) {
+            Geometry stitched = stitch2x2(mask, halo);
+            assertTrue(stitched.isValid(), message);
+            assertTrue(expected.norm().equalsExact(stitched.norm()), "Halo " + halo + "\n" + message);
+        }
+    }
+
+    /**
+     * Trace a mask as a 2 x 2 grid of tiles, each read with a halo around its core, added in reverse order.
+     */
+    private static Geometry stitch2x2(BitMask mask, int halo) {
+        int width = mask.getWidth();
+        int height = mask.getHeight();
+        int[] xs = {0, width / 2, width};
+        int[] ys = {0, height / 2, height};
+        ContourStitcher stitcher = new ContourStitcher(2, 2);
+        for (int index = 3; index >= 0; index--) {
+            int column = index % 2;
+            int row = index / 2;
+            Rectangle grid = new Rectangle(xs[column], ys[row], xs[column + 1] - xs[column], ys[row + 1] - ys[row]);
+            int x = Math.max(0, grid.x - halo);
+            int y = Math.max(0, grid.y - halo);
+            Rectangle read = new Rectangle(x, y,
+                    Math.min(width, grid.x + grid.width + halo) - x,
+                    Math.min(height, grid.y + grid.height + halo) - y);
+            Rectangle core = new Rectangle(grid.x - x, grid.y - y, grid.width, grid.height);
+            stitcher.add(index, stitcher.trace(index, mask.getRegion(read), core, grid));
+        }
+        return stitcher.stitch(1, null, null, FACTORY);
+    }
+}
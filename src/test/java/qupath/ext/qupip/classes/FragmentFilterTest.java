@@ -0,0 +1,108 @@
+package qupath.ext.qupip.classes;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import qupath.lib.roi.GeometryTools;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Fragments are kept from "minFragment" pixels up, and holes filled below "maxHole" pixels, both on the mask and on
+ * the traced rings of the tiled path.
+ */
+public class FragmentFilterTest {
+
+    private static final GeometryFactory FACTORY = GeometryTools.getDefaultFactory();
+
+    // Fragments of 4 and 3 pixels, and holes of 6 and 5 pixels
+    private static final String[] MASK = {
+            "......................",
+            ".####...###...........",
+            "......................",
+            ".########...#######...",
+            ".#......#...#.....#...",
+            ".########...#######...",
+            "......................"
+    };
+
+    private static final String[] FILTERED = {
+            "......................",
+            ".####.................",
+            "......................",
+            ".########...#######...",
+            ".#......#...#######...",
+            ".########...#######...",
+            "......................"
+    };
+
+    @Test
+    public void maskIsFilteredAtTheAreaBoundary() {
+        BitMask filtered = new FragmentFilter(4, 6).apply(TestMasks.create(MASK));
+        assertMasksEqual(TestMasks.create(FILTERED), filtered);
+    }
+
+    @Test
+    public void ringsAreFilteredAtTheAreaBoundary() {
+        Geometry expected = MaskTracer.trace(TestMasks.create(FILTERED), 0, 0, 1, FACTORY);
+        BitMask mask = TestMasks.create(MASK);
+        Geometry filtered = MaskTracer.createGeometry(MaskTracer.traceRings(mask), 0, 0, 1,
+                new FragmentFilter(4, 6), null, FACTORY);
+        assertTrue(expected.norm().equalsExact(filtered.norm()));
+    }
+
+    @Test
+    public void zeroKeepsEverything() {
+        BitMask mask = TestMasks.create(MASK);
+        assertMasksEqual(mask, new FragmentFilter(0, 0).apply(mask));
+    }
+
+    @Test
+    public void holeTouchingTheBorderIsNotFilled() {
+        BitMask mask = TestMasks.create(
+                "#.###",
+                "#.#.#",
+                "#####");
+        assertMasksEqual(TestMasks.create(
+                "#.###",
+                "#.###",
+                "#####"), new FragmentFilter(0, 100).apply(mask));
+    }
+
+    @Test
+    public void ringsMatchTheMaskOnRandomMasks() {
+        Random random = new Random(9);
+        for (int n = 0; n < 200; n++) {
+            int width = 3 + random.nextInt(25);
+            int height = 3 + random.nextInt(25);
+            double density = random.nextDouble();
+            BitMask mask = new BitMask(width, height);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (random.nextDouble() < density) {
+                        mask.set(x, y);
+                    }
+                }
+            }
+            FragmentFilter filter = new FragmentFilter(random.nextInt(8), random.nextInt(8));
+            Geometry expected = MaskTracer.trace(filter.apply(mask), 0, 0, 1, FACTORY);
+            Geometry filtered = MaskTracer.createGeometry(MaskTracer.traceRings(mask), 0, 0, 1, filter, null,
+                    FACTORY);
+            assertTrue(expected.norm().equalsExact(filtered.norm()),
+                    "Min fragment " + filter.getMinFragment() + ", max hole " + filter.getMaxHole());
+        }
+    }
+
+    private static void assertMasksEqual(BitMask expected, BitMask actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.get(x, y), actual.get(x, y), "Pixel (" + x + ", " + y + ")");
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package qupath.ext.qupip.classes;
+
+import org.junit.jupiter.api.Test;
+import qupath.ext.qupip.classes.FragmentMorphometry.Fragment;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Labelling in stripes must give the same fragments as labelling the whole mask, and the shape measurements must
+ * match those worked out by hand for simple shapes.
+ */
+public class FragmentMorphometryTest {
+
+    private static final double EPSILON = 1e-9;
+
+    /**
+     * How much each corner shortens the outline of unit pixels, as it is cut diagonally.
+     */
+    private static final double CORNER_CUT = 1 - Math.sqrt(0.5);
+
+    @Test
+    public void stripesLabelAsTheWholeMask() {
+        Random random = new Random(25);
+        for (int nThreads = 1; nThreads <= 4; nThreads++) {
+            FragmentMorphometry morphometry = new FragmentMorphometry(nThreads);
+            try {
+                for (int n = 0; n < 100; n++) {
+                    RunLengthMask runs = RunLengthMask.fromBitMask(
+                            TestMasks.random(random, 1 + random.nextInt(100), 1 + random.nextInt(60)));
+                    assertArrayEquals(runs.labelRuns(false), morphometry.label(runs),
+                            "Threads " + nThreads + ", mask " + n);
+                }
+            } finally {
+                morphometry.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void square() {
+        Fragment fragment = measureSingle(1, 1,
+                "......",
+                ".####.",
+                ".####.",
+                ".####.",
+                ".####.",
+                "......");
+        assertEquals(16, fragment.getArea(), EPSILON);
+        assertEquals(16 - 4 * CORNER_CUT, fragment.getPerimeter(), EPSILON);
+        assertEquals(4 * Math.PI * 16 / Math.pow(16 - 4 * CORNER_CUT, 2), fragment.getCircularity(), EPSILON);
+        assertEquals(1, fragment.getSolidity(), EPSILON);
+        assertEquals(4 * Math.sqrt(2), fragment.getMaxFeret(), EPSILON);
+        assertEquals(4, fragment.getMinFeret(), EPSILON);
+    }
+
+    @Test
+    public void rectangleWithNonSquarePixels() {
+        // 6 x 2 pixels of 0.5 x 2, i.e. 3 x 4 in calibrated units
+        Fragment fragment = measureSingle(0.5, 2,
+                "........",
+                ".######.",
+                ".######.",
+                "........");
+        double cut = 4 * ((0.5 + 2) / 2 - Math.hypot(0.5, 2) / 2);
+        assertEquals(12, fragment.getArea(), EPSILON);
+        assertEquals(14 - cut, fragment.getPerimeter(), EPSILON);
+        assertEquals(4 * Math.PI * 12 / Math.pow(14 - cut, 2), fragment.getCircularity(), EPSILON);
+        assertEquals(1, fragment.getSolidity(), EPSILON);
+        assertEquals(5, fragment.getMaxFeret(), EPSILON);
+        assertEquals(3, fragment.getMinFeret(), EPSILON);
+    }
+
+    @Test
+    public void lShape() {
+        // The hull cuts the missing corner diagonally, from (2, 0) to (4, 2)
+        Fragment fragment = measureSingle(1, 1,
+                "##..",
+                "##..",
+                "####",
+                "####");
+        assertEquals(12, fragment.getArea(), EPSILON);
+        // Five convex corners and one concave corner
+        assertEquals(16 - 6 * CORNER_CUT, fragment.getPerimeter(), EPSILON);
+        assertEquals(12.0 / 14, fragment.getSolidity(), EPSILON);
+        assertEquals(4 * Math.sqrt(2), fragment.getMaxFeret(), EPSILON);
+        assertEquals(4, fragment.getMinFeret(), EPSILON);
+    }
+
+    @Test
+    public void disc() {
+        int radius = 20;
+        int size = 2 * radius + 2;
+        String[] rows = new String[size];
+        for (int y = 0; y < size; y++) {
+            StringBuilder row = new StringBuilder();
+            for (int x = 0; x < size; x++) {
+                row.append(Math.hypot(x + 0.5 - size / 2.0, y + 0.5 - size / 2.0) <= radius ? '#' : '.');
+            }
+            rows[y] = row.toString();
+        }
+        Fragment fragment = measureSingle(1, 1, rows);
+        assertEquals(Math.PI * radius * radius, fragment.getArea(), 0.01 * Math.PI * radius * radius);
+        // The outline only turns by multiples of 45 degrees, which makes a circle a few percent longer
+        double circumference = 2 * Math.PI * radius;
+        assertTrue(fragment.getPerimeter() > circumference && fragment.getPerimeter() < 1.07 * circumference,
+                "Perimeter " + fragment.getPerimeter());
+        assertTrue(fragment.getCircularity() > 0.87 && fragment.getCircularity() < 1,
+                "Circularity " + fragment.getCircularity());
+        assertTrue(fragment.getSolidity() > 0.95 && fragment.getSolidity() < 1, "Solidity " + fragment.getSolidity());
+        // The disc spans 2 * radius pixels across, and the hull through the pixel corners is a little wider diagonally
+        assertEquals(2 * radius, fragment.getMinFeret(), EPSILON);
+        assertTrue(fragment.getMaxFeret() >= 2 * radius && fragment.getMaxFeret() < 2 * radius + 1.5,
+                "Max Feret " + fragment.getMaxFeret());
+    }
+
+    private static Fragment measureSingle(double pixelWidth, double pixelHeight, String... rows) {
+        BitMask mask = TestMasks.create(rows);
+        float[] pixels = new float[mask.getWidth() * mask.getHeight()];
+        FragmentMorphometry morphometry = new FragmentMorphometry(2);
+        try {
+            List<Fragment> fragments = morphometry.measure(mask, pixels, pixelWidth, pixelHeight);
+            assertEquals(1, fragments.size());
+            return fragments.get(0);
+        } finally {
+            morphometry.shutdown();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package qupath.ext.qupip.classes;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Hysteresis on a 2 x 2 grid of tiles, with the seams merged, must keep exactly the pixels kept by labelling the
+ * whole image at once, whatever crosses the seams between the tiles.
+ */
+public class HysteresisTest {
+
+    private static final double LOW = 0.4;
+
+    private static final double HIGH = 0.8;
+
+    @Test
+    public void weakComponentSeededInTheNeighbouringTile() {
+        // The weak component spans the vertical seam, and only the tile on the right has a seed
+        float[] pixels = toPixels(
+                "........",
+                ".oooooo.",
+                ".o....O.",
+                "........",
+                "........",
+                "........",
+                "..oo....",
+                "........");
+        BitMask untiled = labelUntiled(pixels, 8, 8);
+        assertTrue(untiled.get(1, 1) && untiled.get(6, 2));
+        assertFalse(untiled.get(2, 6), "A component without a seed is removed");
+        assertMasksEqual(untiled, labelTiled2x2(pixels, 8, 8, 1), "Seeded across the seam");
+
+        // Without merging the seams, the left tile would remove its part of the component
+        Hysteresis.Components left = Hysteresis.label(pixels, 8, new Rectangle(0, 0, 4, 4), LOW, HIGH);
+        BitMask alone = new BitMask(8, 8);
+        left.fillMask(alone, null);
+        assertFalse(alone.get(1, 1));
+    }
+
+    @Test
+    public void componentAroundTheCentre() {
+        // A ring through all four tiles, seeded only in the bottom right tile
+        float[] pixels = toPixels(
+                "........",
+                ".oooooo.",
+                ".o....o.",
+                ".o....o.",
+                ".o....o.",
+                ".o....o.",
+                ".oooooO.",
+                "........");
+        BitMask untiled = labelUntiled(pixels, 8, 8);
+        assertTrue(untiled.get(1, 1));
+        for (int halo = 0; halo <= 2; halo++) {
+            assertMasksEqual(untiled, labelTiled2x2(pixels, 8, 8, halo), "Halo " + halo);
+        }
+    }
+
+    @Test
+    public void randomImages() {
+        Random random = new Random(16);
+        for (int n = 0; n < 300; n++) {
+            int width = 2 + random.nextInt(30);
+            int height = 2 + random.nextInt(30);
+            // Mostly weak pixels, so that components are large and cross the seams
+            double strong = 0.02 * random.nextDouble();
+            double weak = 0.3 + 0.5 * random.nextDouble();
+            float[] pixels = new float[width * height];
+            for (int i = 0; i < pixels.length; i++) {
+                double value = random.nextDouble();
+                pixels[i] = value < strong ? 0.9f : value < weak ? 0.5f : 0.1f;
+            }
+            BitMask untiled = labelUntiled(pixels, width, height);
+            for (int halo = 0; halo <= 2; halo++) {
+                assertMasksEqual(untiled, labelTiled2x2(pixels, width, height, halo),
+                        "Image " + n + " (" + width + " x " + height + "), halo " + halo);
+            }
+        }
+    }
+
+    private static BitMask labelUntiled(float[] pixels, int width, int height) {
+        BitMask mask = new BitMask(width, height);
+        Hysteresis.label(pixels, width, new Rectangle(0, 0, width, height), LOW, HIGH).fillMask(mask, null);
+        return mask;
+    }
+
+    /**
+     * Label an image as a 2 x 2 grid of tiles, each read with a halo around its core, added in reverse order.
+     * As on a slide, every tile is labelled once to merge the seams, then again to fill the mask.
+     */
+    private static BitMask labelTiled2x2(float[] pixels, int width, int height, int halo) {
+        int[] xs = {0, width / 2, width};
+        int[] ys = {0, height / 2, height};
+        Rectangle[] reads = new Rectangle[4];
+        Rectangle[] cores = new Rectangle[4];
+        Rectangle[] grids = new Rectangle[4];
+        for (int index = 0; index < 4; index++) {
+            int column = index % 2;
+            int row = index / 2;
+            grids[index] = new Rectangle(xs[column], ys[row], xs[column + 1] - xs[column], ys[row + 1] - ys[row]);
+            int x = Math.max(0, grids[index].x - halo);
+            int y = Math.max(0, grids[index].y - halo);
+            reads[index] = new Rectangle(x, y,
+                    Math.min(width, grids[index].x + grids[index].width + halo) - x,
+                    Math.min(height, grids[index].y + grids[index].height + halo) - y);
+            cores[index] = new Rectangle(grids[index].x - x, grids[index].y - y,
+                    grids[index].width, grids[index].height);
+        }
+
+        Hysteresis.SeamMerge merge = new Hysteresis.SeamMerge(2, 2);
+        for (int index = 3; index >= 0; index--) {
+            float[] tile = crop(pixels, width, reads[index]);
+            merge.add(index, Hysteresis.label(tile, reads[index].width, cores[index], LOW, HIGH).getSeams());
+        }
+        merge.merge();
+
+        BitMask mask = new BitMask(width, height);
+        for (int index = 3; index >= 0; index--) {
+            float[] tile = crop(pixels, width, reads[index]);
+            BitMask tileMask = new BitMask(reads[index].width, reads[index].height);
+            Hysteresis.label(tile, reads[index].width, cores[index], LOW, HIGH)
+                    .fillMask(tileMask, merge.getKept(index));
+            mask.orRegion(tileMask.getRegion(cores[index]), grids[index].x, grids[index].y);
+        }
+        return mask;
+    }
+
+    private static float[] crop(float[] pixels, int width, Rectangle rect) {
+        float[] tile = new float[rect.width * rect.height];
+        for (int y = 0; y < rect.height; y++) {
+            System.arraycopy(pixels, (rect.y + y) * width + rect.x, tile, y * rect.width, rect.width);
+        }
+        return tile;
+    }
+
+    /**
+     * Pixels from rows of text: 'O' is above the high threshold, 'o' between the thresholds, anything else below.
+     */
+    private static float[] toPixels(String... rows) {
+        int width = rows[0].length();
+        float[] pixels = new float[width * rows.length];
+        for (int y = 0; y < rows.length; y++) {
+            for (int x = 0; x < width; x++) {
+                char c = rows[y].charAt(x);
+                pixels[y * width + x] = c == 'O' ? 0.9f : c == 'o' ? 0.5f : 0.1f;
+            }
+        }
+        return pixels;
+    }
+
+    private static void assertMasksEqual(BitMask expected, BitMask actual, String message) {
+        assertEquals(expected.getWidth(), actual.getWidth(), message);
+        assertEquals(expected.getHeight(), actual.getHeight(), message);
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.get(x, y), actual.get(x, y), message + " at (" + x + ", " + y + ")");
+            }
+        }
+    }
+}
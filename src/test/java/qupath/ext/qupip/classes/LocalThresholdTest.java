@@ -0,0 +1,98 @@
+package qupath.ext.qupip.classes;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Every method must select the same pixels as the statistics of the window computed pixel by pixel, including the
+ * windows clipped by the image border and images narrower than a window.
+ */
+public class LocalThresholdTest {
+
+    /**
+     * Pixels this close to their threshold may fall either side of it, as the statistics are summed in another order.
+     */
+    private static final double MARGIN = 1e-9;
+
+    @Test
+    public void niblackMatchesBruteForce() {
+        assertMatchesBruteForce(LocalThreshold.Method.Niblack, 0.2, 1, 0, 1411);
+        assertMatchesBruteForce(LocalThreshold.Method.Niblack, -0.5, 1, 0, 1412);
+    }
+
+    @Test
+    public void sauvolaMatchesBruteForce() {
+        assertMatchesBruteForce(LocalThreshold.Method.Sauvola, 0.2, 0.5, 0, 1413);
+        assertMatchesBruteForce(LocalThreshold.Method.Sauvola, 0.5, 0.1, 0, 1414);
+    }
+
+    @Test
+    public void bernsenMatchesBruteForce() {
+        assertMatchesBruteForce(LocalThreshold.Method.Bernsen, 0, 0, 0, 1415);
+        assertMatchesBruteForce(LocalThreshold.Method.Bernsen, 0, 0, 0.3, 1416);
+    }
+
+    private static void assertMatchesBruteForce(LocalThreshold.Method method, double k, double r, double contrast,
+                                                long seed) {
+        Random random = new Random(seed);
+        for (int n = 0; n < 200; n++) {
+            int width = 1 + random.nextInt(40);
+            int height = 1 + random.nextInt(40);
+            int radius = 1 + random.nextInt(8);
+            float[] pixels = new float[width * height];
+            for (int i = 0; i < pixels.length; i++) {
+                // Half the images have values on a coarse grid, so that windows often have ties
+                pixels[i] = n % 2 == 0 ? random.nextFloat() : random.nextInt(5) / 4f;
+            }
+            BitMask mask = new LocalThreshold(method, radius, k, r, contrast).apply(pixels, width, height);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    String message = method + ", image " + n + " (" + width + " x " + height + ", radius " + radius +
+                            ") at (" + x + ", " + y + ")";
+                    double threshold = bruteForceThreshold(method, pixels, width, height, x, y, radius, k, r, contrast);
+                    double value = pixels[y * width + x];
+                    if (Double.isNaN(threshold)) {
+                        assertEquals(false, mask.get(x, y), message);
+                    } else if (Math.abs(value - threshold) > MARGIN) {
+                        assertEquals(value > threshold, mask.get(x, y), message);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The threshold of one pixel from its window clipped to the image, or NaN if the pixel cannot be selected.
+     */
+    private static double bruteForceThreshold(LocalThreshold.Method method, float[] pixels, int width, int height,
+                                              int x, int y, int radius, double k, double r, double contrast) {
+        double sum = 0;
+        double sumSquares = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        int count = 0;
+        for (int wy = Math.max(0, y - radius); wy <= Math.min(height - 1, y + radius); wy++) {
+            for (int wx = Math.max(0, x - radius); wx <= Math.min(width - 1, x + radius); wx++) {
+                double value = pixels[wy * width + wx];
+                sum += value;
+                sumSquares += value * value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                count++;
+            }
+        }
+        double mean = sum / count;
+        double std = Math.sqrt(Math.max(0, sumSquares / count - mean * mean));
+        switch (method) {
+            case Niblack:
+                return mean + k * std;
+            case Sauvola:
+                return mean * (1 + k * (1 - std / r));
+            default:
+                return max - min >= contrast ? (float) ((min + max) / 2) : Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package qupath.ext.qupip.classes;
+
+import ij.gui.Roi;
+import ij.plugin.filter.ThresholdToSelection;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Geometry;
+import qupath.imagej.tools.IJTools;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Equivalence of {@link MaskTracer} with ImageJ's {@link ThresholdToSelection} followed by
+ * {@link IJTools#convertToROI}, which it replaces: both must cover exactly the same pixels.
+ */
+public class MaskTracerTest {
+
+    @Test
+    public void singlePixelsAtTheEdges() {
+        assertSameAsImageJ(
+                "#...#",
+                ".....",
+                "..#..",
+                ".....",
+                "#...#");
+    }
+
+    @Test
+    public void fullMask() {
+        assertSameAsImageJ(
+                "####",
+                "####",
+                "####");
+    }
+
+    @Test
+    public void holes() {
+        assertSameAsImageJ(
+                "#######",
+                "#..#..#",
+                "#..#..#",
+                "#######",
+                "#.#####",
+                "#######");
+    }
+
+    @Test
+    public void islandInsideHole() {
+        assertSameAsImageJ(
+                "#########",
+                "#.......#",
+                "#.#####.#",
+                "#.#...#.#",
+                "#.#.#.#.#",
+                "#.#...#.#",
+                "#.#####.#",
+                "#.......#",
+                "#########");
+    }
+
+    @Test
+    public void diagonalTouches() {
+        assertSameAsImageJ(
+                "#.#.",
+                ".#.#",
+                "#.#.",
+                ".#.#");
+    }
+
+    @Test
+    public void holesTouchingDiagonally() {
+        assertSameAsImageJ(
+                "######",
+                "#.####",
+                "##.###",
+                "###..#",
+                "###..#",
+                "######");
+    }
+
+    @Test
+    public void ringTouchingItselfAtACorner() {
+        assertSameAsImageJ(
+                "...##",
+                "...##",
+                "##...",
+                "##.#.",
+                "..##.");
+    }
+
+    @Test
+    public void randomMasks() {
+        Random random = new Random(7);
+        for (int n = 0; n < 50; n++) {
+            String[] rows = new String[12];
+            for (int y = 0; y < rows.length; y++) {
+                StringBuilder row = new StringBuilder();
+                for (int x = 0; x < 15; x++) {
+                    row.append(random.nextDouble() < 0.55 ? '#' : '.');
+                }
+                rows[y] = row.toString();
+            }
+            assertSameAsImageJ(rows);
+        }
+    }
+
+    @Test
+    public void emptyMask() {
+        BitMask mask = TestMasks.create("...", "...");
+        assertTrue(MaskTracer.trace(mask, 0, 0, 1, GeometryTools.getDefaultFactory()).isEmpty());
+        assertNull(new ThresholdToSelection().convert(createProcessor(mask)));
+    }
+
+    private static void assertSameAsImageJ(String... rows) {
+        BitMask mask = TestMasks.create(rows);
+        Geometry traced = MaskTracer.trace(mask, 0, 0, 1, GeometryTools.getDefaultFactory());
+
+        Roi roi = new ThresholdToSelection().convert(createProcessor(mask));
+        Geometry expected = IJTools.convertToROI(roi, 0, 0, 1, ImagePlane.getDefaultPlane()).getGeometry();
+
+        String message = String.join("\n", rows);
+        assertTrue(traced.isValid(), message);
+        assertEquals(expected.getArea(), traced.getArea(), 1e-9, message);
+        assertTrue(traced.symDifference(expected).isEmpty(), message);
+    }
+
+    private static ImageProcessor createProcessor(BitMask mask) {
+        ByteProcessor bp = new ByteProcessor(mask.getWidth(), mask.getHeight());
+        for (int y = 0; y < mask.getHeight(); y++) {
+            for (int x = 0; x < mask.getWidth(); x++) {
+                if (mask.get(x, y)) {
+                    bp.set(x, y, 255);
+                }
+            }
+        }
+        bp.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+        return bp;
+    }
+}
@@ -0,0 +1,103 @@
+package qupath.ext.qupip.classes;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import org.junit.jupiter.api.Test;
+import qupath.imagej.tools.IJTools;
+import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.color.ColorDeconvolutionStains.DefaultColorDeconvolutionStains;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Equivalence of {@link OpticalDensity#sum(ImageProcessor)} with {@code convertToColorProcessor()} followed by
+ * {@link IJTools#convertToOpticalDensitySum}, and of {@link OpticalDensity#stain} with the matching channel of
+ * {@link IJTools#colorDeconvolve}, which they replace.
+ */
+public class OpticalDensityTest {
+
+    /**
+     * The lookup table is in float, so only float rounding may differ.
+     */
+    private static final double MAX_ERROR = 1e-5;
+
+    @Test
+    public void sumMatchesImageJForEveryChannelValue() {
+        int[] rgb = new int[256 * 4];
+        for (int i = 0; i < 256; i++) {
+            rgb[i] = (i << 16) | (i << 8) | i;
+            rgb[256 + i] = i << 16;
+            rgb[512 + i] = i << 8;
+            rgb[768 + i] = i;
+        }
+        assertSumMatchesImageJ(new ColorProcessor(256, 4, rgb));
+    }
+
+    @Test
+    public void sumMatchesImageJForRandomPixels() {
+        Random random = new Random(3);
+        int[] rgb = new int[97 * 61];
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] = 0xff000000 | random.nextInt(1 << 24);
+        }
+        assertSumMatchesImageJ(new ColorProcessor(97, 61, rgb));
+    }
+
+    @Test
+    public void sumMatchesImageJForNonRgbImages() {
+        byte[] pixels = new byte[256];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) i;
+        }
+        assertSumMatchesImageJ(new ByteProcessor(16, 16, pixels));
+    }
+
+    @Test
+    public void stainMatchesQuPathForEveryStainOfTheDefaultVectors() {
+        Random random = new Random(4);
+        int[] rgb = new int[256 * 4 + 97 * 61];
+        for (int i = 0; i < 256; i++) {
+            rgb[i] = (i << 16) | (i << 8) | i;
+            rgb[256 + i] = i << 16;
+            rgb[512 + i] = i << 8;
+            rgb[768 + i] = i;
+        }
+        for (int i = 1024; i < rgb.length; i++) {
+            rgb[i] = 0xff000000 | random.nextInt(1 << 24);
+        }
+        ColorProcessor cp = new ColorProcessor(256, rgb.length / 256, rgb);
+        for (DefaultColorDeconvolutionStains defaults : List.of(
+                DefaultColorDeconvolutionStains.H_E, DefaultColorDeconvolutionStains.H_DAB)) {
+            ColorDeconvolutionStains stains = ColorDeconvolutionStains.makeDefaultColorDeconvolutionStains(defaults);
+            FloatProcessor[] expected = IJTools.colorDeconvolve(cp, stains);
+            for (int stainIndex = 0; stainIndex < 3; stainIndex++) {
+                FloatProcessor actual = OpticalDensity.stain(cp, stains, stainIndex);
+                assertEquals(cp.getWidth(), actual.getWidth());
+                assertEquals(cp.getHeight(), actual.getHeight());
+                float[] expectedValues = (float[]) expected[stainIndex].getPixels();
+                float[] values = (float[]) actual.getPixels();
+                for (int i = 0; i < expectedValues.length; i++) {
+                    assertEquals(expectedValues[i], values[i], MAX_ERROR,
+                            defaults + ", stain " + stainIndex + ", pixel " + i);
+                }
+            }
+        }
+    }
+
+    private static void assertSumMatchesImageJ(ImageProcessor ip) {
+        float[] expected = (float[]) IJTools.convertToOpticalDensitySum(
+                ip.convertToColorProcessor(), 255, 255, 255).getPixels();
+        FloatProcessor actual = OpticalDensity.sum(ip);
+        assertEquals(ip.getWidth(), actual.getWidth());
+        assertEquals(ip.getHeight(), actual.getHeight());
+        float[] values = (float[]) actual.getPixels();
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], values[i], MAX_ERROR, "Pixel " + i);
+        }
+    }
+}
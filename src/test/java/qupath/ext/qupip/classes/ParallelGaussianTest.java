@@ -0,0 +1,106 @@
+package qupath.ext.qupip.classes;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Blurring in stripes must give exactly the sequential recursive blur, whatever the number of threads and callers,
+ * and stay close to ImageJ's blur.
+ */
+public class ParallelGaussianTest {
+
+    /**
+     * Largest absolute difference accepted from ImageJ's blur, for pixel values in [0, 1], as for
+     * {@link RecursiveGaussianTest}.
+     */
+    private static final double MAX_ERROR = 0.02;
+
+    private static final double[] SIGMAS = {2, 3.5, 10, 40};
+
+    @Test
+    public void matchesTheSequentialBlur() {
+        Random random = new Random(101);
+        for (int nThreads : new int[]{1, 2, 3, 8}) {
+            ParallelGaussian gaussian = new ParallelGaussian(nThreads);
+            for (double sigma : SIGMAS) {
+                int width = 1 + random.nextInt(200);
+                int height = 1 + random.nextInt(200);
+                float[] pixels = createRandom(random, width * height);
+                float[] expected = pixels.clone();
+                new RecursiveGaussian(sigma).blur(expected, width, height);
+                gaussian.blur(pixels, width, height, sigma);
+                assertArrayEquals(expected, pixels, nThreads + " threads, sigma " + sigma);
+            }
+        }
+    }
+
+    @Test
+    public void callersShareThePool() throws Exception {
+        // Pipeline workers blur different images with different instances at the same time
+        Random random = new Random(102);
+        int nCallers = 6;
+        List<float[]> images = new ArrayList<>();
+        List<float[]> expected = new ArrayList<>();
+        for (int c = 0; c < nCallers; c++) {
+            float[] pixels = createRandom(random, 120 * 80);
+            float[] blurred = pixels.clone();
+            new RecursiveGaussian(5).blur(blurred, 120, 80);
+            images.add(pixels);
+            expected.add(blurred);
+        }
+        ExecutorService callers = Executors.newFixedThreadPool(nCallers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (float[] pixels : images) {
+                futures.add(callers.submit(() -> new ParallelGaussian(3).blur(pixels, 120, 80, 5)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            callers.shutdown();
+        }
+        for (int c = 0; c < nCallers; c++) {
+            assertArrayEquals(expected.get(c), images.get(c), "Caller " + c);
+        }
+    }
+
+    @Test
+    public void closeToImageJ() {
+        Random random = new Random(103);
+        ParallelGaussian gaussian = new ParallelGaussian(4);
+        for (double sigma : SIGMAS) {
+            int width = 160;
+            int height = 100;
+            float[] pixels = createRandom(random, width * height);
+            FloatProcessor ip = new FloatProcessor(width, height, pixels.clone());
+            new GaussianBlur().blurGaussian(ip, sigma);
+            float[] expected = (float[]) ip.getPixels();
+            gaussian.blur(pixels, width, height, sigma);
+            double maxError = 0;
+            for (int i = 0; i < pixels.length; i++) {
+                maxError = Math.max(maxError, Math.abs(expected[i] - pixels[i]));
+            }
+            assertTrue(maxError <= MAX_ERROR, "Max error " + maxError + " at sigma " + sigma);
+        }
+    }
+
+    private static float[] createRandom(Random random, int n) {
+        float[] pixels = new float[n];
+        for (int i = 0; i < n; i++) {
+            pixels[i] = random.nextFloat();
+        }
+        return pixels;
+    }
+}
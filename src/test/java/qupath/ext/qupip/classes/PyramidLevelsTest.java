@@ -0,0 +1,84 @@
+package qupath.ext.qupip.classes;
+
+import org.junit.jupiter.api.Test;
+import qupath.lib.images.servers.ImageServer;
+
+import java.lang.reflect.Proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * The downsample chosen by each mode, for requests between, above and below the levels of a pyramid.
+ */
+public class PyramidLevelsTest {
+
+    private static final double[] LEVELS = {1, 4, 16, 64};
+
+    private static final ImageServer<?> SERVER = createServer(LEVELS);
+
+    @Test
+    public void betweenLevels() {
+        // 3 is closer to 4 than to 1 on a log scale, and 10 closer to 16 than to 4
+        assertEquals(4, PyramidLevels.nearestLevelDownsample(LEVELS, 3), 0);
+        assertEquals(16, PyramidLevels.nearestLevelDownsample(LEVELS, 10), 0);
+        assertEquals(4, PyramidLevels.nearestLevelDownsample(LEVELS, 7.5), 0);
+    }
+
+    @Test
+    public void aboveTheCoarsestLevel() {
+        assertEquals(64, PyramidLevels.nearestLevelDownsample(LEVELS, 100), 0);
+        assertEquals(64, PyramidLevels.chooseDownsample(SERVER, 1000, PyramidLevels.MODE_NATIVE, 0.05), 0);
+        assertEquals(100, PyramidLevels.chooseDownsample(SERVER, 100, PyramidLevels.MODE_SNAP, 0.05), 0);
+    }
+
+    @Test
+    public void belowOne() {
+        assertEquals(1, PyramidLevels.nearestLevelDownsample(LEVELS, 0.5), 0);
+        assertEquals(1, PyramidLevels.chooseDownsample(SERVER, 0.5, PyramidLevels.MODE_NATIVE, 0.05), 0);
+        assertEquals(0.5, PyramidLevels.chooseDownsample(SERVER, 0.5, PyramidLevels.MODE_SNAP, 0.05), 0);
+        assertEquals(0.5, PyramidLevels.chooseDownsample(SERVER, 0.5, PyramidLevels.MODE_EXACT, 0.05), 0);
+    }
+
+    @Test
+    public void tiesChooseTheFinerLevel() {
+        // 2 is a factor of 2 from both 1 and 4, and 8 from both 4 and 16
+        assertEquals(1, PyramidLevels.nearestLevelDownsample(LEVELS, 2), 0);
+        assertEquals(4, PyramidLevels.nearestLevelDownsample(LEVELS, 8), 0);
+        assertEquals(1, PyramidLevels.nearestLevelDownsample(new double[]{64, 16, 4, 1}, 2), 0);
+        assertEquals(4, PyramidLevels.nearestLevelDownsample(new double[]{64, 16, 4, 1}, 8), 0);
+    }
+
+    @Test
+    public void snapWithinTheTolerance() {
+        assertEquals(4, PyramidLevels.chooseDownsample(SERVER, 3.9, PyramidLevels.MODE_SNAP, 0.05), 0);
+        assertEquals(4, PyramidLevels.chooseDownsample(SERVER, 4.2, PyramidLevels.MODE_SNAP, 0.05), 0);
+        assertEquals(3.5, PyramidLevels.chooseDownsample(SERVER, 3.5, PyramidLevels.MODE_SNAP, 0.05), 0);
+        assertEquals(4, PyramidLevels.chooseDownsample(SERVER, 3.5, PyramidLevels.MODE_NATIVE, 0.05), 0);
+        assertEquals(3.9, PyramidLevels.chooseDownsample(SERVER, 3.9, PyramidLevels.MODE_EXACT, 0.05), 0);
+    }
+
+    @Test
+    public void noLevels() {
+        assertEquals(3, PyramidLevels.nearestLevelDownsample(new double[0], 3), 0);
+    }
+
+    @Test
+    public void unknownMode() {
+        assertThrows(IllegalArgumentException.class,
+                () -> PyramidLevels.chooseDownsample(SERVER, 3, "Nearest", 0.05));
+    }
+
+    /**
+     * A server that only knows its pyramid levels.
+     */
+    private static ImageServer<?> createServer(double[] levels) {
+        return (ImageServer<?>) Proxy.newProxyInstance(PyramidLevelsTest.class.getClassLoader(),
+                new Class<?>[]{ImageServer.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("getPreferredDownsamples")) {
+                        return levels.clone();
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
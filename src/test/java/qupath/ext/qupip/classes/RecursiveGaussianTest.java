@@ -0,0 +1,121 @@
+package qupath.ext.qupip.classes;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Accuracy of {@link RecursiveGaussian} against a direct Gaussian convolution with replicated edges,
+ * on images in [0, 1].
+ */
+public class RecursiveGaussianTest {
+
+    /**
+     * Largest absolute difference accepted from the direct convolution, for pixel values in [0, 1].
+     */
+    private static final double MAX_ERROR = 0.02;
+
+    private static final double[] SIGMAS = {2, 3, 5, 10, 40, 80};
+
+    @Test
+    public void stepWithSpikeMatchesConvolution() {
+        int width = 200;
+        int height = 120;
+        float[] pixels = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = width / 2; x < width; x++) {
+                pixels[y * width + x] = 1;
+            }
+        }
+        pixels[(height / 2) * width + width / 4] = 1;
+        for (double sigma : SIGMAS) {
+            assertMatchesConvolution(pixels, width, height, sigma);
+        }
+    }
+
+    @Test
+    public void noiseMatchesConvolution() {
+        int width = 150;
+        int height = 90;
+        Random random = new Random(42);
+        float[] pixels = new float[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextFloat();
+        }
+        for (double sigma : SIGMAS) {
+            assertMatchesConvolution(pixels, width, height, sigma);
+        }
+    }
+
+    @Test
+    public void constantImageIsUnchanged() {
+        float[] pixels = new float[64 * 48];
+        Arrays.fill(pixels, 0.75f);
+        new RecursiveGaussian(12).blur(pixels, 64, 48);
+        for (float value : pixels) {
+            assertEquals(0.75, value, 1e-5);
+        }
+    }
+
+    @Test
+    public void smallSigmasAreNotSupported() {
+        assertFalse(RecursiveGaussian.isSupported(1.5));
+        assertTrue(RecursiveGaussian.isSupported(2));
+        assertTrue(RecursiveGaussian.isSupported(50));
+    }
+
+    private static void assertMatchesConvolution(float[] pixels, int width, int height, double sigma) {
+        float[] expected = convolve(pixels, width, height, sigma);
+        float[] actual = pixels.clone();
+        new RecursiveGaussian(sigma).blur(actual, width, height);
+        double maxError = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            maxError = Math.max(maxError, Math.abs(expected[i] - actual[i]));
+        }
+        assertTrue(maxError <= MAX_ERROR, "Max error " + maxError + " at sigma " + sigma);
+    }
+
+    /**
+     * Separable convolution with a sampled, normalised Gaussian truncated at 5 sigma, replicating the edge pixels.
+     */
+    static float[] convolve(float[] pixels, int width, int height, double sigma) {
+        int radius = (int) Math.ceil(5 * sigma);
+        double[] kernel = new double[2 * radius + 1];
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            kernel[i + radius] = Math.exp(-0.5 * i * i / (sigma * sigma));
+            sum += kernel[i + radius];
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] /= sum;
+        }
+        float[] rows = new float[pixels.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double value = 0;
+                for (int i = -radius; i <= radius; i++) {
+                    int xx = Math.max(0, Math.min(width - 1, x + i));
+                    value += kernel[i + radius] * pixels[y * width + xx];
+                }
+                rows[y * width + x] = (float) value;
+            }
+        }
+        float[] result = new float[pixels.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double value = 0;
+                for (int i = -radius; i <= radius; i++) {
+                    int yy = Math.max(0, Math.min(height - 1, y + i));
+                    value += kernel[i + radius] * rows[yy * width + x];
+                }
+                result[y * width + x] = (float) value;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,140 @@
+package qupath.ext.qupip.classes;
+
+import org.junit.jupiter.api.Test;
+import qupath.lib.roi.GeometryTools;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Simplified rings must stay valid, keep every traced corner within the tolerance, and meet the vertex budget.
+ */
+public class RingSimplifierTest {
+
+    private static final double[] TOLERANCES = {0.5, 1, 2.5, 6};
+
+    @Test
+    public void simplifiedGeometryIsValid() {
+        Random random = new Random(5);
+        for (int n = 0; n < 100; n++) {
+            BitMask mask = createBlobs(random, 20 + random.nextInt(40), 20 + random.nextInt(40));
+            double tolerance = TOLERANCES[n % TOLERANCES.length];
+            int maxVertices = n % 2 == 0 ? 0 : 10 + random.nextInt(40);
+            RingSimplifier simplifier = new RingSimplifier(tolerance, maxVertices);
+            assertTrue(MaskTracer.trace(mask, 0, 0, 1, simplifier, GeometryTools.getDefaultFactory()).isValid(),
+                    "Tolerance " + tolerance + ", budget " + maxVertices);
+        }
+    }
+
+    @Test
+    public void removedCornersStayWithinTolerance() {
+        Random random = new Random(6);
+        for (int n = 0; n < 100; n++) {
+            BitMask mask = createBlobs(random, 20 + random.nextInt(40), 20 + random.nextInt(40));
+            double tolerance = TOLERANCES[n % TOLERANCES.length];
+            List<MaskTracer.Ring> rings = MaskTracer.traceRings(mask);
+            RingSimplifier simplifier = new RingSimplifier(tolerance, 0);
+            List<MaskTracer.Ring> simplified = simplifier.simplify(rings);
+            assertEquals(rings.size(), simplified.size());
+            for (int r = 0; r < rings.size(); r++) {
+                MaskTracer.Ring ring = rings.get(r);
+                assertTrue(simplified.get(r).xs.length >= 3);
+                for (int i = 0; i < ring.xs.length; i++) {
+                    double distance = getDistance(ring.xs[i], ring.ys[i], simplified.get(r));
+                    assertTrue(distance <= tolerance + 1e-9,
+                            "Corner " + i + " is " + distance + " from the outline, tolerance " + tolerance);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void budgetIsMet() {
+        Random random = new Random(7);
+        for (int n = 0; n < 100; n++) {
+            // Separate discs, so no ring can block the simplification of another
+            int nDiscs = 1 + random.nextInt(4);
+            BitMask mask = new BitMask(40 * nDiscs, 40);
+            for (int d = 0; d < nDiscs; d++) {
+                fillDisc(mask, 40 * d + 20, 20, 5 + random.nextInt(14));
+            }
+            int maxVertices = 3 * nDiscs + random.nextInt(30);
+            RingSimplifier simplifier = new RingSimplifier(0, maxVertices);
+            List<MaskTracer.Ring> simplified = simplifier.simplify(MaskTracer.traceRings(mask));
+            int vertices = 0;
+            for (MaskTracer.Ring ring : simplified) {
+                assertTrue(ring.xs.length >= 3);
+                vertices += ring.xs.length;
+            }
+            assertTrue(vertices <= maxVertices, vertices + " vertices, budget " + maxVertices);
+            assertEquals(vertices, simplifier.getVerticesAfter());
+            assertTrue(MaskTracer.trace(mask, 0, 0, 1, new RingSimplifier(0, maxVertices),
+                    GeometryTools.getDefaultFactory()).isValid());
+        }
+    }
+
+    @Test
+    public void noToleranceNorBudgetKeepsEveryCorner() {
+        BitMask mask = createBlobs(new Random(8), 40, 30);
+        List<MaskTracer.Ring> rings = MaskTracer.traceRings(mask);
+        RingSimplifier simplifier = new RingSimplifier(0, 0);
+        assertEquals(rings, simplifier.simplify(rings));
+        assertEquals(simplifier.getVerticesBefore(), simplifier.getVerticesAfter());
+    }
+
+    /**
+     * Threshold smoothed noise, giving blobs with holes, islands inside holes and corners touching diagonally.
+     */
+    private static BitMask createBlobs(Random random, int width, int height) {
+        float[] noise = new float[width * height];
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = random.nextFloat();
+        }
+        float[] smoothed = new float[noise.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float sum = 0;
+                int count = 0;
+                for (int yy = Math.max(0, y - 2); yy <= Math.min(height - 1, y + 2); yy++) {
+                    for (int xx = Math.max(0, x - 2); xx <= Math.min(width - 1, x + 2); xx++) {
+                        sum += noise[yy * width + xx];
+                        count++;
+                    }
+                }
+                smoothed[y * width + x] = sum / count;
+            }
+        }
+        return BitMask.threshold(smoothed, width, height, 0.5, Double.POSITIVE_INFINITY);
+    }
+
+    private static void fillDisc(BitMask mask, int cx, int cy, int radius) {
+        for (int y = cy - radius; y <= cy + radius; y++) {
+            for (int x = cx - radius; x <= cx + radius; x++) {
+                if ((x - cx) * (x - cx) + (y - cy) * (y - cy) <= radius * radius) {
+                    mask.set(x, y);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The distance of a point from the closest edge of a ring.
+     */
+    private static double getDistance(int x, int y, MaskTracer.Ring ring) {
+        double best = Double.POSITIVE_INFINITY;
+        int n = ring.xs.length;
+        for (int i = 0; i < n; i++) {
+            int j = (i + 1) % n;
+            double dx = ring.xs[j] - ring.xs[i];
+            double dy = ring.ys[j] - ring.ys[i];
+            double lengthSquared = dx * dx + dy * dy;
+            double t = lengthSquared == 0 ? 0 :
+                    Math.max(0, Math.min(1, ((x - ring.xs[i]) * dx + (y - ring.ys[i]) * dy) / lengthSquared));
+            best = Math.min(best, Math.hypot(x - ring.xs[i] - t * dx, y - ring.ys[i] - t * dy));
+        }
+        return best;
+    }
+}
@@ -0,0 +1,162 @@
+package qupath.ext.qupip.classes;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * The operations on runs must give the same pixels as the same operations done pixel by pixel, and labelling the
+ * runs the same components as a flood fill.
+ */
+public class RunLengthMaskTest {
+
+    @Test
+    public void roundTripThroughBitMask() {
+        Random random = new Random(181);
+        for (int n = 0; n < 200; n++) {
+            BitMask mask = TestMasks.random(random, 1 + random.nextInt(200), 1 + random.nextInt(6));
+            RunLengthMask runs = RunLengthMask.fromBitMask(mask);
+            BitMask decoded = runs.toBitMask();
+            long area = 0;
+            for (int y = 0; y < mask.getHeight(); y++) {
+                for (int x = 0; x < mask.getWidth(); x++) {
+                    assertEquals(mask.get(x, y), decoded.get(x, y));
+                    area += mask.get(x, y) ? 1 : 0;
+                }
+            }
+            assertEquals(area, runs.getArea());
+        }
+    }
+
+    @Test
+    public void setOperationsMatchThePixels() {
+        Random random = new Random(182);
+        for (int n = 0; n < 200; n++) {
+            int width = 1 + random.nextInt(200);
+            int height = 1 + random.nextInt(6);
+            BitMask a = TestMasks.random(random, width, height);
+            BitMask b = TestMasks.random(random, width, height);
+            RunLengthMask runsA = RunLengthMask.fromBitMask(a);
+            RunLengthMask runsB = RunLengthMask.fromBitMask(b);
+            BitMask union = runsA.union(runsB).toBitMask();
+            BitMask intersection = runsA.intersection(runsB).toBitMask();
+            BitMask difference = runsA.difference(runsB).toBitMask();
+            BitMask not = runsA.not().toBitMask();
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    boolean pa = a.get(x, y);
+                    boolean pb = b.get(x, y);
+                    String message = "Mask " + n + " at (" + x + ", " + y + ")";
+                    assertEquals(pa || pb, union.get(x, y), message);
+                    assertEquals(pa && pb, intersection.get(x, y), message);
+                    assertEquals(pa && !pb, difference.get(x, y), message);
+                    assertEquals(!pa, not.get(x, y), message);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void differentSizesAreRejected() {
+        RunLengthMask a = RunLengthMask.fromBitMask(new BitMask(10, 5));
+        RunLengthMask b = RunLengthMask.fromBitMask(new BitMask(10, 6));
+        assertThrows(IllegalArgumentException.class, () -> a.union(b));
+    }
+
+    @Test
+    public void retainRunsKeepsTheirPixels() {
+        Random random = new Random(183);
+        for (int n = 0; n < 200; n++) {
+            BitMask mask = TestMasks.random(random, 1 + random.nextInt(200), 1 + random.nextInt(6));
+            RunLengthMask runs = RunLengthMask.fromBitMask(mask);
+            boolean[] keep = new boolean[runs.getRunCount()];
+            for (int r = 0; r < keep.length; r++) {
+                keep[r] = random.nextBoolean();
+            }
+            BitMask expected = new BitMask(mask.getWidth(), mask.getHeight());
+            int r = 0;
+            for (int y = 0; y < runs.getHeight(); y++) {
+                for (int i = 0; i < runs.getRunCount(y); i++, r++) {
+                    for (int x = runs.getRunStart(y, i); keep[r] && x < runs.getRunEnd(y, i); x++) {
+                        expected.set(x, y);
+                    }
+                }
+            }
+            BitMask retained = runs.retainRuns(keep).toBitMask();
+            for (int y = 0; y < mask.getHeight(); y++) {
+                for (int x = 0; x < mask.getWidth(); x++) {
+                    assertEquals(expected.get(x, y), retained.get(x, y), "Mask " + n + " at (" + x + ", " + y + ")");
+                }
+            }
+        }
+    }
+
+    @Test
+    public void labelRunsMatchesAFloodFill() {
+        Random random = new Random(184);
+        for (int n = 0; n < 200; n++) {
+            BitMask mask = TestMasks.random(random, 1 + random.nextInt(60), 1 + random.nextInt(40));
+            RunLengthMask runs = RunLengthMask.fromBitMask(mask);
+            for (boolean eightConnected : new boolean[]{false, true}) {
+                String message = "Mask " + n + (eightConnected ? ", 8-connected" : ", 4-connected");
+                int[] expected = floodFill(mask, eightConnected);
+                int[] labels = runs.labelRuns(eightConnected);
+                int r = 0;
+                for (int y = 0; y < runs.getHeight(); y++) {
+                    for (int i = 0; i < runs.getRunCount(y); i++, r++) {
+                        for (int x = runs.getRunStart(y, i); x < runs.getRunEnd(y, i); x++) {
+                            assertEquals(expected[y * mask.getWidth() + x], labels[r],
+                                    message + " at (" + x + ", " + y + ")");
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Label the pixels of a mask by flood filling from each unlabelled pixel in raster order, so that components are
+     * numbered in the order of their first pixel, as runs are. Unset pixels are labelled -1.
+     */
+    private static int[] floodFill(BitMask mask, boolean eightConnected) {
+        int width = mask.getWidth();
+        int height = mask.getHeight();
+        int[] labels = new int[width * height];
+        Arrays.fill(labels, -1);
+        int nLabels = 0;
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int start = 0; start < labels.length; start++) {
+            if (labels[start] >= 0 || !mask.get(start % width, start / width)) {
+                continue;
+            }
+            labels[start] = nLabels;
+            queue.add(start);
+            while (!queue.isEmpty()) {
+                int i = queue.poll();
+                int x = i % width;
+                int y = i / width;
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        if ((dx == 0 && dy == 0) || (!eightConnected && dx != 0 && dy != 0)) {
+                            continue;
+                        }
+                        int nx = x + dx;
+                        int ny = y + dy;
+                        if (nx >= 0 && ny >= 0 && nx < width && ny < height
+                                && labels[ny * width + nx] < 0 && mask.get(nx, ny)) {
+                            labels[ny * width + nx] = nLabels;
+                            queue.add(ny * width + nx);
+                        }
+                    }
+                }
+            }
+            nLabels++;
+        }
+        return labels;
+    }
+}
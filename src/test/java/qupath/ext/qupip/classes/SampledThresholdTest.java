@@ -0,0 +1,96 @@
+package qupath.ext.qupip.classes;
+
+import ij.process.AutoThresholder;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The stratified sample must draw one tile from every stratum, and the estimate must be the threshold of the
+ * merged histogram of the sampled tiles, reproducibly.
+ */
+public class SampledThresholdTest {
+
+    @Test
+    public void sampleCoversEveryStratum() {
+        Random random = new Random(12);
+        for (int nTiles : new int[]{1, 2, 7, 10, 100, 1001}) {
+            for (double fraction : new double[]{0.001, 0.1, 0.25, 0.5, 0.99, 1}) {
+                int[] sample = SampledThreshold.sampleTiles(nTiles, fraction, random);
+                int nSamples = Math.max(1, (int) Math.ceil(nTiles * fraction));
+                assertEquals(Math.min(nTiles, nSamples), sample.length);
+                for (int s = 0; s < sample.length; s++) {
+                    // Stratum s holds the tiles from s * nTiles / nSamples to (s + 1) * nTiles / nSamples
+                    long start = (long) s * nTiles / sample.length;
+                    long end = (long) (s + 1) * nTiles / sample.length;
+                    assertTrue(sample[s] >= start && sample[s] < end,
+                            "Tile " + sample[s] + " outside stratum " + s + " of " + nTiles + " tiles");
+                }
+            }
+        }
+        assertEquals(0, SampledThreshold.sampleTiles(0, 0.5, random).length);
+    }
+
+    @Test
+    public void everyTileSampledGivesTheFullThreshold() {
+        Random random = new Random(13);
+        List<StainHistogram> tiles = new ArrayList<>();
+        StainHistogram full = new StainHistogram(0, 1, 256);
+        for (int t = 0; t < 20; t++) {
+            float[] pixels = createBimodal(random, 32, 32, 0.2 + 0.02 * t);
+            StainHistogram tile = new StainHistogram(full);
+            tile.add(pixels, 32, new Rectangle(0, 0, 32, 32));
+            full.add(pixels, 32, new Rectangle(0, 0, 32, 32));
+            tiles.add(tile);
+        }
+        int[] sample = SampledThreshold.sampleTiles(tiles.size(), 1, random);
+        assertEquals(tiles.size(), sample.length);
+
+        SampledThreshold estimate = SampledThreshold.estimate(tiles, AutoThresholder.Method.Otsu, 200, 0.95, random);
+        assertEquals(full.getOtsuThreshold(), estimate.getThreshold(), 0);
+        assertEquals(tiles.size(), estimate.getTileCount());
+        assertTrue(estimate.getLower() <= estimate.getThreshold() && estimate.getThreshold() <= estimate.getUpper(),
+                estimate.toString());
+    }
+
+    @Test
+    public void sameSeedSameInterval() {
+        Random random = new Random(14);
+        List<StainHistogram> tiles = new ArrayList<>();
+        for (int t = 0; t < 10; t++) {
+            StainHistogram tile = new StainHistogram(0, 1, 256);
+            tile.add(createBimodal(random, 16, 16, 0.1 + 0.05 * t), 16, new Rectangle(0, 0, 16, 16));
+            tiles.add(tile);
+        }
+        SampledThreshold a = SampledThreshold.estimate(tiles, AutoThresholder.Method.Otsu, 100, 0.95, new Random(1));
+        SampledThreshold b = SampledThreshold.estimate(tiles, AutoThresholder.Method.Otsu, 100, 0.95, new Random(1));
+        assertEquals(a.getLower(), b.getLower(), 0);
+        assertEquals(a.getUpper(), b.getUpper(), 0);
+    }
+
+    @Test
+    public void noTiles() {
+        SampledThreshold estimate = SampledThreshold.estimate(List.of(), AutoThresholder.Method.Otsu, 100, 0.95,
+                new Random(15));
+        assertTrue(Double.isNaN(estimate.getThreshold()));
+        assertEquals(0, estimate.getTileCount());
+    }
+
+    /**
+     * Background around 0.2 with a fraction of stained pixels around 0.7.
+     */
+    private static float[] createBimodal(Random random, int width, int height, double stainedFraction) {
+        float[] pixels = new float[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            double centre = random.nextDouble() < stainedFraction ? 0.7 : 0.2;
+            pixels[i] = (float) Math.max(0, Math.min(1, centre + 0.08 * random.nextGaussian()));
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,95 @@
+package qupath.ext.qupip.classes;
+
+import org.junit.jupiter.api.Test;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.Rectangle;
+import java.lang.reflect.Proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The cores of the tiles must cover the downsampled slide exactly once, and the core found in a tile image must be
+ * the same pixels as its core on the grid, including for downsamples that are not integers.
+ */
+public class SlideTilerTest {
+
+    private static final double[] DOWNSAMPLES = {1, 1.5, 2.7, 3.3333333, 4.000123, 7.9};
+
+    @Test
+    public void coresCoverTheGridOnce() {
+        for (double downsample : DOWNSAMPLES) {
+            for (int halo : new int[]{0, 1, 5}) {
+                SlideTiler tiler = new SlideTiler(createServer(1000, 777), downsample, 37, halo);
+                int gridWidth = (int) Math.round(1000 / downsample);
+                int gridHeight = (int) Math.round(777 / downsample);
+                int[][] count = new int[gridHeight][gridWidth];
+                while (tiler.hasNext()) {
+                    Rectangle grid = tiler.next().getCoreInGrid();
+                    for (int y = grid.y; y < grid.y + grid.height; y++) {
+                        for (int x = grid.x; x < grid.x + grid.width; x++) {
+                            count[y][x]++;
+                        }
+                    }
+                }
+                for (int y = 0; y < gridHeight; y++) {
+                    for (int x = 0; x < gridWidth; x++) {
+                        assertEquals(1, count[y][x], "Downsample " + downsample + " at (" + x + ", " + y + ")");
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void coreInTileIsTheCoreInGrid() {
+        for (double downsample : DOWNSAMPLES) {
+            for (int halo : new int[]{0, 1, 5}) {
+                SlideTiler tiler = new SlideTiler(createServer(1000, 777), downsample, 37, halo);
+                while (tiler.hasNext()) {
+                    SlideTiler.Tile tile = tiler.next();
+                    RegionRequest request = tile.getRequest();
+                    Rectangle grid = tile.getCoreInGrid();
+                    int originX = (int) Math.round(request.getX() / downsample);
+                    int originY = (int) Math.round(request.getY() / downsample);
+                    // The server may return an image a pixel smaller or larger than the request
+                    for (int extra = -1; extra <= 1; extra++) {
+                        int width = (int) Math.round(request.getWidth() / downsample) + extra;
+                        int height = (int) Math.round(request.getHeight() / downsample) + extra;
+                        Rectangle core = tile.getCoreInTile(width, height);
+                        String message = "Downsample " + downsample + ", halo " + halo + ", tile " + tile.getIndex();
+                        Rectangle expected = new Rectangle(grid.x - originX, grid.y - originY, grid.width, grid.height)
+                                .intersection(new Rectangle(0, 0, width, height));
+                        assertEquals(expected, core, message);
+                        // Inside the slide, a halo of one pixel is enough for the image to hold the whole core
+                        boolean inside = tile.getCore().x + tile.getCore().width < 1000
+                                && tile.getCore().y + tile.getCore().height < 777;
+                        if (halo > 0 && extra >= 0 && inside) {
+                            assertEquals(grid.getSize(), core.getSize(), message);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A server that only knows its path and size.
+     */
+    private static ImageServer<?> createServer(int width, int height) {
+        return (ImageServer<?>) Proxy.newProxyInstance(SlideTilerTest.class.getClassLoader(),
+                new Class<?>[]{ImageServer.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getPath":
+                            return "test";
+                        case "getWidth":
+                            return width;
+                        case "getHeight":
+                            return height;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,187 @@
+package qupath.ext.qupip.classes;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Every item must go through the stages in order and reach the final stage once, and a failing stage or an
+ * interrupt must end the run and stop the threads pulling from the source.
+ */
+public class StagedPipelineTest {
+
+    private static final int N_ITEMS = 500;
+
+    @Test
+    public void singleThreadedStagesKeepTheOrder() throws Exception {
+        List<Integer> seen = new ArrayList<>();
+        new StagedPipeline<Item>(createItems(N_ITEMS), 4)
+                .addStage("a", 1, item -> item.add("a"))
+                .addStage("b", 1, item -> item.add("b"))
+                .run(item -> seen.add(item.index));
+        assertEquals(IntStream.range(0, N_ITEMS).boxed().toList(), seen);
+    }
+
+    @Test
+    public void everyItemGoesThroughEveryStage() throws Exception {
+        Thread caller = Thread.currentThread();
+        int[] finished = new int[N_ITEMS];
+        new StagedPipeline<Item>(createItems(N_ITEMS), 2)
+                .addStage("a", 3, item -> item.add("a"))
+                .addStage("b", 4, item -> item.add("b"))
+                .addStage("c", 2, item -> item.add("c"))
+                .run(item -> {
+                    assertSame(caller, Thread.currentThread(), "The final stage runs on the calling thread");
+                    assertEquals(List.of("a", "b", "c"), item.stages);
+                    finished[item.index]++;
+                });
+        for (int i = 0; i < N_ITEMS; i++) {
+            assertEquals(1, finished[i], "Item " + i);
+        }
+    }
+
+    @Test
+    public void emptySource() throws Exception {
+        AtomicInteger finished = new AtomicInteger();
+        new StagedPipeline<Item>(createItems(0), 2)
+                .addStage("a", 2, item -> item.add("a"))
+                .run(item -> finished.incrementAndGet());
+        assertEquals(0, finished.get());
+    }
+
+    @Test
+    public void failingStageFailsTheRunAndStopsReading() throws Exception {
+        AtomicInteger pulled = new AtomicInteger();
+        IOException failure = new IOException("Cannot read");
+        StagedPipeline<Item> pipeline = new StagedPipeline<Item>(createEndlessItems(pulled), 2)
+                .addStage("read", 2, item -> {
+                    if (item.index == 100) {
+                        throw failure;
+                    }
+                })
+                .addStage("process", 2, item -> item.add("process"));
+        IOException thrown = assertThrows(IOException.class, () -> pipeline.run(item -> {
+        }));
+        assertSame(failure, thrown);
+        assertSourceStops(pulled);
+    }
+
+    @Test
+    public void otherExceptionsAreWrapped() {
+        AtomicInteger pulled = new AtomicInteger();
+        StagedPipeline<Item> pipeline = new StagedPipeline<Item>(createEndlessItems(pulled), 2)
+                .addStage("a", 1, item -> {
+                    if (item.index == 10) {
+                        throw new Exception("Checked");
+                    }
+                });
+        RuntimeException thrown = assertThrows(RuntimeException.class, () -> pipeline.run(item -> {
+        }));
+        assertEquals("Checked", thrown.getCause().getMessage());
+    }
+
+    @Test
+    public void failingFinalStageFailsTheRun() throws Exception {
+        AtomicInteger pulled = new AtomicInteger();
+        StagedPipeline<Item> pipeline = new StagedPipeline<Item>(createEndlessItems(pulled), 2)
+                .addStage("a", 2, item -> item.add("a"));
+        assertThrows(IllegalStateException.class, () -> pipeline.run(item -> {
+            if (item.index == 50) {
+                throw new IllegalStateException("Final stage");
+            }
+        }));
+        assertSourceStops(pulled);
+    }
+
+    @Test
+    public void interruptEndsTheRunAndStopsTheWorkers() throws Exception {
+        AtomicInteger pulled = new AtomicInteger();
+        CountDownLatch blocked = new CountDownLatch(2);
+        CountDownLatch interrupted = new CountDownLatch(2);
+        AtomicReference<Throwable> result = new AtomicReference<>();
+        Thread caller = new Thread(() -> {
+            try {
+                new StagedPipeline<Item>(createEndlessItems(pulled), 2)
+                        .addStage("slow", 2, item -> {
+                            blocked.countDown();
+                            try {
+                                Thread.sleep(Long.MAX_VALUE);
+                            } catch (InterruptedException e) {
+                                interrupted.countDown();
+                                throw e;
+                            }
+                        })
+                        .run(item -> {
+                        });
+            } catch (Throwable t) {
+                result.set(t);
+            }
+        });
+        caller.start();
+        assertTrue(blocked.await(10, TimeUnit.SECONDS), "Both workers started");
+        caller.interrupt();
+        caller.join(10_000);
+        assertInstanceOf(InterruptedException.class, result.get());
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS), "Both workers were interrupted");
+        assertSourceStops(pulled);
+    }
+
+    /**
+     * Once the run has ended, the feeder must stop pulling items from the source.
+     */
+    private static void assertSourceStops(AtomicInteger pulled) throws InterruptedException {
+        Thread.sleep(200);
+        int count = pulled.get();
+        Thread.sleep(300);
+        assertEquals(count, pulled.get(), "Items pulled after the run ended");
+    }
+
+    private static Iterator<Item> createItems(int n) {
+        return IntStream.range(0, n).mapToObj(Item::new).iterator();
+    }
+
+    private static Iterator<Item> createEndlessItems(AtomicInteger pulled) {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public Item next() {
+                return new Item(pulled.getAndIncrement());
+            }
+        };
+    }
+
+    private static class Item {
+
+        private final int index;
+        private final List<String> stages = new ArrayList<>();
+
+        private Item(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Stages of one item run one after the other, but possibly on different threads.
+         */
+        private synchronized void add(String stage) {
+            stages.add(stage);
+        }
+    }
+}
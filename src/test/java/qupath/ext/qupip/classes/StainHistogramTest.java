@@ -0,0 +1,228 @@
+package qupath.ext.qupip.classes;
+
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A histogram binned as ImageJ does must give the same thresholds as ImageJ's auto-threshold of the float image,
+ * for every method computed from the one histogram.
+ */
+public class StainHistogramTest {
+
+    @Test
+    public void otsuMatchesImageJ() {
+        Random random = new Random(111);
+        for (int n = 0; n < 100; n++) {
+            FloatProcessor ip = createRandom(random, n);
+            ip.setAutoThreshold(AutoThresholder.Method.Otsu, true);
+            StainHistogram histogram = StainHistogram.of((float[]) ip.getPixels(), ip.getWidth(), ip.getHeight());
+            assertEquals(ip.getMinThreshold(), histogram.getThreshold(AutoThresholder.Method.Otsu), 0, "Image " + n);
+            assertEquals(ip.getMinThreshold(), histogram.getOtsuThreshold(), 0, "Image " + n);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(AutoThresholder.Method.class)
+    public void everyMethodMatchesImageJ(AutoThresholder.Method method) {
+        Random random = new Random(131);
+        for (int n = 0; n < 30; n++) {
+            FloatProcessor ip = createRandom(random, n);
+            StainHistogram histogram = StainHistogram.of((float[]) ip.getPixels(), ip.getWidth(), ip.getHeight());
+            ip.setAutoThreshold(method, true);
+            assertEquals(ip.getMinThreshold(), histogram.getThreshold(method), 0, method + ", image " + n);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(AutoThresholder.Method.class)
+    public void sharedHistogramMatchesImageJ(AutoThresholder.Method method) {
+        // With one bin per 8-bit value, a histogram merged from two halves of an image is ImageJ's histogram
+        Random random = new Random(132);
+        for (int n = 0; n < 30; n++) {
+            int width = 2 + random.nextInt(80);
+            int height = 1 + random.nextInt(80);
+            float[] pixels = new float[width * height];
+            byte[] bytes = new byte[width * height];
+            double background = 255 * random.nextDouble();
+            double stain = 255 * random.nextDouble();
+            for (int i = 0; i < pixels.length; i++) {
+                double value = (random.nextDouble() < 0.3 ? stain : background) + 20 * random.nextGaussian();
+                pixels[i] = (float) Math.max(0, Math.min(255, Math.round(value)));
+                bytes[i] = (byte) pixels[i];
+            }
+            StainHistogram shared = new StainHistogram(0, 256, 256);
+            StainHistogram right = new StainHistogram(shared);
+            shared.add(pixels, width, new Rectangle(0, 0, width / 2, height));
+            right.add(pixels, width, new Rectangle(width / 2, 0, width - width / 2, height));
+            shared.merge(right);
+
+            ByteProcessor ip = new ByteProcessor(width, height, bytes);
+            ip.setAutoThreshold(method, true);
+            assertEquals(ip.getMinThreshold(), shared.getThreshold(method), 0, method + ", image " + n);
+        }
+    }
+
+    @Test
+    public void multiOtsuMatchesBruteForce() {
+        Random random = new Random(151);
+        for (int nThresholds = 1; nThresholds <= 3; nThresholds++) {
+            for (int n = 0; n < 200; n++) {
+                int nBins = nThresholds + 1 + random.nextInt(14);
+                StainHistogram histogram = createRandomCounts(random, nBins, n % 2 == 0);
+                double[] thresholds = histogram.getMultiOtsuThresholds(nThresholds);
+                int[] splits = new int[nThresholds];
+                for (int t = 0; t < nThresholds; t++) {
+                    // With one bin per unit from 0, thresholds are the bins starting each upper class
+                    splits[t] = (int) thresholds[t];
+                    assertEquals(splits[t], thresholds[t], 0);
+                    assertTrue(splits[t] > (t == 0 ? 0 : splits[t - 1]) && splits[t] < nBins,
+                            Arrays.toString(thresholds));
+                }
+                // Several splits may tie when bins are empty, so compare the variance rather than the splits
+                double best = bestBetweenClassVariance(histogram.getCounts(), nThresholds, 1, new int[nThresholds], 0);
+                assertEquals(best, betweenClassVariance(histogram.getCounts(), splits), 1e-9 * best,
+                        nThresholds + " thresholds, " + Arrays.toString(histogram.getCounts()));
+            }
+        }
+    }
+
+    @Test
+    public void twoClassesAreOtsu() {
+        Random random = new Random(152);
+        for (int n = 0; n < 100; n++) {
+            // Two noisy peaks, so that the split is unique and away from the first and last bins
+            int nBins = 16 + random.nextInt(241);
+            StainHistogram histogram = new StainHistogram(0, nBins, nBins);
+            double low = nBins * (0.1 + 0.2 * random.nextDouble());
+            double high = nBins * (0.6 + 0.3 * random.nextDouble());
+            double width = nBins * 0.05;
+            for (int i = 0; i < nBins; i++) {
+                double peaks = 3 * Math.exp(-Math.pow((i - low) / width, 2))
+                        + Math.exp(-Math.pow((i - high) / width, 2));
+                histogram.getCounts()[i] = Math.round(1000 * peaks) + 1 + random.nextInt(10);
+            }
+            assertEquals(histogram.getOtsuThreshold(), histogram.getMultiOtsuThresholds(1)[0], 0,
+                    Arrays.toString(histogram.getCounts()));
+        }
+    }
+
+    @Test
+    public void imageJBinsAreCentredOnTheRange() {
+        float[] pixels = {0, 0.25f, 0.5f, 1, 1};
+        StainHistogram histogram = StainHistogram.of(pixels, 5, 1);
+        long[] counts = histogram.getCounts();
+        assertEquals(256, counts.length);
+        assertEquals(1, counts[0]);
+        assertEquals(1, counts[64]);
+        assertEquals(1, counts[128]);
+        assertEquals(2, counts[255]);
+        assertEquals(-0.5 / 255, histogram.getBinLowerBound(0), 1e-12);
+        assertEquals(1.0 / 255, histogram.getBinWidth(), 1e-12);
+    }
+
+    @Test
+    public void constantImage() {
+        float[] pixels = new float[100];
+        Arrays.fill(pixels, 0.3f);
+        StainHistogram histogram = StainHistogram.of(pixels, 10, 10);
+        assertEquals(100, histogram.getCounts()[0]);
+        assertEquals(0.3f, histogram.getThreshold(AutoThresholder.Method.Otsu), 0);
+    }
+
+    /**
+     * A histogram with one bin per unit from 0 and random counts, some of them 0 if {@code withEmptyBins}.
+     */
+    private static StainHistogram createRandomCounts(Random random, int nBins, boolean withEmptyBins) {
+        StainHistogram histogram = new StainHistogram(0, nBins, nBins);
+        long[] counts = histogram.getCounts();
+        for (int i = 0; i < nBins; i++) {
+            counts[i] = withEmptyBins && random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(1000);
+        }
+        // Never all empty
+        counts[random.nextInt(nBins)] += 1;
+        return histogram;
+    }
+
+    /**
+     * Try every increasing choice of the remaining splits, from {@code first} on.
+     */
+    private static double bestBetweenClassVariance(long[] counts, int nThresholds, int first, int[] splits, int t) {
+        if (t == nThresholds) {
+            return betweenClassVariance(counts, splits);
+        }
+        double best = Double.NEGATIVE_INFINITY;
+        for (int split = first; split < counts.length; split++) {
+            splits[t] = split;
+            best = Math.max(best, bestBetweenClassVariance(counts, nThresholds, split + 1, splits, t + 1));
+        }
+        return best;
+    }
+
+    /**
+     * The between-class variance of the bin indices, with each split starting a class.
+     */
+    private static double betweenClassVariance(long[] counts, int[] splits) {
+        double total = 0;
+        double sum = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i];
+            sum += (double) i * counts[i];
+        }
+        double mean = sum / total;
+        double variance = 0;
+        int start = 0;
+        for (int c = 0; c <= splits.length; c++) {
+            int end = c < splits.length ? splits[c] : counts.length;
+            double weight = 0;
+            double classSum = 0;
+            for (int i = start; i < end; i++) {
+                weight += counts[i];
+                classSum += (double) i * counts[i];
+            }
+            if (weight > 0) {
+                double difference = classSum / weight - mean;
+                variance += weight / total * difference * difference;
+            }
+            start = end;
+        }
+        return variance;
+    }
+
+    /**
+     * Images of different sizes and ranges: uniform noise, two Gaussian classes, or a few repeated values.
+     */
+    private static FloatProcessor createRandom(Random random, int n) {
+        int width = 1 + random.nextInt(80);
+        int height = 1 + random.nextInt(80);
+        double offset = random.nextGaussian();
+        double range = Math.pow(10, random.nextInt(5) - 2);
+        float[] pixels = new float[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            double value;
+            switch (n % 3) {
+                case 0:
+                    value = random.nextDouble();
+                    break;
+                case 1:
+                    value = (random.nextDouble() < 0.3 ? 0.7 : 0.2) + 0.1 * random.nextGaussian();
+                    break;
+                default:
+                    value = random.nextInt(7) / 6.0;
+                    break;
+            }
+            pixels[i] = (float) (offset + range * value);
+        }
+        return new FloatProcessor(width, height, pixels);
+    }
+}
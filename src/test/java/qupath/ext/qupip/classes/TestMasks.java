@@ -0,0 +1,40 @@
+package qupath.ext.qupip.classes;
+
+import java.util.Random;
+
+/**
+ * Masks for tests, drawn as rows of text with '#' for set pixels.
+ */
+final class TestMasks {
+
+    private TestMasks() {
+    }
+
+    static BitMask create(String... rows) {
+        BitMask mask = new BitMask(rows[0].length(), rows.length);
+        for (int y = 0; y < rows.length; y++) {
+            for (int x = 0; x < rows[y].length(); x++) {
+                if (rows[y].charAt(x) == '#') {
+                    mask.set(x, y);
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * A mask with each pixel set with the same random probability.
+     */
+    static BitMask random(Random random, int width, int height) {
+        BitMask mask = new BitMask(width, height);
+        double density = random.nextDouble();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (random.nextDouble() < density) {
+                    mask.set(x, y);
+                }
+            }
+        }
+        return mask;
+    }
+}